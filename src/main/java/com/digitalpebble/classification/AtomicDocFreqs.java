@@ -0,0 +1,78 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Doc frequencies indexed by attribute ID which can be incremented by several
+ * threads, used by the Lexicon in concurrent mode. The counters are held in
+ * pages of atomic ints created on demand so that the table grows without
+ * being copied, which could otherwise lose the increments done during the
+ * copy.
+ **/
+final class AtomicDocFreqs {
+
+	private static final int PAGE_BITS = 14;
+
+	private static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+	private final AtomicReferenceArray<AtomicIntegerArray> pages = new AtomicReferenceArray<AtomicIntegerArray>(
+			1 << (31 - PAGE_BITS));
+
+	/** Copies the values of a table, the negative ones being set to 0 **/
+	AtomicDocFreqs(int[] docFreqs, int length) {
+		for (int id = 0; id < length; id++)
+			if (docFreqs[id] > 0)
+				page(id).set(id & (PAGE_SIZE - 1), docFreqs[id]);
+	}
+
+	int get(int id) {
+		AtomicIntegerArray page = pages.get(id >>> PAGE_BITS);
+		if (page == null)
+			return 0;
+		return page.get(id & (PAGE_SIZE - 1));
+	}
+
+	void increment(int id) {
+		page(id).incrementAndGet(id & (PAGE_SIZE - 1));
+	}
+
+	void add(int id, int delta) {
+		page(id).addAndGet(id & (PAGE_SIZE - 1), delta);
+	}
+
+	private AtomicIntegerArray page(int id) {
+		int p = id >>> PAGE_BITS;
+		AtomicIntegerArray page = pages.get(p);
+		if (page == null) {
+			pages.compareAndSet(p, null, new AtomicIntegerArray(PAGE_SIZE));
+			page = pages.get(p);
+		}
+		return page;
+	}
+
+	/** Returns the values of the IDs lower than length **/
+	int[] toArray(int length) {
+		int[] docFreqs = new int[length];
+		for (int id = 0; id < length; id++)
+			docFreqs[id] = get(id);
+		return docFreqs;
+	}
+
+}
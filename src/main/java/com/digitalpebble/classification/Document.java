@@ -16,8 +16,16 @@
 
 package com.digitalpebble.classification;
 
+import java.util.HashMap;
 import java.util.Map;
 
+/**
+ * A Document is created by a Learner or a TextClassifier and is not modified
+ * afterwards : building its Vector representation, with or without a mapping
+ * of the attribute numbers, leaves the Document untouched. The same instance
+ * can therefore be used by several threads at the same time, provided that
+ * the Lexicon is not modified meanwhile.
+ **/
 public interface Document {
 
   /**
@@ -38,9 +46,29 @@ public interface Document {
   
   /** 
    * Same as above but gives a mapping for the attributes numbers
+   * @deprecated use getFeatureVector(Lexicon, int[])
    **/
+  @Deprecated
   public abstract Vector getFeatureVector(Lexicon lexicon, Map<Integer, Integer> equiv);
 
+  /**
+   * Same as above with the new attribute numbers in a table indexed by the old
+   * ones, e.g. as returned by Lexicon.compactIndices(), where -1 marks the
+   * attributes which have been filtered. The default implementation converts
+   * the table into a Map for the method above; SimpleDocument and
+   * MultiFieldDocument use the table directly.
+   **/
+  @SuppressWarnings("deprecation")
+  public default Vector getFeatureVector(Lexicon lexicon, int[] oldToNew) {
+    if (oldToNew == null)
+      return getFeatureVector(lexicon, (Map<Integer, Integer>) null);
+    Map<Integer, Integer> equiv = new HashMap<Integer, Integer>();
+    for (int old = 0; old < oldToNew.length; old++)
+      if (oldToNew[old] != -1)
+        equiv.put(old, oldToNew[old]);
+    return getFeatureVector(lexicon, equiv);
+  }
+
   /**
    * Returns a String that can be used to serialize to/from a file
    */
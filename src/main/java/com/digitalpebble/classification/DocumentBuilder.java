@@ -0,0 +1,445 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import java.util.Arrays;
+
+import com.digitalpebble.classification.Parameters.WeightingMethod;
+import com.digitalpebble.classification.util.Tokenizer;
+import com.digitalpebble.classification.util.dictionary.HashTermDictionary;
+import com.digitalpebble.classification.util.dictionary.TermDictionary;
+
+/**
+ * Turns the tokens of a document into the attribute IDs and frequencies of a
+ * SimpleDocument or MultiFieldDocument. The tokens are normalised into a
+ * char buffer, looked up in the lexicon without creating a String and counted
+ * by attribute ID in a primitive hash table; only the arrays of the Document
+ * are allocated. The buffers are kept between documents so a builder must
+ * not be shared between threads, use forCurrentThread() to get the one of
+ * the calling thread.
+ * <p>
+ * A builder can also receive the tokens of a Tokenizer and weight them
+ * straight into its own arrays, which is how a TextClassifier classifies a
+ * raw text without creating a Document or a Vector.
+ **/
+final class DocumentBuilder implements Tokenizer.TokenHandler {
+
+	private static final ThreadLocal<DocumentBuilder> builders = new ThreadLocal<DocumentBuilder>() {
+		@Override
+		protected DocumentBuilder initialValue() {
+			return new DocumentBuilder();
+		}
+	};
+
+	static DocumentBuilder forCurrentThread() {
+		return builders.get();
+	}
+
+	private Lexicon lexicon;
+
+	private boolean create;
+
+	/** normalised form of the current token, prefixed by the field name **/
+	private char[] term = new char[64];
+
+	/** length of the field name and separator at the start of term **/
+	private int prefixLength = 0;
+
+	/** used for copying the tokens given as Strings **/
+	private char[] raw = new char[64];
+
+	private int currentField = 0;
+
+	/** number of tokens per field ID **/
+	private int[] tokensPerField = new int[4];
+
+	// hash table of attribute ID -> entry + 1, 0 if free
+	private int[] table = new int[64];
+
+	private int mask = 63;
+
+	// per entry values
+	private int[] keys = new int[32];
+
+	private int[] counts = new int[32];
+
+	private int[] fields = new int[32];
+
+	private int[] entrySlots = new int[32];
+
+	private int numEntries = 0;
+
+	/** terms not in the lexicon yet, only used when creating attributes **/
+	private final HashTermDictionary newTerms = new HashTermDictionary();
+
+	private int[] newCounts = new int[16];
+
+	private int[] newFields = new int[16];
+
+	/** attribute ID in the high bits and entry in the low ones **/
+	private long[] order = new long[32];
+
+	// weighted attributes of the current document
+	private int[] vectorIndices = new int[32];
+
+	private double[] vectorValues = new double[32];
+
+	/**
+	 * Builds a SimpleDocument from an array of tokens. If create is true the
+	 * attributes which are not in the lexicon are added to it and the doc
+	 * frequencies updated, otherwise the unknown tokens are only counted in
+	 * the total number of tokens.
+	 **/
+	SimpleDocument build(String[] tokens, Lexicon lexicon, boolean create) {
+		start(lexicon, create);
+		for (String token : tokens)
+			addToken(token);
+		return finishSimpleDocument();
+	}
+
+	/** Same as above for a document made of several fields **/
+	MultiFieldDocument build(Field[] fields, Lexicon lexicon, boolean create) {
+		// missing a known field?
+		int numFields = Math.max(lexicon.getFieldNum(), fields.length);
+		start(lexicon, create);
+		for (Field f : fields) {
+			// get the field num from the lexicon
+			int fieldNum = lexicon.getFieldID(f._name, create).intValue();
+			// field does not exist
+			if (fieldNum == -1)
+				continue;
+			numFields = Math.max(numFields, fieldNum + 1);
+			setField(f._name, fieldNum);
+			for (String token : f._tokens)
+				addToken(token);
+		}
+		return finishMultiFieldDocument(numFields);
+	}
+
+	/** Starts a new document **/
+	void start(Lexicon lexicon, boolean create) {
+		this.lexicon = lexicon;
+		this.create = create;
+		for (int e = 0; e < numEntries; e++)
+			table[entrySlots[e]] = 0;
+		numEntries = 0;
+		newTerms.clear();
+		Arrays.fill(tokensPerField, 0);
+		prefixLength = 0;
+		currentField = 0;
+	}
+
+	/**
+	 * The next tokens belong to a field : their attributes are prefixed with
+	 * the name of the field
+	 **/
+	void setField(String name, int fieldNum) {
+		int length = name.length();
+		ensureTermCapacity(length + 1);
+		name.getChars(0, length, term, 0);
+		term[length] = '_';
+		prefixLength = length + 1;
+		if (fieldNum >= tokensPerField.length)
+			tokensPerField = Arrays.copyOf(tokensPerField, Math.max(
+					fieldNum + 1, tokensPerField.length * 2));
+		currentField = fieldNum;
+	}
+
+	void addToken(String token) {
+		// remove null strings or empty strings
+		if (token == null)
+			return;
+		int length = token.length();
+		if (length < 1)
+			return;
+		if (length > raw.length)
+			raw = new char[Math.max(length, raw.length * 2)];
+		token.getChars(0, length, raw, 0);
+		addToken(raw, 0, length);
+	}
+
+	/**
+	 * Receives a token of a Tokenizer, which is lower-cased as by
+	 * Tokenizer.tokenize(text, true) while being copied after the field name
+	 **/
+	public void token(CharSequence input, int start, int length) {
+		if (length < 1)
+			return;
+		// add a new instance to the count
+		tokensPerField[currentField]++;
+		// the tokens of a Tokenizer have no whitespace
+		ensureTermCapacity(prefixLength + length);
+		addTerm(prefixLength
+				+ Tokenizer.toLowerCase(input, start, length, term,
+						prefixLength));
+	}
+
+	void addToken(char[] buffer, int offset, int length) {
+		if (length < 1)
+			return;
+		// add a new instance to the count
+		tokensPerField[currentField]++;
+
+		// replace the runs of whitespace with an underscore so that
+		// the lexicon file will be read properly
+		ensureTermCapacity(prefixLength + length);
+		int termLength = prefixLength;
+		boolean space = false;
+		for (int i = offset; i < offset + length; i++) {
+			char c = buffer[i];
+			if (c == ' ' || c == '\t' || c == '\n' || c == '\u000B'
+					|| c == '\f' || c == '\r') {
+				if (!space)
+					term[termLength++] = '_';
+				space = true;
+			} else {
+				term[termLength++] = c;
+				space = false;
+			}
+		}
+		addTerm(termLength);
+	}
+
+	/** Counts the term held in the first termLength chars of term **/
+	private void addTerm(int termLength) {
+		// the attribute of a term is given by its hash, with a sign
+		if (lexicon.isHashing()) {
+			int index = lexicon.getSignedIndex(term, 0, termLength);
+			if (index > 0)
+				count(index, currentField, 1);
+			else
+				count(-index, currentField, -1);
+			return;
+		}
+
+		int index = lexicon.getIndex(term, 0, termLength);
+		if (index != -1) {
+			count(index, currentField, 1);
+			return;
+		}
+		// unknown to the model
+		if (!create)
+			return;
+		// the new attributes are created once the whole document
+		// has been read so that they get their IDs in alphabetical order
+		int pending = newTerms.get(term, 0, termLength);
+		if (pending == TermDictionary.NOT_FOUND) {
+			pending = newTerms.size();
+			newTerms.put(new String(term, 0, termLength), pending);
+			if (pending == newCounts.length) {
+				newCounts = Arrays.copyOf(newCounts, pending * 2);
+				newFields = Arrays.copyOf(newFields, pending * 2);
+			}
+			newCounts[pending] = 0;
+			newFields[pending] = currentField;
+		}
+		newCounts[pending]++;
+	}
+
+	SimpleDocument finishSimpleDocument() {
+		createNewAttributes();
+		int length = sortEntries();
+		SimpleDocument doc = new SimpleDocument();
+		doc.totalNumberTokens = tokensPerField[0];
+		doc.indices = new int[length];
+		doc.freqs = new int[length];
+		for (int i = 0; i < length; i++) {
+			int e = (int) order[i];
+			doc.indices[i] = keys[e];
+			doc.freqs[i] = counts[e];
+		}
+		lexicon = null;
+		return doc;
+	}
+
+	MultiFieldDocument finishMultiFieldDocument(int numFields) {
+		createNewAttributes();
+		int length = sortEntries();
+		MultiFieldDocument doc = new MultiFieldDocument();
+		doc.tokensPerField = new double[numFields];
+		for (int f = 0; f < numFields && f < tokensPerField.length; f++)
+			doc.tokensPerField[f] = tokensPerField[f];
+		doc.indices = new int[length];
+		doc.freqs = new int[length];
+		doc.indexToField = new int[length];
+		for (int i = 0; i < length; i++) {
+			int e = (int) order[i];
+			doc.indices[i] = keys[e];
+			doc.freqs[i] = counts[e];
+			doc.indexToField[i] = fields[e];
+		}
+		lexicon = null;
+		return doc;
+	}
+
+	/**
+	 * Weights the attributes of the current SimpleDocument as
+	 * getFeatureVector(lexicon) would and returns their number. The indices
+	 * and values are then available from getIndices() and getValues() until
+	 * the next document is started.
+	 **/
+	int weightSimpleDocument() {
+		int length = sortEntries();
+		WeightingMethod method = lexicon.getMethod();
+		ScoringPlan plan = lexicon.getScoringPlan();
+		ensureVectorCapacity(length);
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			int e = (int) order[i];
+			if (lexicon.getDocFreq(keys[e]) <= 0)
+				continue;
+			vectorIndices[kept] = keys[e];
+			vectorValues[kept] = SimpleDocument.getScore(keys[e], counts[e],
+					tokensPerField[0], method, plan);
+			kept++;
+		}
+		if (lexicon.isNormalizeVector())
+			SimpleDocument.normalizeL2(vectorValues, kept);
+		lexicon = null;
+		return kept;
+	}
+
+	/** Same as above for a MultiFieldDocument **/
+	int weightMultiFieldDocument() {
+		int length = sortEntries();
+		ScoringPlan plan = lexicon.getScoringPlan();
+		WeightingMethod[] methods = plan.fieldMethods;
+		ensureVectorCapacity(length);
+		int kept = 0;
+		for (int i = 0; i < length; i++) {
+			int e = (int) order[i];
+			if (lexicon.getDocFreq(keys[e]) <= 0)
+				continue;
+			double score = MultiFieldDocument.getScore(keys[e], counts[e],
+					tokensPerField[fields[e]], methods[fields[e]], plan);
+			if (score == 0)
+				continue;
+			vectorIndices[kept] = keys[e];
+			vectorValues[kept] = score;
+			kept++;
+		}
+		if (lexicon.isNormalizeVector())
+			SimpleDocument.normalizeL2(vectorValues, kept);
+		lexicon = null;
+		return kept;
+	}
+
+	int[] getIndices() {
+		return vectorIndices;
+	}
+
+	double[] getValues() {
+		return vectorValues;
+	}
+
+	private void ensureVectorCapacity(int length) {
+		if (length > vectorIndices.length) {
+			vectorIndices = new int[keys.length];
+			vectorValues = new double[keys.length];
+		}
+	}
+
+	/**
+	 * Updates the doc frequencies of the known attributes then adds the new
+	 * ones to the lexicon
+	 **/
+	private void createNewAttributes() {
+		if (!create)
+			return;
+		for (int e = 0; e < numEntries; e++)
+			lexicon.incrementDocFreq(keys[e]);
+		if (newTerms.size() == 0)
+			return;
+		TermDictionary.Cursor cursor = newTerms.sortedCursor();
+		while (cursor.next()) {
+			int pending = cursor.id();
+			int index = lexicon.createIndex(cursor.term());
+			// not admitted yet
+			if (index == -1)
+				continue;
+			count(index, newFields[pending], newCounts[pending]);
+		}
+	}
+
+	/**
+	 * Sorts the entries by attribute ID and returns their number, leaving out
+	 * the ones whose signed occurrences cancelled out in hashing mode
+	 **/
+	private int sortEntries() {
+		if (order.length < numEntries)
+			order = new long[keys.length];
+		int length = 0;
+		for (int e = 0; e < numEntries; e++)
+			if (counts[e] != 0)
+				order[length++] = ((long) keys[e] << 32) | e;
+		Arrays.sort(order, 0, length);
+		return length;
+	}
+
+	private void count(int index, int field, int freq) {
+		int slot = slot(index);
+		while (true) {
+			int e = table[slot] - 1;
+			if (e == -1)
+				break;
+			if (keys[e] == index) {
+				counts[e] += freq;
+				return;
+			}
+			slot = (slot + 1) & mask;
+		}
+		// new entry
+		if (numEntries == keys.length) {
+			int newLength = keys.length * 2;
+			keys = Arrays.copyOf(keys, newLength);
+			counts = Arrays.copyOf(counts, newLength);
+			fields = Arrays.copyOf(fields, newLength);
+			entrySlots = Arrays.copyOf(entrySlots, newLength);
+		}
+		int e = numEntries++;
+		keys[e] = index;
+		counts[e] = freq;
+		fields[e] = field;
+		entrySlots[e] = slot;
+		table[slot] = e + 1;
+		if (numEntries * 2 > table.length)
+			rehash(table.length * 2);
+	}
+
+	private void rehash(int capacity) {
+		table = new int[capacity];
+		mask = capacity - 1;
+		for (int e = 0; e < numEntries; e++) {
+			int slot = slot(keys[e]);
+			while (table[slot] != 0)
+				slot = (slot + 1) & mask;
+			table[slot] = e + 1;
+			entrySlots[e] = slot;
+		}
+	}
+
+	private int slot(int index) {
+		int h = index * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private void ensureTermCapacity(int length) {
+		if (length > term.length)
+			term = Arrays.copyOf(term, Math.max(length, term.length * 2));
+	}
+
+}
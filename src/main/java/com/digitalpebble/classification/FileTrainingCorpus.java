@@ -17,14 +17,19 @@
 package com.digitalpebble.classification;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
 
 
 /*******************************************************************************
@@ -35,53 +40,323 @@ import java.util.Iterator;
  * In a future version we might be able to retrain a model by generating a
  * lexicon file straight from a 'raw' file thus avoiding the need for obtaining
  * the data in the first place.
+ * 
+ * What is written between the opening and the closing of a corpus is recorded
+ * as a segment in a sidecar file (see SegmentIndex) so that an existing raw
+ * file can be reopened without reading it again : only what follows the last
+ * segment, i.e. what was written by a corpus which was not closed, is scanned
+ * and an incomplete document at the end is dropped.
  ******************************************************************************/
 public class FileTrainingCorpus implements TrainingCorpus {
 
-	private Writer raw_file_buffer;
-
 	private File raw_file;
 
+	private FileChannel channel;
+
+	/** null for the text format **/
+	private RawCorpusFormat.BlockEncoder encoder;
+
+	/** documents serialized in the text format waiting to be written **/
+	private ByteBuffer text_buffer;
+
+	private SegmentIndex segments;
+
+	/** number of documents added since the last segment **/
+	private long segmentDocs = 0;
+
+	/** checksum of the bytes written since the last segment **/
+	private final CRC32 segmentChecksum = new CRC32();
+
 	/** Get a new TrainingCorpus or an existing one if there is one already there * */
 	public FileTrainingCorpus(File rfile) throws IOException {
+		this(rfile, false);
+	}
+
+	/**
+	 * Get a new TrainingCorpus or an existing one if there is one already
+	 * there. A new raw file is written in the binary format described in
+	 * RawCorpusFormat if binary is true, which is more compact and much
+	 * faster to read than the text format with one document per line. An
+	 * existing file keeps its format.
+	 **/
+	public FileTrainingCorpus(File rfile, boolean binary) throws IOException {
 		// create a raw file in the working directory
 		this.raw_file = rfile;
-		
-		if (rfile.exists()) {
-			// try to load it
-			try {
-				Iterator iter = iterator();
-				while (iter.hasNext()) {
-					iter.next();
-				}
-			} catch (Exception e) {
-				throw new IOException("Exception when reading existing raw file");
+
+		if (!rfile.exists() || rfile.length() == 0) {
+			channel = FileChannel.open(rfile.toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			if (binary) {
+				channel.write(RawCorpusFormat.header(0));
+				encoder = new RawCorpusFormat.BlockEncoder();
+			} else
+				text_buffer = ByteBuffer.allocate(RawCorpusFormat.BLOCK_SIZE);
+			// replaces the index of a previous file
+			segments = SegmentIndex.create(rfile, getDataStart());
+			return;
+		}
+
+		if (RawCorpusFormat.isBinary(rfile))
+			encoder = new RawCorpusFormat.BlockEncoder();
+		else
+			text_buffer = ByteBuffer.allocate(RawCorpusFormat.BLOCK_SIZE);
+		channel = FileChannel.open(rfile.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		try {
+			open();
+		} catch (IOException e) {
+			close(channel);
+			if (segments != null)
+				segments.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Finds the end of the last segment of an existing file then scans what
+	 * follows, which is the whole file if it has no usable index
+	 **/
+	private void open() throws IOException {
+		if (encoder != null)
+			RawCorpusFormat.readHeader(channel);
+		long dataStart = getDataStart();
+		segments = SegmentIndex.open(raw_file, dataStart);
+		if (segments != null && !segments.matches(channel)) {
+			segments.close();
+			segments = null;
+		}
+		if (segments == null)
+			segments = SegmentIndex.create(raw_file, dataStart);
+		long start = Math.max(segments.getLength(), dataStart);
+		long[] tail;
+		try {
+			if (encoder != null)
+				tail = scanBlocks(start);
+			else
+				tail = scanLines(start);
+		} catch (Exception e) {
+			throw new IOException("Exception when reading existing raw file",
+					e);
+		}
+		long end = tail[1];
+		// drops what was not completely written
+		if (channel.size() > end)
+			channel.truncate(end);
+		if (end > start || segments.getSegmentNum() == 0) {
+			if (encoder != null)
+				writeDocCount(segments.getDocNum() + tail[0]);
+			channel.force(false);
+			segments.append(tail[0], end, SegmentIndex.checksum(channel,
+					start, end), channel);
+		}
+		channel.position(end);
+	}
+
+	/** Position of the first document in the raw file **/
+	private long getDataStart() {
+		return encoder != null ? RawCorpusFormat.HEADER_SIZE : 0;
+	}
+
+	/**
+	 * Returns the number of documents and the end of the last complete block
+	 * from a given position
+	 **/
+	private long[] scanBlocks(long position) throws IOException {
+		RawCorpusFormat.BlockDecoder decoder = new RawCorpusFormat.BlockDecoder();
+		long docs = 0;
+		while (true) {
+			long end = RawCorpusFormat.readBlock(channel, position, decoder);
+			if (end == -1)
+				break;
+			while (decoder.hasNext()) {
+				decoder.skip();
+				docs++;
 			}
+			position = end;
 		}
+		return new long[] { docs, position };
+	}
 
-		raw_file_buffer = new BufferedWriter(new FileWriter(rfile,true));
+	/**
+	 * Returns the number of documents and the end of the last complete line
+	 * from a given position
+	 **/
+	private long[] scanLines(long position) throws IOException {
+		RawLineReader reader = new RawLineReader(channel, position);
+		long docs = 0;
+		String line;
+		while ((line = reader.readLine()) != null) {
+			if (!reader.isTerminated())
+				break;
+			if (FileTrainingCorpusIterator.parse(line) != null)
+				docs++;
+			position = reader.getPosition();
+		}
+		return new long[] { docs, position };
+	}
+
+	/** Returns true if the documents are stored in the binary format **/
+	public boolean isBinary() {
+		return encoder != null;
+	}
+
+	/**
+	 * Returns the number of documents in the raw file, including the ones
+	 * added since it was opened
+	 **/
+	public long getDocNum() {
+		return segments.getDocNum() + segmentDocs;
+	}
+
+	/**
+	 * Checks the documents written before the corpus was opened or closed for
+	 * the last time against the checksums of their segments, which requires
+	 * reading them all
+	 **/
+	public boolean verify() throws IOException {
+		FileChannel file = FileChannel.open(raw_file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			return segments.verify(file);
+		} finally {
+			file.close();
+		}
 	}
 
 	// add a vectorial representation of the document to the file
 	// there is exactly one document per line
 	public void addDocument(Document doc) throws IOException {
+		segmentDocs++;
+		if (encoder != null) {
+			encoder.add(doc);
+			if (encoder.isFull())
+				writeBlock();
+			return;
+		}
 		// needs to differenciate SimpleDocuments from MultiField ones
 		// each class has its own way of serializing
-		String serial = doc.getStringSerialization();
-		raw_file_buffer.write(serial);
+		byte[] serial = doc.getStringSerialization().getBytes(
+				StandardCharsets.ISO_8859_1);
+		if (serial.length > text_buffer.remaining())
+			flushText();
+		if (serial.length > text_buffer.capacity())
+			write(ByteBuffer.wrap(serial));
+		else
+			text_buffer.put(serial);
+	}
+
+	private void writeBlock() throws IOException {
+		if (encoder.getNumDocs() == 0)
+			return;
+		write(encoder.toBlock());
+		encoder.clear();
+	}
+
+	private void flushText() throws IOException {
+		text_buffer.flip();
+		write(text_buffer);
+		text_buffer.clear();
+	}
+
+	private void write(ByteBuffer bytes) throws IOException {
+		segmentChecksum.update(bytes.array(), bytes.arrayOffset()
+				+ bytes.position(), bytes.remaining());
+		while (bytes.hasRemaining())
+			channel.write(bytes);
+	}
+
+	/** Writes the documents added but not written yet **/
+	void flush() throws IOException {
+		if (encoder != null)
+			writeBlock();
+		else
+			flushText();
+	}
+
+	/**
+	 * Writes documents serialized by a RawCorpusAppender, as blocks or lines
+	 * depending on the format of the file
+	 **/
+	void write(ByteBuffer[] chunks, int docs) throws IOException {
+		long remaining = 0;
+		for (ByteBuffer chunk : chunks) {
+			segmentChecksum.update(chunk.array(), chunk.arrayOffset()
+					+ chunk.position(), chunk.remaining());
+			remaining += chunk.remaining();
+		}
+		while (remaining > 0)
+			remaining -= channel.write(chunks);
+		segmentDocs += docs;
 	}
 
+	/**
+	 * Writes the pending documents and records them as a new segment once
+	 * they are on disk
+	 **/
 	public void close() {
+		if (!channel.isOpen())
+			return;
 		try {
-			raw_file_buffer.close();
+			flush();
+			if (segmentDocs > 0) {
+				if (encoder != null)
+					writeDocCount(getDocNum());
+				channel.force(false);
+				segments.append(segmentDocs, channel.position(),
+						(int) segmentChecksum.getValue(), channel);
+				segmentDocs = 0;
+				segmentChecksum.reset();
+			}
+		} catch (IOException e) {
+		} finally {
+			close(channel);
+			segments.close();
+		}
+	}
+
+	/** Updates the number of documents in the header of a binary file **/
+	private void writeDocCount(long count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(8);
+		buffer.putLong(0, count);
+		channel.write(buffer, RawCorpusFormat.DOC_COUNT_OFFSET);
+	}
+
+	private static void close(FileChannel channel) {
+		try {
+			channel.close();
 		} catch (IOException e) {
 		}
 	}
 
 	public Iterator<Document> iterator() {
+		if (encoder != null)
+			return new BinaryTrainingCorpusIterator(raw_file);
 		return new FileTrainingCorpusIterator(raw_file);
 	}
 
+	/**
+	 * Returns a Spliterator which splits the file on the boundaries of its
+	 * blocks in the binary format or of its lines in the text one
+	 **/
+	public Spliterator<Document> spliterator() {
+		if (encoder != null)
+			return new BinaryRawSpliterator(raw_file);
+		return new TextRawSpliterator(raw_file, 0, raw_file.length());
+	}
+
+	/**
+	 * Iterates on the documents of a raw file in the text or binary format
+	 * without opening it for writing
+	 **/
+	public static Iterator<Document> readDocuments(File raw)
+			throws IOException {
+		if (RawCorpusFormat.isBinary(raw))
+			return new BinaryTrainingCorpusIterator(raw);
+		return new FileTrainingCorpusIterator(raw);
+	}
+
 }
 
 // rebuild documents on the fly + iterate on them
@@ -106,12 +381,7 @@ class FileTrainingCorpusIterator implements java.util.Iterator<Document> {
 			while ((line = reader.readLine()) != null) {
 				// convert line into document
 				// if problem set cache to null
-				Document freshDoc = null;
-				if (line.startsWith("SimpleDocument")) {
-					freshDoc = SimpleDocument.parse(line);
-				} else if (line.startsWith("MultiFieldDocument")) {
-					freshDoc = MultiFieldDocument.parse(line);
-				}
+				Document freshDoc = parse(line);
 				if (freshDoc != null) {
 					cache = freshDoc;
 					return;
@@ -124,6 +394,15 @@ class FileTrainingCorpusIterator implements java.util.Iterator<Document> {
 		cache = null;
 	}
 
+	/** Builds a document from a line of a raw file in the text format **/
+	static Document parse(String line) {
+		if (line.startsWith("SimpleDocument"))
+			return SimpleDocument.parse(line);
+		if (line.startsWith("MultiFieldDocument"))
+			return MultiFieldDocument.parse(line);
+		return null;
+	}
+
 	public boolean hasNext() {
 		if (cache == null) {
 			try {
@@ -146,3 +425,370 @@ class FileTrainingCorpusIterator implements java.util.Iterator<Document> {
 	}
 
 }
+
+// decodes the documents of a binary raw file block by block
+class BinaryTrainingCorpusIterator implements java.util.Iterator<Document> {
+
+	private FileChannel channel;
+
+	private final RawCorpusFormat.BlockDecoder decoder = new RawCorpusFormat.BlockDecoder();
+
+	private long position = RawCorpusFormat.HEADER_SIZE;
+
+	/** end of the last complete block **/
+	private long validLength = RawCorpusFormat.HEADER_SIZE;
+
+	BinaryTrainingCorpusIterator(File f) {
+		try {
+			channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+			RawCorpusFormat.readHeader(channel);
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't read raw file " + f, e);
+		}
+	}
+
+	/**
+	 * Reads the next block, returns false at the end of the file or if the
+	 * last block is incomplete
+	 **/
+	private boolean nextBlock() throws IOException {
+		while (true) {
+			long end = RawCorpusFormat.readBlock(channel, position, decoder);
+			if (end == -1)
+				return false;
+			position = end;
+			validLength = end;
+			if (decoder.hasNext())
+				return true;
+		}
+	}
+
+	/** Returns the length of the file up to the last complete block read **/
+	long getValidLength() {
+		return validLength;
+	}
+
+	public boolean hasNext() {
+		if (channel == null)
+			return false;
+		try {
+			if (decoder.hasNext() || nextBlock())
+				return true;
+		} catch (IOException e) {
+			close();
+			throw new IllegalStateException(e);
+		}
+		close();
+		return false;
+	}
+
+	public Document next() {
+		if (!hasNext())
+			throw new NoSuchElementException();
+		try {
+			return decoder.next();
+		} catch (IOException e) {
+			close();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private void close() {
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+		}
+		channel = null;
+	}
+
+	public void remove() {
+		throw new RuntimeException("Remove operation not supported");
+	}
+
+}
+
+// splits a binary raw file on the boundaries of its blocks
+class BinaryRawSpliterator implements Spliterator<Document> {
+
+	private final File file;
+
+	/** positions of the blocks, read lazily **/
+	private long[] blocks;
+
+	private int from;
+
+	private int to;
+
+	private double docsPerBlock;
+
+	private FileChannel channel;
+
+	private final RawCorpusFormat.BlockDecoder decoder = new RawCorpusFormat.BlockDecoder();
+
+	BinaryRawSpliterator(File file) {
+		this.file = file;
+	}
+
+	private BinaryRawSpliterator(File file, long[] blocks, int from, int to,
+			double docsPerBlock) {
+		this.file = file;
+		this.blocks = blocks;
+		this.from = from;
+		this.to = to;
+		this.docsPerBlock = docsPerBlock;
+	}
+
+	private void init() {
+		if (blocks != null)
+			return;
+		long numDocs;
+		try {
+			FileChannel channel = FileChannel.open(file.toPath(),
+					StandardOpenOption.READ);
+			try {
+				// number of documents when the file was last closed
+				numDocs = RawCorpusFormat.readHeader(channel);
+				blocks = RawCorpusFormat.blockPositions(channel);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't read raw file " + file, e);
+		}
+		from = 0;
+		to = blocks.length;
+		docsPerBlock = blocks.length == 0 ? 0 : (double) numDocs
+				/ blocks.length;
+	}
+
+	public boolean tryAdvance(Consumer<? super Document> action) {
+		init();
+		try {
+			while (!decoder.hasNext()) {
+				if (from == to
+						|| RawCorpusFormat.readBlock(channel(), blocks[from++],
+								decoder) == -1) {
+					from = to;
+					close();
+					return false;
+				}
+			}
+			action.accept(decoder.next());
+			return true;
+		} catch (IOException e) {
+			close();
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private FileChannel channel() throws IOException {
+		if (channel == null)
+			channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		return channel;
+	}
+
+	private void close() {
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public Spliterator<Document> trySplit() {
+		init();
+		if (channel != null || to - from < 2)
+			return null;
+		int mid = (from + to) >>> 1;
+		Spliterator<Document> prefix = new BinaryRawSpliterator(file, blocks,
+				from, mid, docsPerBlock);
+		from = mid;
+		return prefix;
+	}
+
+	public long estimateSize() {
+		init();
+		return (long) Math.ceil((to - from) * docsPerBlock);
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+}
+
+// splits a text raw file on the boundaries of its lines, a line belonging to
+// the split where it starts
+class TextRawSpliterator implements Spliterator<Document> {
+
+	/** don't split below 1MB **/
+	private static final long MIN_SPLIT = 1 << 20;
+
+	private final File file;
+
+	private long start;
+
+	private final long end;
+
+	private FileChannel channel;
+
+	private RawLineReader reader;
+
+	TextRawSpliterator(File file, long start, long end) {
+		this.file = file;
+		this.start = start;
+		this.end = end;
+	}
+
+	public boolean tryAdvance(Consumer<? super Document> action) {
+		try {
+			if (channel == null)
+				open();
+			String line;
+			while (reader != null && reader.getPosition() < end
+					&& (line = reader.readLine()) != null) {
+				Document doc = FileTrainingCorpusIterator.parse(line);
+				if (doc != null) {
+					action.accept(doc);
+					return true;
+				}
+			}
+		} catch (IOException e) {
+			close();
+			throw new IllegalStateException(e);
+		}
+		close();
+		return false;
+	}
+
+	private void open() throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		reader = new RawLineReader(channel, start);
+		if (start > 0) {
+			ByteBuffer previous = ByteBuffer.allocate(1);
+			RawCorpusFormat.readFully(channel, previous, start - 1);
+			// the line started before is read by the previous split
+			if (previous.get(0) != '\n')
+				reader.readLine();
+		}
+	}
+
+	private void close() {
+		reader = null;
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	public Spliterator<Document> trySplit() {
+		if (channel != null || end - start < 2 * MIN_SPLIT)
+			return null;
+		long mid = start + (end - start) / 2;
+		Spliterator<Document> prefix = new TextRawSpliterator(file, start, mid);
+		start = mid;
+		return prefix;
+	}
+
+	/** estimated from the number of bytes **/
+	public long estimateSize() {
+		return end - start;
+	}
+
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+}
+
+// reads the lines of a text raw file from a given position
+class RawLineReader {
+
+	private final FileChannel channel;
+
+	private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+	private boolean eof = false;
+
+	/** position in the file of the next byte of buffer **/
+	private long position;
+
+	private final StringBuilder line = new StringBuilder();
+
+	private boolean terminated = false;
+
+	RawLineReader(FileChannel channel, long position) {
+		this.channel = channel;
+		this.position = position;
+		buffer.limit(0);
+	}
+
+	/** Position in the file of the next line **/
+	long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Returns false if the last line read was not followed by a line end,
+	 * i.e. it was at the end of the file
+	 **/
+	boolean isTerminated() {
+		return terminated;
+	}
+
+	/** Reads the next line without its end, returns null at the end **/
+	String readLine() throws IOException {
+		line.setLength(0);
+		terminated = false;
+		boolean read = false;
+		while (true) {
+			if (!buffer.hasRemaining()) {
+				if (eof || !fill())
+					return read ? trim(line.toString()) : null;
+			}
+			read = true;
+			byte[] bytes = buffer.array();
+			int from = buffer.position();
+			int to = buffer.limit();
+			int i = from;
+			while (i < to && bytes[i] != '\n')
+				i++;
+			if (i < to) {
+				buffer.position(i + 1);
+				position += i + 1 - from;
+				terminated = true;
+				// the raw files are ASCII
+				String last = new String(bytes, from, i - from,
+						StandardCharsets.ISO_8859_1);
+				if (line.length() == 0)
+					return trim(last);
+				return trim(line.append(last).toString());
+			}
+			line.append(new String(bytes, from, to - from,
+					StandardCharsets.ISO_8859_1));
+			buffer.position(to);
+			position += to - from;
+		}
+	}
+
+	private static String trim(String line) {
+		if (line.endsWith("\r"))
+			return line.substring(0, line.length() - 1);
+		return line;
+	}
+
+	private boolean fill() throws IOException {
+		buffer.clear();
+		int n = channel.read(buffer, position);
+		if (n <= 0) {
+			eof = true;
+			buffer.limit(0);
+			return false;
+		}
+		buffer.flip();
+		return true;
+	}
+
+}
@@ -36,6 +36,10 @@ public abstract class Learner {
 
 	private int keepNBestAttributes = -1;
 
+	private boolean binaryLexicon = false;
+
+	private boolean binaryRawCorpus = false;
+
 	/* Names of the implementation available */
 	public static final String LibSVMModelCreator = "LibSVMModelCreator";
 
@@ -46,6 +50,53 @@ public abstract class Learner {
 		this.lexicon.setMethod(method);
 	}
 
+	/**
+	 * Specify whether the lexicon is saved in the binary format, which loads
+	 * faster and can be memory-mapped by the classifiers, or in the text
+	 * format which is the default and can be read by older versions and
+	 * other tools
+	 **/
+	public void setBinaryLexicon(boolean binary) {
+		this.binaryLexicon = binary;
+	}
+
+	/**
+	 * Specify whether a new raw file is written in the binary format, which
+	 * is smaller and faster to iterate on, or in the text format with one
+	 * document per line which is the default. An existing raw file keeps its
+	 * format.
+	 **/
+	public void setBinaryRawCorpus(boolean binary) {
+		this.binaryRawCorpus = binary;
+	}
+
+	/**
+	 * Allows several threads to call createDocument at the same time, see
+	 * Lexicon.setConcurrent(). The lexicon goes back to the normal mode when
+	 * the vectors are generated.
+	 **/
+	public void setConcurrent(boolean concurrent) {
+		this.lexicon.setConcurrent(concurrent);
+	}
+
+	/**
+	 * Uses the hashing mode of the lexicon with 2^bits attributes, see
+	 * Lexicon.setHashing(). Must be called before the first document is
+	 * created.
+	 **/
+	public void setHashing(int bits) {
+		this.lexicon.setHashing(bits);
+	}
+
+	/**
+	 * Only gives an attribute to the terms found in at least minDocFreq
+	 * documents, tracking at most maxCandidates terms until then, see
+	 * Lexicon.setAdmission(). Must be called before the documents are created.
+	 **/
+	public void setAdmission(int minDocFreq, int maxCandidates) {
+		this.lexicon.setAdmission(minDocFreq, maxCandidates);
+	}
+
 	/** Specify whether or not the vectors have to be normalized * */
 	public void setNormalization(boolean norm) {
 		this.lexicon.setNormalizeVector(norm);
@@ -75,8 +126,8 @@ public abstract class Learner {
 
 	public Document createDocument(Field[] fields, String label) {
 		this.lexicon.incrementDocCount();
-		MultiFieldDocument doc = new MultiFieldDocument(fields, this.lexicon,
-				true);
+		MultiFieldDocument doc = DocumentBuilder.forCurrentThread().build(
+				fields, this.lexicon, true);
 		doc.setLabel(this.lexicon.getLabelIndex(label));
 		return doc;
 	}
@@ -86,7 +137,8 @@ public abstract class Learner {
 	 */
 	public Document createDocument(String[] tokenstring) {
 		this.lexicon.incrementDocCount();
-		return new SimpleDocument(tokenstring, this.lexicon, true);
+		return DocumentBuilder.forCurrentThread().build(tokenstring,
+				this.lexicon, true);
 	}
 
 	/**
@@ -94,7 +146,8 @@ public abstract class Learner {
 	 */
 	public Document createDocument(String[] tokenstring, String label) {
 		this.lexicon.incrementDocCount();
-		SimpleDocument doc = new SimpleDocument(tokenstring, this.lexicon, true);
+		SimpleDocument doc = DocumentBuilder.forCurrentThread().build(
+				tokenstring, this.lexicon, true);
 		doc.setLabel(this.lexicon.getLabelIndex(label));
 		return doc;
 	}
@@ -113,7 +166,7 @@ public abstract class Learner {
 		internal_learn();
 		// save the lexicon so that we can get the linear weights for the
 		// attributes
-		this.lexicon.saveToFile(this.lexiconLocation);
+		writeLexicon();
 	}
 
 	/***************************************************************************
@@ -124,6 +177,8 @@ public abstract class Learner {
 	 * @throws Exception
 	 **************************************************************************/
 	public void generateVectorFile(TrainingCorpus corpus) throws Exception {
+		// all the documents have been created
+		this.lexicon.setConcurrent(false);
 
 		if (this.lexicon.getLabelNum() < 2) {
 			throw new Exception(
@@ -155,7 +210,7 @@ public abstract class Learner {
 			this.lexicon.applyAttributeFilter(scorer, keepNBestAttributes);
 		}
 		// saves the lexicon
-		this.lexicon.saveToFile(this.lexiconLocation);
+		writeLexicon();
 
 		// action specific to each learner implementation
 		internal_generateVector(corpus);
@@ -164,17 +219,24 @@ public abstract class Learner {
 	public boolean saveLexicon() {
 		try {
 			this.lexicon.setClassifierType(getClassifierType());
-			this.lexicon.saveToFile(this.lexiconLocation);
+			writeLexicon();
 		} catch (IOException e) {
 			return false;
 		}
 		return true;
 	}
 
+	private void writeLexicon() throws IOException {
+		if (binaryLexicon)
+			this.lexicon.saveToBinaryFile(this.lexiconLocation);
+		else
+			this.lexicon.saveToFile(this.lexiconLocation);
+	}
+
 	/** Returns a new or existing Training Corpus backed by a file **/
 	public FileTrainingCorpus getFileTrainingCorpus() throws IOException {
 		File raw_file = new File(workdirectory, Parameters.rawName);
-		return new FileTrainingCorpus(raw_file);
+		return new FileTrainingCorpus(raw_file, binaryRawCorpus);
 	}
 
 	/**
@@ -16,41 +16,109 @@
 
 package com.digitalpebble.classification;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import com.digitalpebble.classification.Parameters.WeightingMethod;
+import com.digitalpebble.classification.util.MappedFile;
+import com.digitalpebble.classification.util.MurmurHash3;
+import com.digitalpebble.classification.util.dictionary.BloomFilterTermDictionary;
+import com.digitalpebble.classification.util.dictionary.HashTermDictionary;
+import com.digitalpebble.classification.util.dictionary.MappedTermDictionary;
+import com.digitalpebble.classification.util.dictionary.PerfectHashTermDictionary;
+import com.digitalpebble.classification.util.dictionary.StripedTermDictionary;
+import com.digitalpebble.classification.util.dictionary.TermDictionary;
 import com.digitalpebble.classification.util.scorers.AttributeScorer;
 
 /**
  * A lexicon contains all the information about the tokens used during learning
- * and ensures that the same mapping is used during classification
+ * and ensures that the same mapping is used during classification.
+ * <p>
+ * A lexicon is not thread-safe while it is being modified, e.g. when documents
+ * are created by a Learner. Once it is only read, as is the case for the
+ * lexicon of a TextClassifier, any number of threads can look up terms and
+ * build the vectors of documents concurrently.
  */
 public class Lexicon {
 
-	private TreeMap<String, int[]> tokenForm2index;
+	private TermDictionary tokenForm2index;
 
-	private TreeMap<Integer, int[]> index2docfreq;
+	/** First bytes of a lexicon saved in the binary format : "TCLX" **/
+	private static final int BINARY_MAGIC = 0x54434C58;
 
-	private int nextAttributeID = 1;
+	private static final int BINARY_VERSION = 4;
+
+	/** positions of the sections, counts and magic number **/
+	private static final int BINARY_FOOTER_SIZE = 3 * 8 + 4 * 4;
+
+	/** version 3 had no hashing bits in the header **/
+	private static final int BINARY_VERSION_V3 = 3;
+
+	/** version 2 had no perfect hash section **/
+	private static final int BINARY_FOOTER_SIZE_V2 = 2 * 8 + 4 * 4;
+
+	/** Value of the doc frequency for the attributes which have been pruned **/
+	private static final int PRUNED = -1;
+
+	/** Line preceding the buckets in the text format of a hashing lexicon **/
+	private static final String HASHING_MARKER = "#hashing:";
+
+	/** Seed of the hash function used by the hashing mode **/
+	private static final int HASHING_SEED = 0x5443;
+
+	/**
+	 * number of bits of the hash used as attribute ID in hashing mode, 0 if
+	 * the terms are stored in the dictionary
+	 **/
+	private int hashingBits = 0;
+
+	/** document frequencies indexed by attribute ID **/
+	private int[] index2docfreq;
+
+	/**
+	 * doc frequencies of a read-only binary lexicon, read from the mapped
+	 * file instead of index2docfreq
+	 **/
+	private MappedFile docFreqFile;
+
+	private long docFreqStart;
+
+	/** true once the lexicon is mapped or frozen **/
+	private boolean readOnly = false;
+
+	private final AtomicInteger nextAttributeID = new AtomicInteger(1);
+
+	/** doc frequencies used instead of index2docfreq in concurrent mode **/
+	private AtomicDocFreqs atomicDocFreqs;
+
+	/** decides which new terms get an ID, null if they all do **/
+	private TermAdmission admission;
 
 	// private int method_used = Parameters.method_frequency;
 	private Parameters.WeightingMethod method_used = Parameters.WeightingMethod.FREQUENCY;
 
-	private int docNum = 0;
+	private final AtomicInteger docNum = new AtomicInteger();
 
 	private boolean normalizeVector = true;
 
@@ -58,13 +126,14 @@ public class Lexicon {
 
 	// private double[] loglikelihoodratio;
 
-	private List<String> labels;
+	/** copied on write so that it can be read without locking **/
+	private final List<String> labels = new CopyOnWriteArrayList<String>();
 
 	/** a learner can specify which classifier to use* */
 	private String classifierType;
 
 	/** list of fields used by a corpus * */
-	private Map<String, Integer> fields = new HashMap<String, Integer>();
+	private Map<String, Integer> fields = new ConcurrentHashMap<String, Integer>();
 
 	/** Custom weighting schemes for fields **/
 	private Map<String, WeightingMethod> customWeights = new HashMap<String, WeightingMethod>();
@@ -73,49 +142,274 @@ public class Lexicon {
 
 	private AttributeScorer filter;
 
+	/** weighting information used by the documents, rebuilt on demand **/
+	private volatile ScoringPlan scoringPlan;
+
 	// creates a new lexicon
 	public Lexicon() {
-		tokenForm2index = new TreeMap<String, int[]>();
-		index2docfreq = new TreeMap();
-		labels = new ArrayList<String>();
+		this(new HashTermDictionary());
+	}
+
+	/** Creates a new lexicon which stores its terms in a specific dictionary **/
+	public Lexicon(TermDictionary dictionary) {
+		tokenForm2index = dictionary;
+		index2docfreq = new int[16];
 	}
 
 	// loads a new lexicon
 	public Lexicon(String file) throws IOException {
+		this(file, false);
+	}
+
+	/**
+	 * Loads a lexicon from a text or binary file. If readOnly is true the
+	 * terms and doc frequencies of a binary file are read from a
+	 * memory-mapped view of the file instead of being loaded, which is faster
+	 * and keeps the heap footprint small whatever the number of terms but
+	 * prevents the lexicon from being modified.
+	 **/
+	public Lexicon(String file, boolean readOnly) throws IOException {
 		this();
-		this.loadFromFile(file);
+		if (isBinaryFile(file))
+			this.loadFromBinaryFile(file, readOnly);
+		else
+			this.loadFromFile(file);
 	}
 
 	/**
 	 * Adjust the indices of the attributes so that maxAttributeID ==
-	 * getAttributesNum. Returns a Map containing the mapping between the old
-	 * indices and the new ones.
+	 * getAttributesNum, the attributes being numbered in the alphabetical
+	 * order of their terms. Returns a Map containing the mapping between the
+	 * old indices and the new ones. The IDs of a hashing lexicon are given by
+	 * the hash function and cannot change, null is returned.
+	 * 
+	 * @deprecated use compactIndices(), whose table avoids boxing the IDs and
+	 *             which keeps the order of the attributes
 	 **/
+	@Deprecated
 	public Map<Integer, Integer> compact() {
+		int[] oldToNew = compactIndices(Order.TERM);
+		if (oldToNew == null)
+			return null;
 		Map<Integer, Integer> equiv = new HashMap<Integer, Integer>();
+		for (int oldIndex = 0; oldIndex < oldToNew.length; oldIndex++)
+			if (oldToNew[oldIndex] != -1)
+				equiv.put(oldIndex, oldToNew[oldIndex]);
+		return equiv;
+	}
 
-		TreeMap<Integer, int[]> newIndex2docfreq = new TreeMap<Integer, int[]>();
+	/**
+	 * Adjust the indices of the attributes so that maxAttributeID ==
+	 * getAttributesNum. The attributes keep their relative order. Returns a
+	 * table giving the new index of each old one, or -1 for the attributes
+	 * which are not in the lexicon, to be passed to
+	 * Document.getFeatureVector(Lexicon, int[]); as the order is kept the
+	 * attributes of the documents do not need to be sorted again. The IDs of
+	 * a hashing lexicon are given by the hash function and cannot change,
+	 * null is returned. A read-only lexicon, i.e. mapped or frozen, can't be
+	 * compacted.
+	 **/
+	public int[] compactIndices() {
+		return compactIndices(Order.ID);
+	}
+
+	/**
+	 * Same as compactIndices() but the attributes are numbered by decreasing
+	 * doc frequency, ties being broken by their old IDs. The attributes
+	 * found in most documents get the smallest IDs so that the weights the
+	 * classifiers read for a document are packed at the start of their
+	 * arrays instead of being scattered over the whole model. The order of
+	 * the attributes changes : the documents are sorted again when the
+	 * table is passed to Document.getFeatureVector(Lexicon, int[]) or
+	 * LexiconMapping.remap(), which must be used to rewrite the raw files
+	 * built with the old IDs, see CorpusUtils.compactAttributes(). Returns
+	 * null in hashing mode.
+	 **/
+	public int[] compactIndicesByDocFreq() {
+		return compactIndices(Order.DOC_FREQ);
+	}
+
+	/** Orders in which the attributes can be numbered by compactIndices() **/
+	private enum Order {
+		ID, DOC_FREQ, TERM
+	}
 
-		// iterate on the map token -> Id and change the latter
-		Iterator<Entry<String, int[]>> iter = tokenForm2index.entrySet().iterator();
-		nextAttributeID = 1;
-		while (iter.hasNext()) {
-			Entry<String, int[]> entry = iter.next();
-			int oldIndex = entry.getValue()[0];
-			int newIndex = nextAttributeID;
-			entry.setValue(new int[] { newIndex });
-			// store the equivalence in the map
-			equiv.put(oldIndex, newIndex);
-			// populate the doc freq
-			int[] docFreq = index2docfreq.get(oldIndex);
-			newIndex2docfreq.put(newIndex, docFreq);
-			nextAttributeID++;
+	private int[] compactIndices(Order order) {
+		if (readOnly)
+			throw new UnsupportedOperationException("Lexicon is read-only");
+		if (hashingBits != 0)
+			return null;
+		// the doc freqs of a concurrent lexicon are moved back to the array
+		setConcurrent(false);
+		int[] oldToNew = new int[nextAttributeID.get()];
+		Arrays.fill(oldToNew, -1);
+		TermDictionary.Cursor cursor = tokenForm2index.cursor();
+		while (cursor.next())
+			oldToNew[cursor.id()] = 0;
+
+		int[] newIndex2docfreq = new int[tokenForm2index.size() + 1];
+		int nextID = 1;
+		if (order == Order.DOC_FREQ) {
+			// sort on (docfreq desc, old ID asc) packed in a long
+			long[] sorted = new long[tokenForm2index.size()];
+			int num = 0;
+			for (int oldIndex = 0; oldIndex < oldToNew.length; oldIndex++) {
+				if (oldToNew[oldIndex] == -1)
+					continue;
+				long docfreq = getDocFreq(oldIndex);
+				sorted[num++] = ((Integer.MAX_VALUE - docfreq) << 32) | oldIndex;
+			}
+			Arrays.sort(sorted, 0, num);
+			for (int i = 0; i < num; i++) {
+				int oldIndex = (int) sorted[i];
+				oldToNew[oldIndex] = nextID;
+				newIndex2docfreq[nextID] = getDocFreq(oldIndex);
+				nextID++;
+			}
+		} else if (order == Order.TERM) {
+			// number the attributes in the alphabetical order of their terms
+			TermDictionary.Cursor terms = tokenForm2index.sortedCursor();
+			while (terms.next()) {
+				int oldIndex = terms.id();
+				oldToNew[oldIndex] = nextID;
+				newIndex2docfreq[nextID] = getDocFreq(oldIndex);
+				nextID++;
+			}
+		} else {
+			// number the attributes in the order of their old IDs
+			for (int oldIndex = 0; oldIndex < oldToNew.length; oldIndex++) {
+				if (oldToNew[oldIndex] == -1)
+					continue;
+				oldToNew[oldIndex] = nextID;
+				newIndex2docfreq[nextID] = getDocFreq(oldIndex);
+				nextID++;
+			}
 		}
+		cursor = tokenForm2index.cursor();
+		while (cursor.next())
+			cursor.setId(oldToNew[cursor.id()]);
 
 		// swap the doc freq
 		index2docfreq = newIndex2docfreq;
+		this.nextAttributeID.set(nextID);
+		scoringPlan = null;
 
-		return equiv;
+		return oldToNew;
+	}
+
+	/**
+	 * Adds the content of lexicons built separately, e.g. by several threads
+	 * or machines on partitions of a corpus, to this one : the terms are
+	 * added with new IDs if they are not known yet, their doc frequencies and
+	 * the numbers of documents are summed and the labels and fields are
+	 * created if needed. The weighting schemes, normalisation and classifier
+	 * type of this lexicon are kept, the custom weighting of a field being
+	 * taken from the first partition which has one if this lexicon has none.
+	 * The new terms of a partition get their IDs in alphabetical order so the
+	 * result only depends on the order of the partitions.
+	 * <p>
+	 * Returns for each partition the mapping of its IDs to the ones of this
+	 * lexicon, which is used to convert the documents of the partition, e.g.
+	 * with CorpusUtils.remapRawFile(). The partitions are not modified but
+	 * must be able to iterate on their terms, i.e. not be frozen. All must
+	 * use the hashing mode with the same number of bits or none of them.
+	 **/
+	public LexiconMapping[] merge(Lexicon... partitions) {
+		if (readOnly)
+			throw new UnsupportedOperationException("Lexicon is read-only");
+		for (Lexicon partition : partitions)
+			if (partition.hashingBits != hashingBits)
+				throw new IllegalArgumentException(
+						"Can't merge lexicons with different hashing modes");
+		setConcurrent(false);
+		LexiconMapping[] mappings = new LexiconMapping[partitions.length];
+		for (int p = 0; p < partitions.length; p++) {
+			Lexicon partition = partitions[p];
+			String[] partitionLabels = partition.getLabels();
+			int[] labelMap = new int[partitionLabels.length];
+			for (int l = 0; l < partitionLabels.length; l++)
+				labelMap[l] = getLabelIndex(partitionLabels[l]);
+			String[] partitionFields = partition.getFields();
+			int[] fieldMap = new int[partitionFields.length];
+			for (int f = 0; f < partitionFields.length; f++) {
+				String name = partitionFields[f];
+				WeightingMethod method = partition.customWeights.get(name);
+				if (method != null && !customWeights.containsKey(name))
+					customWeights.put(name, method);
+				fieldMap[f] = getFieldID(name, true).intValue();
+			}
+
+			int[] attributeMap = null;
+			if (hashingBits != 0) {
+				// same IDs, only the doc frequencies are summed
+				for (int index = 1; index <= partition.maxAttributeID(); index++)
+					addDocFreq(index, partition.getDocFreq(index));
+			} else {
+				attributeMap = new int[partition.maxAttributeID() + 1];
+				Arrays.fill(attributeMap, -1);
+				TermDictionary.Cursor cursor = partition.tokenForm2index
+						.sortedCursor();
+				while (cursor.next()) {
+					String term = cursor.term();
+					int index = tokenForm2index.get(term);
+					if (index == TermDictionary.NOT_FOUND) {
+						index = nextAttributeID.getAndIncrement();
+						tokenForm2index.put(term, index);
+					}
+					attributeMap[cursor.id()] = index;
+					addDocFreq(index, partition.getDocFreq(cursor.id()));
+				}
+			}
+			docNum.addAndGet(partition.getDocNum());
+			mappings[p] = new LexiconMapping(attributeMap, labelMap, fieldMap);
+		}
+		scoringPlan = null;
+		return mappings;
+	}
+
+	/**
+	 * Returns an empty lexicon with the weighting schemes, normalisation,
+	 * classifier type and hashing mode of this one, e.g. to merge the
+	 * lexicons of partitions built with the same settings
+	 **/
+	public Lexicon emptyCopy() {
+		Lexicon copy = new Lexicon();
+		copy.method_used = method_used;
+		copy.customWeights.putAll(customWeights);
+		copy.normalizeVector = normalizeVector;
+		copy.classifierType = classifierType;
+		if (hashingBits != 0)
+			copy.setHashing(hashingBits);
+		return copy;
+	}
+
+	/**
+	 * Returns true if another lexicon has the same weighting schemes,
+	 * normalisation, classifier type and hashing mode as this one
+	 **/
+	public boolean hasSameSettings(Lexicon other) {
+		return method_used == other.method_used
+				&& customWeights.equals(other.customWeights)
+				&& normalizeVector == other.normalizeVector
+				&& (classifierType == null ? other.classifierType == null
+						: classifierType.equals(other.classifierType))
+				&& hashingBits == other.hashingBits;
+	}
+
+	/** Adds several documents to the doc frequency of an attribute **/
+	private void addDocFreq(int index, int docFreq) {
+		if (docFreq <= 0)
+			return;
+		if (atomicDocFreqs != null) {
+			atomicDocFreqs.add(index, docFreq);
+		} else {
+			ensureDocFreqCapacity(index);
+			if (index2docfreq[index] == PRUNED)
+				index2docfreq[index] = 0;
+			index2docfreq[index] += docFreq;
+		}
+		if (scoringPlan != null)
+			scoringPlan = null;
 	}
 
 	/**
@@ -137,6 +431,7 @@ public class Lexicon {
 	/** Sets the default weighting scheme **/
 	public void setMethod(WeightingMethod method) {
 		this.method_used = method;
+		scoringPlan = null;
 	}
 
 	/** Sets the weighting scheme for a specific field **/
@@ -144,6 +439,7 @@ public class Lexicon {
 		WeightingMethod existingmethod = this.customWeights.get(fieldName);
 		if (existingmethod == null) {
 			this.customWeights.put(fieldName, method);
+			scoringPlan = null;
 			return;
 		}
 		// already one specified : check that it is the same as the one we have
@@ -153,7 +449,7 @@ public class Lexicon {
 	}
 
 	public int getDocNum() {
-		return this.docNum;
+		return this.docNum.get();
 	}
 
 	public int getLabelNum() {
@@ -166,21 +462,35 @@ public class Lexicon {
 			// field does not exist
 			if (!create)
 				return new Integer(-1);
-			fields.put(fieldName, ++lastFieldId);
-			return Integer.valueOf(lastFieldId);
+			// the fields can be created by several threads
+			synchronized (fields) {
+				id = fields.get(fieldName);
+				if (id == null) {
+					id = Integer.valueOf(++lastFieldId);
+					fields.put(fieldName, id);
+					scoringPlan = null;
+				}
+			}
 		}
 		return id;
 	}
 
+	/** Returns the number of fields without building their list **/
+	int getFieldNum() {
+		return fields.size();
+	}
+
 	public String[] getFields() {
-		String[] ff = new String[fields.size()];
-		Iterator iter = fields.keySet().iterator();
-		while (iter.hasNext()) {
-			String fname = (String) iter.next();
-			Integer integ = fields.get(fname);
-			ff[integ.intValue()] = fname;
+		synchronized (fields) {
+			String[] ff = new String[fields.size()];
+			Iterator iter = fields.keySet().iterator();
+			while (iter.hasNext()) {
+				String fname = (String) iter.next();
+				Integer integ = fields.get(fname);
+				ff[integ.intValue()] = fname;
+			}
+			return ff;
 		}
-		return ff;
 	}
 
 	public String[] getLabels() {
@@ -191,7 +501,24 @@ public class Lexicon {
 	}
 
 	public void incrementDocCount() {
-		this.docNum++;
+		this.docNum.incrementAndGet();
+		// avoids writing the volatile field for each document
+		if (scoringPlan != null)
+			scoringPlan = null;
+	}
+
+	/**
+	 * Returns the weighting information used for building the vectors of the
+	 * documents. The plan is discarded whenever the number of documents, the
+	 * doc frequencies or the weighting schemes change.
+	 **/
+	ScoringPlan getScoringPlan() {
+		ScoringPlan plan = scoringPlan;
+		if (plan == null) {
+			plan = new ScoringPlan(this);
+			scoringPlan = plan;
+		}
+		return plan;
 	}
 
 	/**
@@ -203,10 +530,37 @@ public class Lexicon {
 	 */
 	public int getIndex(String tokenForm) {
 		// tokenForm = tokenForm.replaceAll("\\W+", "_");
-		int[] index = (int[]) tokenForm2index.get(tokenForm);
-		if (index == null)
-			return -1;
-		return index[0];
+		if (hashingBits != 0)
+			return Math.abs(signedIndex(MurmurHash3.hash(tokenForm,
+					HASHING_SEED)));
+		return tokenForm2index.get(tokenForm);
+	}
+
+	/**
+	 * Same as getIndex(String) for a term held in a region of a char array,
+	 * saves creating a String for each token
+	 **/
+	public int getIndex(char[] buffer, int offset, int length) {
+		if (hashingBits != 0)
+			return Math.abs(getSignedIndex(buffer, offset, length));
+		return tokenForm2index.get(buffer, offset, length);
+	}
+
+	/**
+	 * Returns the attribute ID of a term in hashing mode, negated if the
+	 * occurrences of the term must be subtracted from the value of the
+	 * attribute. The sign comes from another bit of the hash so that the
+	 * terms sharing an attribute cancel out on average instead of adding up.
+	 **/
+	int getSignedIndex(char[] buffer, int offset, int length) {
+		return signedIndex(MurmurHash3.hash(buffer, offset, length,
+				HASHING_SEED));
+	}
+
+	/** ID between 1 and 2^hashingBits from the low bits, sign from the top one **/
+	private int signedIndex(int hash) {
+		int index = (hash & ((1 << hashingBits) - 1)) + 1;
+		return hash < 0 ? -index : index;
 	}
 
 	/***************************************************************************
@@ -214,36 +568,51 @@ public class Lexicon {
 	 * term is unknown or has been filtered
 	 **************************************************************************/
 	public int getDocFreq(int term) {
-		int[] docfreq = (int[]) this.index2docfreq.get(Integer.valueOf(term));
-		if (docfreq == null)
+		if (docFreqFile != null) {
+			if (term < 0 || term >= nextAttributeID.get())
+				return 0;
+			return docFreqFile.getInt(docFreqStart + 4l * term);
+		}
+		if (atomicDocFreqs != null) {
+			if (term < 0)
+				return 0;
+			return atomicDocFreqs.get(term);
+		}
+		if (term < 0 || term >= index2docfreq.length)
+			return 0;
+		int docfreq = index2docfreq[term];
+		if (docfreq == PRUNED)
 			return 0;
-		return docfreq[0];
+		return docfreq;
 	}
 
 	public void pruneTermsDocFreq(int mindn, int maxdocs) {
+		setConcurrent(false);
+		if (hashingBits != 0) {
+			for (int index = 1; index < index2docfreq.length; index++) {
+				int docfreq = getDocFreq(index);
+				if (docfreq != 0 && ((docfreq < mindn) || (docfreq > maxdocs)))
+					index2docfreq[index] = PRUNED;
+			}
+			scoringPlan = null;
+			return;
+		}
 		// iterate on the terms
 		// and remove them if they are below or above
 		// the expected number of documents
-		Iterator termIter = this.tokenForm2index.keySet().iterator();
-		List terms2remove = new ArrayList();
-		while (termIter.hasNext()) {
-			String term = (String) termIter.next();
-			int[] index = this.tokenForm2index.get(term);
+		TermDictionary.Cursor cursor = this.tokenForm2index.cursor();
+		while (cursor.next()) {
+			int index = cursor.id();
 			// get the docFreq
-			int[] docfreq = (int[]) this.index2docfreq
-					.get(new Integer(index[0]));
-			if ((docfreq[0] < mindn) || (docfreq[0] > maxdocs)) {
+			int docfreq = getDocFreq(index);
+			if ((docfreq < mindn) || (docfreq > maxdocs)) {
 				// remove it!
-				terms2remove.add(term);
+				cursor.remove();
+				this.index2docfreq[index] = PRUNED;
+				scoringPlan = null;
 			}
 		}
 
-		for (int i = 0; i < terms2remove.size(); i++) {
-			String term = (String) terms2remove.get(i);
-			int[] index = this.tokenForm2index.remove(term);
-			this.index2docfreq.remove(Integer.valueOf(index[0]));
-		}
-
 	}
 
 	/** Keep the top n attributes according to an AttributeFilter* */
@@ -252,62 +621,234 @@ public class Lexicon {
 			return;
 		if (rank >= this.getAttributesNum())
 			return;
+		setConcurrent(false);
 		// get the threshold
 		double threshold = filter.getValueForRank(rank);
+		if (hashingBits != 0) {
+			for (int index = 1; index < index2docfreq.length; index++) {
+				if (getDocFreq(index) != 0
+						&& filter.getScore(index) < threshold)
+					index2docfreq[index] = PRUNED;
+			}
+			scoringPlan = null;
+			return;
+		}
 		// iterate on the attributes
 		// and remove them if their LLR score is below the threshold
-		Iterator termIter = this.tokenForm2index.keySet().iterator();
-		List terms2remove = new ArrayList();
-		while (termIter.hasNext()) {
-			String term = (String) termIter.next();
-			int[] index = this.tokenForm2index.get(term);
+		TermDictionary.Cursor cursor = this.tokenForm2index.cursor();
+		while (cursor.next()) {
+			int index = cursor.id();
 			// get the score
 			// TODO what if we are getting -1
-			if (filter.getScore(index[0]) < threshold)
-				terms2remove.add(term);
-		}
-		for (int i = 0; i < terms2remove.size(); i++) {
-			String term = (String) terms2remove.get(i);
-			int[] index = this.tokenForm2index.remove(term);
-			this.index2docfreq.remove(Integer.valueOf(index[0]));
+			if (filter.getScore(index) < threshold) {
+				cursor.remove();
+				this.index2docfreq[index] = PRUNED;
+				scoringPlan = null;
+			}
 		}
 	}
 
 	// creates an entry for the token
 	// called from Document
+	// returns -1 if the term has not been admitted
 	public int createIndex(String tokenForm) {
-		int[] index = (int[]) tokenForm2index.get(tokenForm);
-		if (index == null) {
-			index = new int[] { nextAttributeID };
-			tokenForm2index.put(tokenForm, index);
-			nextAttributeID++;
+		int index;
+		if (admission != null && hashingBits == 0) {
+			index = tokenForm2index.get(tokenForm);
+			if (index == TermDictionary.NOT_FOUND) {
+				// the term must only be promoted once
+				synchronized (admission) {
+					index = tokenForm2index.get(tokenForm);
+					if (index == TermDictionary.NOT_FOUND) {
+						int docFreq = admission.admit(tokenForm);
+						if (docFreq == 0)
+							return -1;
+						index = nextAttributeID.getAndIncrement();
+						tokenForm2index.put(tokenForm, index);
+						// counts the documents seen as a candidate
+						addDocFreq(index, docFreq);
+						return index;
+					}
+				}
+			}
+		} else if (hashingBits != 0) {
+			index = getIndex(tokenForm);
+		} else if (atomicDocFreqs != null) {
+			// lookup and insertion must be atomic
+			index = ((StripedTermDictionary) tokenForm2index).putIfAbsent(
+					tokenForm, nextAttributeID::getAndIncrement);
+		} else {
+			index = tokenForm2index.get(tokenForm);
+			if (index == TermDictionary.NOT_FOUND) {
+				index = nextAttributeID.getAndIncrement();
+				tokenForm2index.put(tokenForm, index);
+			}
 		}
 		// add information about number of documents
 		// for the term
-		Integer integ = Integer.valueOf(index[0]);
-		int[] docfreq = (int[]) this.index2docfreq.get(integ);
-		if (docfreq == null) {
-			docfreq = new int[] { 0 };
-			index2docfreq.put(integ, docfreq);
+		incrementDocFreq(index);
+		return index;
+	}
+
+	/**
+	 * Switches the lexicon to a mode where several threads can create
+	 * documents at the same time, e.g. with Learner.createDocument. The terms
+	 * are then held in a StripedTermDictionary, their IDs are allocated
+	 * atomically and the doc frequencies, number of documents, labels and
+	 * fields can be incremented concurrently. The IDs are given in the order
+	 * in which the terms are created, so they are the same as in the normal
+	 * mode if the documents are created in the same order. Switching back
+	 * copies the terms and doc frequencies to the usual structures, which is
+	 * done automatically before the lexicon is pruned, filtered, compacted or
+	 * frozen. Switching must not be done while documents are being created.
+	 **/
+	public void setConcurrent(boolean concurrent) {
+		if (concurrent == (atomicDocFreqs != null))
+			return;
+		if (concurrent && readOnly)
+			throw new UnsupportedOperationException("Lexicon is read-only");
+		TermDictionary dictionary = concurrent ? new StripedTermDictionary()
+				: new HashTermDictionary(tokenForm2index.size());
+		TermDictionary.Cursor cursor = tokenForm2index.cursor();
+		while (cursor.next())
+			dictionary.put(cursor.term(), cursor.id());
+		if (concurrent) {
+			atomicDocFreqs = new AtomicDocFreqs(index2docfreq, Math.min(
+					index2docfreq.length, nextAttributeID.get()));
+		} else {
+			index2docfreq = atomicDocFreqs.toArray(Math.max(16,
+					nextAttributeID.get()));
+			atomicDocFreqs = null;
+		}
+		tokenForm2index = dictionary;
+		scoringPlan = null;
+	}
+
+	public boolean isConcurrent() {
+		return atomicDocFreqs != null;
+	}
+
+	/**
+	 * Switches a new lexicon to the hashing mode where the attribute ID of a
+	 * term is given by the low bits of its MurmurHash3 instead of being
+	 * stored. Only a doc frequency is kept per ID so the memory used by the
+	 * lexicon depends on the number of bits and not on the number of terms,
+	 * and classifying a document does not require looking terms up. The
+	 * terms of different fields are hashed with the name of their field.
+	 * Terms which share an ID are counted as the same attribute, the
+	 * occurrences of half of them with a negative sign, so a larger number of
+	 * bits gives more accurate vectors at the cost of a larger model. The
+	 * lexicon cannot iterate on its terms afterwards, and compact() has no
+	 * effect.
+	 * 
+	 * @param bits
+	 *            number of bits of the hash, between 1 and 30
+	 **/
+	public void setHashing(int bits) {
+		if (bits < 1 || bits > 30)
+			throw new IllegalArgumentException("Invalid number of bits "
+					+ bits);
+		if (readOnly)
+			throw new UnsupportedOperationException("Lexicon is read-only");
+		if (tokenForm2index.size() > 0 || maxAttributeID() > 0)
+			throw new IllegalStateException(
+					"Hashing must be set on an empty lexicon");
+		setConcurrent(false);
+		hashingBits = bits;
+		nextAttributeID.set((1 << bits) + 1);
+		index2docfreq = new int[(1 << bits) + 1];
+		scoringPlan = null;
+	}
+
+	/**
+	 * Bounds the memory used by the terms seen while documents are created :
+	 * a term which is not in the lexicon yet only gets an attribute ID once
+	 * it has been found in minDocFreq documents, until then it is a
+	 * candidate whose documents are counted. At most maxCandidates are
+	 * tracked, the rarest ones being evicted by lossy counting when this
+	 * budget is reached, see TermAdmission. The terms which are too rare to
+	 * survive pruneTermsDocFreq(minDocFreq, ...) thus never enter the
+	 * lexicon. The documents created before a term is admitted do not
+	 * contain it, its doc frequency includes them though. The candidates are
+	 * not saved with the lexicon. A minDocFreq lower than 2 removes the
+	 * policy.
+	 **/
+	public void setAdmission(int minDocFreq, int maxCandidates) {
+		if (minDocFreq < 2)
+			admission = null;
+		else
+			admission = new TermAdmission(minDocFreq, maxCandidates);
+	}
+
+	/** Returns the number of terms waiting to be admitted in the lexicon **/
+	public int getCandidateNum() {
+		TermAdmission policy = admission;
+		return policy != null ? policy.getCandidateNum() : 0;
+	}
+
+	/**
+	 * Returns the number of candidate terms evicted since the admission
+	 * policy was set
+	 **/
+	public long getEvictedCandidates() {
+		TermAdmission policy = admission;
+		return policy != null ? policy.getEvicted() : 0;
+	}
+
+	public boolean isHashing() {
+		return hashingBits != 0;
+	}
+
+	/** Returns the number of bits of the hash in hashing mode, 0 otherwise **/
+	public int getHashingBits() {
+		return hashingBits;
+	}
+
+	/**
+	 * Adds a document to the doc frequency of an attribute which is already in
+	 * the lexicon. Same as createIndex for a known term but without the
+	 * lookup.
+	 **/
+	void incrementDocFreq(int index) {
+		if (readOnly)
+			throw new UnsupportedOperationException("Lexicon is read-only");
+		if (atomicDocFreqs != null) {
+			atomicDocFreqs.increment(index);
+		} else {
+			ensureDocFreqCapacity(index);
+			if (index2docfreq[index] == PRUNED)
+				index2docfreq[index] = 0;
+			index2docfreq[index]++;
 		}
-		docfreq[0]++;
-		return index[0];
+		if (scoringPlan != null)
+			scoringPlan = null;
+	}
+
+	/** Makes sure that the doc freq table can hold a given attribute ID **/
+	private void ensureDocFreqCapacity(int index) {
+		if (index < index2docfreq.length)
+			return;
+		int newLength = Math.max(index + 1, index2docfreq.length
+				+ (index2docfreq.length >> 1));
+		index2docfreq = Arrays.copyOf(index2docfreq, newLength);
 	}
 
 	private void loadFromFile(String filename) throws IOException {
 		File file = new File(filename);
 		BufferedReader reader = new BufferedReader(new FileReader(file));
 		String line = null;
-		this.docNum = Integer.parseInt(reader.readLine());
+		this.docNum.set(Integer.parseInt(reader.readLine()));
 		this.method_used = Parameters.WeightingMethod.methodFromString(reader
 				.readLine());
 		this.normalizeVector = Boolean.parseBoolean(reader.readLine());
 		this.classifierType = reader.readLine();
-		this.labels = new ArrayList<String>();
 		// Need -1 to handle the case where the last label is zero length
-		this.labels.addAll(Arrays.asList(reader.readLine().split(" ", -1)));
+		List<String> labels = new ArrayList<String>(Arrays.asList(reader
+				.readLine().split(" ", -1)));
 		// Remove the extra entry created by the terminating space
-		this.labels.remove(labels.size() - 1);
+		labels.remove(labels.size() - 1);
+		this.labels.clear();
+		this.labels.addAll(labels);
 		String[] tmp = reader.readLine().split(" ");
 		for (String f : tmp) {
 			// see if there is a custom weight for it
@@ -323,28 +864,325 @@ public class Lexicon {
 		int loaded = 0;
 		int highestID = 0;
 		Pattern tab = Pattern.compile("\t");
-		while ((line = reader.readLine()) != null) {
+		line = reader.readLine();
+		// a hashing lexicon only has the doc frequencies of its IDs
+		if (line != null && line.startsWith(HASHING_MARKER)
+				&& line.indexOf('\t') == -1) {
+			setHashing(Integer.parseInt(line.substring(HASHING_MARKER
+					.length())));
+			while ((line = reader.readLine()) != null) {
+				String[] content_pos = tab.split(line);
+				int index = Integer.parseInt(content_pos[0]);
+				this.index2docfreq[index] = Integer.parseInt(content_pos[1]);
+			}
+			reader.close();
+			return;
+		}
+		for (; line != null; line = reader.readLine()) {
 			String[] content_pos = tab.split(line);
 			int index = Integer.parseInt(content_pos[1]);
 			if (index > highestID)
 				highestID = index;
 			int docs = Integer.parseInt(content_pos[2]);
-			int[] aindex = new int[] { index };
-			int[] adocs = new int[] { docs };
-			this.tokenForm2index.put(content_pos[0], aindex);
-			this.index2docfreq.put(Integer.valueOf(index), adocs);
+			this.tokenForm2index.put(content_pos[0], index);
+			ensureDocFreqCapacity(index);
+			this.index2docfreq[index] = docs;
 			loaded++;
 		}
-		this.nextAttributeID = highestID + 1;
+		this.nextAttributeID.set(highestID + 1);
+		this.scoringPlan = null;
 		reader.close();
 	}
 
+	/** Returns true if a file starts with the magic number of the binary format **/
+	public static boolean isBinaryFile(String filename) throws IOException {
+		DataInputStream input = new DataInputStream(new FileInputStream(
+				filename));
+		try {
+			return input.readInt() == BINARY_MAGIC;
+		} catch (java.io.EOFException e) {
+			return false;
+		} finally {
+			input.close();
+		}
+	}
+
+	private void loadFromBinaryFile(String filename, boolean readOnly)
+			throws IOException {
+		MappedFile file = MappedFile.map(new File(filename));
+
+		// header
+		long pos = 4;
+		int version = file.getInt(pos);
+		if (version != BINARY_VERSION && version != BINARY_VERSION_V3
+				&& version != 2)
+			throw new IOException("Unsupported version " + version
+					+ " of binary lexicon " + filename);
+		this.docNum.set(file.getInt(pos + 4));
+		pos += 8;
+		String value = readString(file, pos);
+		pos += stringSize(value);
+		this.method_used = Parameters.WeightingMethod.methodFromString(value);
+		this.normalizeVector = file.get(pos++) != 0;
+		this.classifierType = readString(file, pos);
+		pos += stringSize(this.classifierType);
+		int numLabels = file.getInt(pos);
+		pos += 4;
+		List<String> labels = new ArrayList<String>(numLabels);
+		for (int l = 0; l < numLabels; l++) {
+			String label = readString(file, pos);
+			pos += stringSize(label);
+			labels.add(label);
+		}
+		this.labels.clear();
+		this.labels.addAll(labels);
+		int numFields = file.getInt(pos);
+		pos += 4;
+		for (int f = 0; f < numFields; f++) {
+			String field_name = readString(file, pos);
+			pos += stringSize(field_name);
+			String method = readString(file, pos);
+			pos += stringSize(method);
+			if (method != null)
+				customWeights.put(field_name, Parameters.WeightingMethod
+						.methodFromString(method));
+			getFieldID(field_name, true);
+		}
+		if (version >= BINARY_VERSION)
+			this.hashingBits = file.getInt(pos);
+
+		// footer
+		pos = file.length()
+				- (version == 2 ? BINARY_FOOTER_SIZE_V2 : BINARY_FOOTER_SIZE);
+		if (pos < 0 || file.getInt(file.length() - 4) != BINARY_MAGIC)
+			throw new IOException("Binary lexicon " + filename
+					+ " is truncated");
+		long indexStart = file.getLong(pos);
+		long docFreqStart = file.getLong(pos + 8);
+		long hashStart = -1;
+		if (version != 2) {
+			hashStart = file.getLong(pos + 16);
+			pos += 8;
+		}
+		int numTerms = file.getInt(pos + 16);
+		int numBlocks = file.getInt(pos + 20);
+		int numDocFreqs = file.getInt(pos + 24);
+
+		MappedTermDictionary terms = new MappedTermDictionary(file,
+				indexStart, numTerms, numBlocks);
+		this.nextAttributeID.set(Math.max(numDocFreqs, 1));
+		if (readOnly) {
+			// the terms are looked up with the perfect hash
+			// and iterated on from the sorted blocks
+			if (hashStart != -1)
+				this.tokenForm2index = new PerfectHashTermDictionary(file,
+						hashStart, terms);
+			else
+				this.tokenForm2index = terms;
+			this.readOnly = true;
+			this.docFreqFile = file;
+			this.docFreqStart = docFreqStart;
+		} else {
+			this.tokenForm2index = new HashTermDictionary(numTerms);
+			TermDictionary.Cursor cursor = terms.cursor();
+			while (cursor.next())
+				this.tokenForm2index.put(cursor.term(), cursor.id());
+			// doc frequencies indexed by attribute ID
+			this.index2docfreq = new int[nextAttributeID.get()];
+			for (int i = 0; i < numDocFreqs; i++)
+				this.index2docfreq[i] = file.getInt(docFreqStart + 4l * i);
+		}
+		this.scoringPlan = null;
+	}
+
+	/**
+	 * Returns true if the doc frequencies are read from a mapped file, in
+	 * which case they are not worth caching on the heap
+	 **/
+	boolean hasMappedDocFreqs() {
+		return docFreqFile != null;
+	}
+
+	/**
+	 * Makes the lexicon read-only and replaces its dictionary by a minimal
+	 * perfect hash of the terms, which is faster to query and takes a little
+	 * over 8 bytes per term instead of 40 or more. The terms themselves are
+	 * dropped : the methods iterating on them such as getInvertedIndex or
+	 * saveToFile cannot be used afterwards. Used by the TextClassifier which
+	 * only looks terms up. A mapped binary lexicon already has a perfect hash
+	 * and stays as it is.
+	 **/
+	public void freeze() {
+		freeze(false);
+	}
+
+	/**
+	 * Same as freeze() but if oovFilter is true a Bloom filter of the terms
+	 * is also put in front of the dictionary so that most unknown tokens are
+	 * rejected without a lookup, which pays off when a large part of the
+	 * tokens are out of vocabulary. The filter takes 10 bits per term and
+	 * counts the lookups, see getOOVFilter(). It must be requested the first
+	 * time a heap lexicon is frozen, as the terms are not kept afterwards.
+	 **/
+	public void freeze(boolean oovFilter) {
+		setConcurrent(false);
+		// nothing to look up in hashing mode
+		if (hashingBits != 0) {
+			readOnly = true;
+			return;
+		}
+		boolean hash = !readOnly;
+		boolean filter = oovFilter && getOOVFilter() == null;
+		if (!hash && !filter)
+			return;
+		PerfectHashTermDictionary.Builder builder = null;
+		if (hash)
+			builder = new PerfectHashTermDictionary.Builder(tokenForm2index
+					.size());
+		BloomFilterTermDictionary.Builder bloom = null;
+		if (filter)
+			bloom = new BloomFilterTermDictionary.Builder(tokenForm2index
+					.size());
+		TermDictionary.Cursor cursor = tokenForm2index.cursor();
+		while (cursor.next()) {
+			String term = cursor.term();
+			if (builder != null)
+				builder.add(term, cursor.id());
+			if (bloom != null)
+				bloom.add(term);
+		}
+		TermDictionary dictionary = tokenForm2index;
+		if (builder != null)
+			dictionary = builder.build(null);
+		if (bloom != null)
+			dictionary = bloom.build(dictionary);
+		tokenForm2index = dictionary;
+		readOnly = true;
+	}
+
+	/**
+	 * Returns the Bloom filter put in front of the dictionary by
+	 * freeze(true), whose counters give the rate of unknown tokens, or null
+	 **/
+	public BloomFilterTermDictionary getOOVFilter() {
+		if (tokenForm2index instanceof BloomFilterTermDictionary)
+			return (BloomFilterTermDictionary) tokenForm2index;
+		return null;
+	}
+
+	/**
+	 * Saves the lexicon in a binary format which can be loaded much faster
+	 * than the text one. The file starts with a header holding the number of
+	 * documents, weighting schemes, labels, fields and hashing bits followed
+	 * by the terms
+	 * in sorted and front-coded blocks with their IDs, the index of these
+	 * blocks, the doc frequency of each attribute ID and a minimal perfect
+	 * hash of the terms used for the lookups. A fixed size footer
+	 * gives the position of these sections. See MappedTermDictionary for the
+	 * layout of the terms. The text format of saveToFile can still be used for
+	 * debugging, both are read by the constructors.
+	 **/
+	public void saveToBinaryFile(String filename) throws IOException {
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(filename)));
+		try {
+			out.writeInt(BINARY_MAGIC);
+			out.writeInt(BINARY_VERSION);
+			out.writeInt(this.docNum.get());
+			writeString(out, this.method_used.toString());
+			out.writeByte(this.normalizeVector ? 1 : 0);
+			writeString(out, this.classifierType);
+			out.writeInt(this.labels.size());
+			for (String label : this.labels)
+				writeString(out, label);
+			String[] fieldNames = this.getFields();
+			out.writeInt(fieldNames.length);
+			for (String fname : fieldNames) {
+				writeString(out, fname);
+				WeightingMethod method = customWeights.get(fname);
+				writeString(out, method != null ? method.name() : null);
+			}
+			out.writeInt(hashingBits);
+
+			// same terms as in the text format
+			int[] docFreqs = new int[nextAttributeID.get()];
+			MappedTermDictionary.Writer terms = new MappedTermDictionary.Writer(
+					out, out.size());
+			PerfectHashTermDictionary.Builder hash = new PerfectHashTermDictionary.Builder(
+					tokenForm2index.size());
+			TermDictionary.Cursor forms = this.tokenForm2index.sortedCursor();
+			while (forms.next()) {
+				int indexTerm = forms.id();
+				if (linearWeight != null
+						&& (indexTerm >= linearWeight.length || linearWeight[indexTerm] == 0))
+					continue;
+				String term = forms.term();
+				terms.add(term, indexTerm);
+				hash.add(term, indexTerm);
+				docFreqs[indexTerm] = getDocFreq(indexTerm);
+			}
+			// no terms in hashing mode, only the doc frequencies
+			for (int indexTerm = 1; hashingBits != 0
+					&& indexTerm < docFreqs.length; indexTerm++) {
+				if (linearWeight != null
+						&& (indexTerm >= linearWeight.length || linearWeight[indexTerm] == 0))
+					continue;
+				docFreqs[indexTerm] = getDocFreq(indexTerm);
+			}
+			long docFreqStart = terms.finish();
+			for (int docFreq : docFreqs)
+				out.writeInt(docFreq);
+			long hashStart = -1;
+			if (hashingBits == 0) {
+				hashStart = docFreqStart + 4l * docFreqs.length;
+				hash.build(null).writeTo(out);
+			}
+
+			out.writeLong(terms.getIndexStart());
+			out.writeLong(docFreqStart);
+			out.writeLong(hashStart);
+			out.writeInt(terms.getNumTerms());
+			out.writeInt(terms.getNumBlocks());
+			out.writeInt(docFreqs.length);
+			out.writeInt(BINARY_MAGIC);
+		} finally {
+			out.close();
+		}
+	}
+
+	/** Writes a nullable String as its length in bytes followed by its UTF-8 **/
+	private static void writeString(DataOutputStream out, String value)
+			throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(MappedFile file, long position) {
+		int length = file.getInt(position);
+		if (length == -1)
+			return null;
+		byte[] bytes = new byte[length];
+		file.get(position + 4, bytes, 0, length);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Returns the number of bytes used by writeString **/
+	private static int stringSize(String value) {
+		if (value == null)
+			return 4;
+		return 4 + value.getBytes(StandardCharsets.UTF_8).length;
+	}
+
 	public void saveToFile(String filename) throws IOException {
 		File file = new File(filename);
 		BufferedWriter writer = new BufferedWriter(new FileWriter(file));
-		Iterator forms = this.tokenForm2index.keySet().iterator();
 		// saves the number of documents in the corpus
-		writer.write(this.docNum + "\n");
+		writer.write(this.docNum.get() + "\n");
 		// saves the method used
 		writer.write(this.method_used.toString() + "\n");
 		// saves the normalization
@@ -367,10 +1205,30 @@ public class Lexicon {
 		}
 		writer.write("\n");
 
-		// dump all token_forms one by one
-		while (forms.hasNext()) {
-			String key = (String) forms.next();
-			int indexTerm = ((int[]) this.tokenForm2index.get(key))[0];
+		// dump the doc frequency of each ID used
+		if (hashingBits != 0) {
+			writer.write(HASHING_MARKER + hashingBits + "\n");
+			for (int indexTerm = 1; indexTerm <= maxAttributeID(); indexTerm++) {
+				int docfreq = this.getDocFreq(indexTerm);
+				if (docfreq == 0)
+					continue;
+				String weight = "";
+				if (linearWeight != null) {
+					if (indexTerm >= linearWeight.length
+							|| linearWeight[indexTerm] == 0)
+						continue;
+					weight = "\t" + linearWeight[indexTerm];
+				}
+				writer.write(indexTerm + "\t" + docfreq + weight + "\n");
+			}
+			writer.close();
+			return;
+		}
+
+		// dump all token_forms one by one in alphabetical order
+		TermDictionary.Cursor forms = this.tokenForm2index.sortedCursor();
+		while (forms.next()) {
+			int indexTerm = forms.id();
 			int docfreq = this.getDocFreq(indexTerm);
 			// dumps the weight of the term
 			// or skip the term if it has a weight of 0
@@ -390,7 +1248,7 @@ public class Lexicon {
 				score = "\t" + filter.getScore(indexTerm);
 			}
 
-			writer.write(key + "\t" + indexTerm + "\t" + docfreq + weight
+			writer.write(forms.term() + "\t" + indexTerm + "\t" + docfreq + weight
 					+ score + "\n");
 		}
 		writer.close();
@@ -418,19 +1276,22 @@ public class Lexicon {
 		int position = this.labels.indexOf(label);
 		if (position != -1)
 			return position;
-		this.labels.add(label.toLowerCase());
-		return this.labels.size() - 1;
+		// the labels can be created by several threads
+		synchronized (labels) {
+			position = this.labels.indexOf(label);
+			if (position != -1)
+				return position;
+			this.labels.add(label.toLowerCase());
+			return this.labels.size() - 1;
+		}
 	}
 
 	/** Return a map with Integers as keys and attribute labels as value* */
 	public Map<Integer, String> getInvertedIndex() {
 		TreeMap<Integer, String> inverted = new TreeMap<Integer, String>();
-		Iterator<String> keyiter = this.tokenForm2index.keySet().iterator();
-		while (keyiter.hasNext()) {
-			String key = keyiter.next();
-			int[] index = tokenForm2index.get(key);
-			Integer i = Integer.valueOf(index[0]);
-			inverted.put(i, key);
+		TermDictionary.Cursor cursor = this.tokenForm2index.cursor();
+		while (cursor.next()) {
+			inverted.put(Integer.valueOf(cursor.id()), cursor.term());
 		}
 		return inverted;
 	}
@@ -447,14 +1308,19 @@ public class Lexicon {
 		this.classifierType = classifierType;
 	}
 
-	/** Returns the number of attributes present in the lexicon **/
+	/**
+	 * Returns the number of attributes present in the lexicon, which is the
+	 * number of possible IDs in hashing mode
+	 **/
 	public int getAttributesNum() {
+		if (hashingBits != 0)
+			return 1 << hashingBits;
 		return tokenForm2index.size();
 	}
 
 	/** Returns the largest ID used for an attribute **/
 	public int maxAttributeID() {
-		return nextAttributeID - 1;
+		return nextAttributeID.get() - 1;
 	}
 
 	public void setAttributeScorer(AttributeScorer f) {
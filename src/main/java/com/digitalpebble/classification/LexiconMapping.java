@@ -0,0 +1,111 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+/**
+ * Correspondence between the attribute IDs, label indices and field IDs of a
+ * lexicon merged into another one, see Lexicon.merge(), or of a lexicon
+ * before and after its attributes are renumbered. Each table is
+ * indexed by the old value and gives the new one or -1 if the old one was not
+ * in the lexicon, e.g. an attribute pruned from the partition. remap()
+ * converts the documents created with the old lexicon.
+ **/
+public class LexiconMapping {
+
+	private final int[] attributes;
+
+	private final int[] labels;
+
+	private final int[] fields;
+
+	LexiconMapping(int[] attributes, int[] labels, int[] fields) {
+		this.attributes = attributes;
+		this.labels = labels;
+		this.fields = fields;
+	}
+
+	/**
+	 * Returns a mapping which only changes the attribute IDs of the
+	 * documents, e.g. to rewrite a raw file after Lexicon.compactIndices(),
+	 * the labels and fields of the lexicon keeping their indices.
+	 **/
+	public static LexiconMapping forAttributes(int[] attributes,
+			Lexicon lexicon) {
+		int[] fields = new int[lexicon.getFields().length];
+		for (int i = 0; i < fields.length; i++)
+			fields[i] = i;
+		return new LexiconMapping(attributes, null, fields);
+	}
+
+	/**
+	 * Returns the new ID of each attribute ID, or null if the IDs do not
+	 * change as is the case in hashing mode
+	 **/
+	public int[] getAttributeMap() {
+		return attributes;
+	}
+
+	/**
+	 * Returns the new index of each label index, or null if the labels do
+	 * not change
+	 **/
+	public int[] getLabelMap() {
+		return labels;
+	}
+
+	public int[] getFieldMap() {
+		return fields;
+	}
+
+	/** Returns the new ID of an attribute or -1 if it was not in the lexicon **/
+	public int mapAttribute(int id) {
+		if (attributes == null)
+			return id;
+		if (id < 0 || id >= attributes.length)
+			return -1;
+		return attributes[id];
+	}
+
+	/**
+	 * Returns the new index of a label, which must be in the lexicon : the
+	 * documents of a partition only have the labels of its lexicon
+	 **/
+	public int mapLabel(int label) {
+		if (labels == null)
+			return label;
+		if (label < 0 || label >= labels.length || labels[label] == -1)
+			throw new IllegalArgumentException("Label " + label
+					+ " is not in the lexicon");
+		return labels[label];
+	}
+
+	/**
+	 * Returns a copy of a SimpleDocument or MultiFieldDocument with the IDs
+	 * of the merged lexicon. The attributes which were not in the lexicon are
+	 * left out. Throws an IllegalArgumentException if its label is not in
+	 * the lexicon.
+	 **/
+	public Document remap(Document doc) {
+		if (doc instanceof SimpleDocument)
+			return ((SimpleDocument) doc).remap(this);
+		if (doc instanceof MultiFieldDocument)
+			return ((MultiFieldDocument) doc).remap(this, fields);
+		throw new UnsupportedOperationException("Can't remap a "
+				+ doc.getClass().getSimpleName());
+	}
+
+}
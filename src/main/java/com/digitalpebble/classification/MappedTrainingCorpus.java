@@ -0,0 +1,255 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import com.digitalpebble.classification.util.MappedFile;
+
+/**
+ * Read-only TrainingCorpus giving random access to the documents of a raw
+ * file in the binary format, see FileTrainingCorpus(File, boolean). The file
+ * is mapped in memory and the offset of each document is found when it is
+ * opened, so that a document is only decoded when it is accessed. The
+ * corpus can be shuffled or restricted to a subset of its documents, e.g. to
+ * build the folds of a cross-validation or a sample; the views share the
+ * mapping and the offsets with the corpus they come from and can be read by
+ * several threads at the same time.
+ **/
+public class MappedTrainingCorpus implements TrainingCorpus {
+
+	/** largest size of an array **/
+	private static final int MAX_OFFSETS = Integer.MAX_VALUE - 8;
+
+	private final MappedFile file;
+
+	/** offset of each document, followed by the end of the last block **/
+	private final long[] offsets;
+
+	/** documents of the view as positions in offsets, null for all of them **/
+	private final int[] docIds;
+
+	private MappedTrainingCorpus(MappedFile file, long[] offsets,
+			int[] docIds) {
+		this.file = file;
+		this.offsets = offsets;
+		this.docIds = docIds;
+	}
+
+	/**
+	 * Maps a raw file in the binary format. The checksums of the blocks are
+	 * verified, an incomplete block at the end of the file being ignored as
+	 * in RawCorpusFormat.readBlock().
+	 **/
+	public static MappedTrainingCorpus open(File raw) throws IOException {
+		if (!RawCorpusFormat.isBinary(raw))
+			throw new IOException(raw
+					+ " is not in the binary format, see CorpusUtils.convertRawFile()");
+		long[] offsets;
+		int num = 0;
+		FileChannel channel = FileChannel.open(raw.toPath(),
+				StandardOpenOption.READ);
+		try {
+			// the number of documents of the header is not trusted to size
+			// the table, which starts small and grows as needed
+			long numDocs = RawCorpusFormat.readHeader(channel);
+			offsets = new long[(int) Math.min(Math.max(numDocs, 16),
+					1 << 16) + 1];
+			RawCorpusFormat.BlockDecoder decoder = new RawCorpusFormat.BlockDecoder();
+			long position = RawCorpusFormat.HEADER_SIZE;
+			while (true) {
+				long next = RawCorpusFormat.readBlock(channel, position, decoder);
+				if (next == -1)
+					break;
+				long payload = position + RawCorpusFormat.BLOCK_HEADER_SIZE;
+				while (decoder.hasNext()) {
+					if (num + 1 == offsets.length) {
+						if (offsets.length == MAX_OFFSETS)
+							throw new IOException("Too many documents in "
+									+ raw);
+						offsets = Arrays.copyOf(offsets, (int) Math.min(
+								offsets.length * 2l, MAX_OFFSETS));
+					}
+					offsets[num++] = payload + decoder.position();
+					decoder.skip();
+				}
+				position = next;
+			}
+			offsets[num] = position;
+		} finally {
+			channel.close();
+		}
+		return new MappedTrainingCorpus(MappedFile.map(raw), Arrays.copyOf(
+				offsets, num + 1), null);
+	}
+
+	/** Returns the number of documents of the corpus **/
+	public int size() {
+		if (docIds != null)
+			return docIds.length;
+		return offsets.length - 1;
+	}
+
+	/** Returns the document at a position of the corpus **/
+	public Document get(int position) {
+		return decode(docId(position), new RawCorpusFormat.BlockDecoder());
+	}
+
+	private int docId(int position) {
+		if (position < 0 || position >= size())
+			throw new IndexOutOfBoundsException("Document " + position
+					+ " not in corpus of size " + size());
+		if (docIds != null)
+			return docIds[position];
+		return position;
+	}
+
+	private Document decode(int docId, RawCorpusFormat.BlockDecoder decoder) {
+		long offset = offsets[docId];
+		// the length may include the header of the next block
+		int length = (int) (offsets[docId + 1] - offset);
+		byte[] bytes = decoder.buffer(length);
+		file.get(offset, bytes, 0, length);
+		decoder.reset(length, 1);
+		try {
+			return decoder.next();
+		} catch (IOException e) {
+			throw new IllegalStateException("Can't decode document " + docId,
+					e);
+		}
+	}
+
+	/** Returns a view on the documents between from (inclusive) and to **/
+	public MappedTrainingCorpus subCorpus(int from, int to) {
+		if (from < 0 || to > size() || from > to)
+			throw new IndexOutOfBoundsException("Invalid range [" + from + ","
+					+ to + "[ of corpus of size " + size());
+		int[] ids = new int[to - from];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = docId(from + i);
+		return new MappedTrainingCorpus(file, offsets, ids);
+	}
+
+	/**
+	 * Returns a view on the documents at the given positions, in that order,
+	 * e.g. a sample or all the documents but a fold of a cross-validation
+	 **/
+	public MappedTrainingCorpus subCorpus(int[] positions) {
+		int[] ids = new int[positions.length];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = docId(positions[i]);
+		return new MappedTrainingCorpus(file, offsets, ids);
+	}
+
+	/** Returns a view on the documents of the corpus in a random order **/
+	public MappedTrainingCorpus shuffle(Random random) {
+		int[] ids = new int[size()];
+		for (int i = 0; i < ids.length; i++)
+			ids[i] = docId(i);
+		for (int i = ids.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = ids[i];
+			ids[i] = ids[j];
+			ids[j] = tmp;
+		}
+		return new MappedTrainingCorpus(file, offsets, ids);
+	}
+
+	public Iterator<Document> iterator() {
+		return new Iterator<Document>() {
+			private final RawCorpusFormat.BlockDecoder decoder = new RawCorpusFormat.BlockDecoder();
+
+			private int position = 0;
+
+			public boolean hasNext() {
+				return position < size();
+			}
+
+			public Document next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+				return decode(docId(position++), decoder);
+			}
+
+			public void remove() {
+				throw new RuntimeException("Remove operation not supported");
+			}
+		};
+	}
+
+	/** Returns a Spliterator which splits the documents by position **/
+	public Spliterator<Document> spliterator() {
+		return new PositionSpliterator(0, size());
+	}
+
+	private class PositionSpliterator implements Spliterator<Document> {
+
+		private final RawCorpusFormat.BlockDecoder decoder = new RawCorpusFormat.BlockDecoder();
+
+		private int from;
+
+		private final int to;
+
+		PositionSpliterator(int from, int to) {
+			this.from = from;
+			this.to = to;
+		}
+
+		public boolean tryAdvance(Consumer<? super Document> action) {
+			if (from >= to)
+				return false;
+			action.accept(decode(docId(from++), decoder));
+			return true;
+		}
+
+		public Spliterator<Document> trySplit() {
+			int mid = (from + to) >>> 1;
+			if (mid <= from)
+				return null;
+			Spliterator<Document> prefix = new PositionSpliterator(from, mid);
+			from = mid;
+			return prefix;
+		}
+
+		public long estimateSize() {
+			return to - from;
+		}
+
+		public int characteristics() {
+			return ORDERED | SIZED | SUBSIZED | NONNULL | IMMUTABLE;
+		}
+	}
+
+	public void addDocument(Document doc) throws IOException {
+		throw new UnsupportedOperationException(
+				"MappedTrainingCorpus is read-only");
+	}
+
+	public void close() {
+		// the mapping is released when the corpus is garbage collected
+	}
+
+}
@@ -16,11 +16,7 @@
 
 package com.digitalpebble.classification;
 
-import java.util.Iterator;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.Map.Entry;
-import java.util.regex.Pattern;
 
 import com.digitalpebble.classification.Parameters.WeightingMethod;
 
@@ -36,93 +32,9 @@ public class MultiFieldDocument implements Document {
 
 	double[] tokensPerField;
 	
-	private static final Pattern SPACE_PATTERN = Pattern.compile("\\s+");
-
-	private MultiFieldDocument() {
-	}
-
-	/***************************************************************************
-	 * A document is built from an array of Fields, with a reference to a
-	 * lexicon
-	 **************************************************************************/
-	MultiFieldDocument(Field[] fields, Lexicon lexicon, boolean create) {
-
-		// missing a know field?
-		int maxFieldLength = Math
-				.max(lexicon.getFields().length, fields.length);
-
-		tokensPerField = new double[maxFieldLength];
-
-		// create a vector for this document
-		// from the individual tokens
-		TreeMap<TokenField, int[]> tokens = new TreeMap<TokenField, int[]>();
-		for (Field f : fields) {
-
-			// get the field num from the lexicon
-			final int fieldNum = lexicon.getFieldID(f._name, create);
-
-			// field does not exist
-			if (fieldNum == -1)
-				continue;
-
-			for (int token = 0; token < f._tokens.length; token++) {
-				// remove null strings or empty strings
-				if (f._tokens[token] == null)
-					continue;
-				if (f._tokens[token].length() < 1)
-					continue;
-
-				String normToken = simpleNormalisationTokenString(f._tokens[token]);
-
-				// add a new instance to the count
-				tokensPerField[fieldNum]++;
-
-				String label = f._name + "_" + normToken;
-				TokenField tf = new TokenField(label, fieldNum);
-				int[] count = (int[]) tokens.get(tf);
-				if (count == null) {
-					count = new int[] { 0 };
-					tokens.put(tf, count);
-				}
-				count[0]++;
-			}
-		}
-		indices = new int[tokens.size()];
-		freqs = new int[tokens.size()];
-		indexToField = new int[tokens.size()];
-
-		int lastused = 0;
-		// iterates on the internal vector
-		Iterator<Entry<TokenField, int[]>> iter = tokens.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<TokenField, int[]> entry = iter.next();
-			TokenField key = entry.getKey();
-			int[] localFreq = entry.getValue();
-
-			// gets the index from the lexicon
-			int index = -1;
-			if (create) {
-				index = lexicon.createIndex(key.value);
-			} else {
-				index = lexicon.getIndex(key.value);
-			}
-			// if not found in the lexicon
-			// we'll just put a conventional value
-			// which will help filtering it later
-			if (index == -1) {
-				index = Integer.MAX_VALUE;
-			}
-			// add it to the list
-			indices[lastused] = index;
-			freqs[lastused] = localFreq[0];
-			indexToField[lastused] = key.field;
-			lastused++;
-		}
-		// at this stage all the tokens are linked
-		// to their indices in the lexicon
-		// and we have their raw frequency in the document
-		// sort the content of the vector
-		quicksort(indices, freqs, indexToField, 0, indices.length - 1);
+	// used when building from serialisation
+	// or by a DocumentBuilder
+	MultiFieldDocument() {
 	}
 
 	/**
@@ -227,30 +139,44 @@ public class MultiFieldDocument implements Document {
 	 */
 	public Vector getFeatureVector(Lexicon lexicon) {
 		Parameters.WeightingMethod method = lexicon.getMethod();
-		return getFeatureVector(lexicon, method, null);
+		return getFeatureVector(lexicon, method, (int[]) null);
 	}
 
 	public Vector getFeatureVector(Lexicon lexicon,
 			Parameters.WeightingMethod method) {
-		return getFeatureVector(lexicon, method, null);
+		return getFeatureVector(lexicon, method, (int[]) null);
 	}
 
+	/** @deprecated use getFeatureVector(Lexicon, int[]) **/
+	@Deprecated
 	public Vector getFeatureVector(Lexicon lexicon, Map<Integer, Integer> equiv) {
 		Parameters.WeightingMethod method = lexicon.getMethod();
 		return getFeatureVector(lexicon, method, equiv);
 	}
 
+	public Vector getFeatureVector(Lexicon lexicon, int[] oldToNew) {
+		Parameters.WeightingMethod method = lexicon.getMethod();
+		return getFeatureVector(lexicon, method, oldToNew);
+	}
+
+	/** @deprecated use getFeatureVector(Lexicon, WeightingMethod, int[]) **/
+	@Deprecated
 	public Vector getFeatureVector(Lexicon lexicon,
 			Parameters.WeightingMethod method, Map<Integer, Integer> equiv) {
-		// we need to iterate on the features
-		// of this document and compute a score
-		double numDocs = (double) lexicon.getDocNum();
-
 		// have the attribute numbers been changed in
 		// the meantime?
+		// the document itself is never modified so that it can be
+		// shared between threads, the new attribute numbers go
+		// into copies of its arrays
+		int[] indices = this.indices;
+		int[] freqs = this.freqs;
+		int[] indexToField = this.indexToField;
 		if (equiv != null) {
+			indices = new int[this.indices.length];
+			freqs = this.freqs.clone();
+			indexToField = this.indexToField.clone();
 			for (int pos = 0; pos < indices.length; pos++) {
-				Integer newPos = equiv.get(indices[pos]);
+				Integer newPos = equiv.get(this.indices[pos]);
 				// filtered
 				if (newPos == null)
 					indices[pos] = Integer.MAX_VALUE;
@@ -260,10 +186,58 @@ public class MultiFieldDocument implements Document {
 			// resort the indices
 			quicksort(indices, freqs, indexToField, 0, indices.length - 1);
 		}
+		return weight(lexicon, indices, freqs, indexToField, indices.length);
+	}
 
-		int kept = 0;
-		double[] copyvalues = new double[indices.length];
+	/**
+	 * Same as above with the new attribute numbers given by a table indexed
+	 * by the old ones, -1 or a number beyond the end of the table meaning
+	 * that the attribute has been filtered. The attributes are only sorted
+	 * again if the mapping changes their order, the one returned by
+	 * Lexicon.compactIndices() preserves it.
+	 **/
+	public Vector getFeatureVector(Lexicon lexicon,
+			Parameters.WeightingMethod method, int[] oldToNew) {
+		if (oldToNew == null)
+			return weight(lexicon, indices, freqs, indexToField,
+					indices.length);
+		int[] newIndices = new int[indices.length];
+		int[] newFreqs = new int[indices.length];
+		int[] newFields = new int[indices.length];
+		int length = 0;
+		boolean sorted = true;
 		for (int pos = 0; pos < indices.length; pos++) {
+			int old = indices[pos];
+			if (old < 0 || old >= oldToNew.length || oldToNew[old] == -1)
+				continue;
+			int index = oldToNew[old];
+			if (length > 0 && index < newIndices[length - 1])
+				sorted = false;
+			newIndices[length] = index;
+			newFreqs[length] = freqs[pos];
+			newFields[length] = indexToField[pos];
+			length++;
+		}
+		if (!sorted)
+			quicksort(newIndices, newFreqs, newFields, 0, length - 1);
+		return weight(lexicon, newIndices, newFreqs, newFields, length);
+	}
+
+	/**
+	 * Builds the vector of the first length attributes, sorted by number,
+	 * with the weighting scheme of their field
+	 **/
+	private Vector weight(Lexicon lexicon, int[] indices, int[] freqs,
+			int[] indexToField, int length) {
+		// weighting schemes per field and IDF of the attributes
+		// are computed once by the lexicon
+		ScoringPlan plan = lexicon.getScoringPlan();
+		WeightingMethod[] methods = plan.fieldMethods;
+
+		// count the attributes to keep so that
+		// the output arrays can be allocated directly
+		int kept = 0;
+		for (int pos = 0; pos < length; pos++) {
 			// need to check that a given term has not
 			// been filtered since the creation of the corpus
 			// the indices are sorted so we know there is no point
@@ -274,71 +248,95 @@ public class MultiFieldDocument implements Document {
 			}
 			if (lexicon.getDocFreq(indices[pos]) <= 0)
 				continue;
-			double score = getScore(pos, lexicon, numDocs);
 			// removed in meantime?
-			if (score == 0)
+			if (getScore(indices[pos], freqs[pos],
+					tokensPerField[indexToField[pos]],
+					methods[indexToField[pos]], plan) == 0)
 				continue;
-			copyvalues[pos] = score;
 			kept++;
 		}
-		// trim to size
 		int[] trimmedindices = new int[kept];
 		double[] trimmedvalues = new double[kept];
 
+		int last = 0;
+		for (int pos = 0; last < kept; pos++) {
+			if (lexicon.getDocFreq(indices[pos]) <= 0)
+				continue;
+			double score = getScore(indices[pos], freqs[pos],
+					tokensPerField[indexToField[pos]],
+					methods[indexToField[pos]], plan);
+			if (score == 0)
+				continue;
+			trimmedindices[last] = indices[pos];
+			trimmedvalues[last] = score;
+			last++;
+		}
+
 		// normalize the values?
 		if (lexicon.isNormalizeVector())
-			normalizeL2(trimmedvalues);
-
-		System.arraycopy(indices, 0, trimmedindices, 0, kept);
-		System.arraycopy(copyvalues, 0, trimmedvalues, 0, kept);
+			SimpleDocument.normalizeL2(trimmedvalues, kept);
 		return new Vector(trimmedindices, trimmedvalues);
 	}
 
 	/**
 	 * Returns the score of an attribute given the weighting scheme specified in
-	 * the lexicon or for a specific field
+	 * the lexicon or for a specific field, fieldTokens being the number of
+	 * tokens in the field of the attribute
 	 **/
-	private double getScore(int pos, Lexicon lexicon, double numdocs) {
+	static double getScore(int indexTerm, int freq, double fieldTokens,
+			WeightingMethod method, ScoringPlan plan) {
 		double score = 0;
-		int indexTerm = this.indices[pos];
-		double occurences = (double) this.freqs[pos];
-
-		int fieldNum = this.indexToField[pos];
-		double frequency = occurences / tokensPerField[fieldNum];
+		double occurences = (double) freq;
+		double frequency = occurences / fieldTokens;
 
-		// is there a custom weight for this field?
-		String fieldName = lexicon.getFields()[fieldNum];
-		WeightingMethod method = lexicon.getMethod(fieldName);
-
-		if (method.equals(Parameters.WeightingMethod.BOOLEAN)) {
-			score = 1;
-		} else if (method.equals(Parameters.WeightingMethod.OCCURRENCES)) {
+		if (method == Parameters.WeightingMethod.BOOLEAN) {
+			// attributes counted negatively in hashing mode
+			score = freq < 0 ? -1 : 1;
+		} else if (method == Parameters.WeightingMethod.OCCURRENCES) {
 			score = occurences;
-		} else if (method.equals(Parameters.WeightingMethod.FREQUENCY)) {
+		} else if (method == Parameters.WeightingMethod.FREQUENCY) {
 			score = frequency;
-		} else if (method.equals(Parameters.WeightingMethod.TFIDF)) {
-			int df = lexicon.getDocFreq(indexTerm);
-			double idf = numdocs / (double) df;
-			score = frequency * Math.log(idf);
-			if (idf == 1)
+		} else if (method == Parameters.WeightingMethod.TFIDF) {
+			double idf = plan.idf(indexTerm);
+			score = frequency * idf;
+			// log(numdocs/df) is 0 only if the term is in all the documents
+			if (idf == 0)
 				score = frequency;
 		}
 		return score;
 	}
 
 	/**
-	 * Returns the L2 norm factor of this vector's values.
-	 */
-	private void normalizeL2(double[] scores) {
-		double square_sum = 0.0;
-		for (int i = 0; i < scores.length; i++) {
-			square_sum += (scores[i] * scores[i]);
+	 * Returns a copy of the document with the attribute IDs, label and field
+	 * IDs of a merged lexicon, see LexiconMapping
+	 **/
+	MultiFieldDocument remap(LexiconMapping mapping, int[] fields) {
+		MultiFieldDocument doc = new MultiFieldDocument();
+		doc.label = mapping.mapLabel(label);
+		int numFields = tokensPerField.length;
+		for (int f = 0; f < fields.length; f++)
+			numFields = Math.max(numFields, fields[f] + 1);
+		doc.tokensPerField = new double[numFields];
+		for (int f = 0; f < tokensPerField.length && f < fields.length; f++)
+			doc.tokensPerField[fields[f]] = tokensPerField[f];
+		int[] newIndices = new int[indices.length];
+		int[] newFreqs = new int[indices.length];
+		int[] newFields = new int[indices.length];
+		int kept = 0;
+		for (int pos = 0; pos < indices.length; pos++) {
+			int index = mapping.mapAttribute(indices[pos]);
+			if (index == -1)
+				continue;
+			newIndices[kept] = index;
+			newFreqs[kept] = freqs[pos];
+			newFields[kept] = fields[indexToField[pos]];
+			kept++;
 		}
-		double norm = Math.sqrt(square_sum);
-		if (norm != 0)
-			for (int i = 0; i < scores.length; i++) {
-				scores[i] = scores[i] / norm;
-			}
+		doc.indices = java.util.Arrays.copyOf(newIndices, kept);
+		doc.freqs = java.util.Arrays.copyOf(newFreqs, kept);
+		doc.indexToField = java.util.Arrays.copyOf(newFields, kept);
+		quicksort(doc.indices, doc.freqs, doc.indexToField, 0, kept - 1);
+		return doc;
 	}
 
 	private int partition(int[] dims, int[] vals, int[] vals2, int low, int high) {
@@ -377,28 +375,4 @@ public class MultiFieldDocument implements Document {
 		quicksort(dims, vals, vals2, p + 1, high);
 	}
 
-	class TokenField implements Comparable<TokenField> {
-		int field;
-
-		String value;
-
-		TokenField(String val, int fieldNum) {
-			field = fieldNum;
-			value = val;
-		}
-
-		public int compareTo(TokenField tf) {
-			return value.compareTo(tf.value);
-		}
-
-	}
-
-	/**
-	 * this is done to make sure that the lexicon file will be read properly and
-	 * won't contain any characters that would break it
-	 **/
-	private static String simpleNormalisationTokenString(String token) {
-	    return SPACE_PATTERN.matcher(token).replaceAll("_");
-	}
-
 }
\ No newline at end of file
@@ -18,7 +18,15 @@ package com.digitalpebble.classification;
 
 import java.io.IOException;
 import java.util.LinkedList;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
 
+/**
+ * TrainingCorpus keeping the documents in memory. Its Spliterator works on a
+ * snapshot of the documents in an array, which splits them by index for the
+ * parallel streams instead of walking the links in batches.
+ **/
 public class RAMTrainingCorpus extends  LinkedList<Document> implements TrainingCorpus {
 	
 	private static final long serialVersionUID = 3284220814289135993L;
@@ -27,6 +35,23 @@ public class RAMTrainingCorpus extends  LinkedList<Document> implements Training
 		add(doc);
 	}
 
+	@Override
+	public Spliterator<Document> spliterator() {
+		return Spliterators.spliterator(toArray(), Spliterator.ORDERED);
+	}
+
+	// Collection and TrainingCorpus both have a default implementation of
+	// the streams, built on spliterator() : one must be chosen
+	@Override
+	public Stream<Document> stream() {
+		return TrainingCorpus.super.stream();
+	}
+
+	@Override
+	public Stream<Document> parallelStream() {
+		return TrainingCorpus.super.parallelStream();
+	}
+
 	public void close() {
 		// nothing to do		
 	}
@@ -0,0 +1,264 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Adds documents to a FileTrainingCorpus from several threads. Each thread
+ * serializes its documents into a chunk of about one block, taken from a
+ * pool, and hands it over to a single background thread once it is full. The
+ * writer thread appends the chunks to the raw file in large sequential
+ * writes, the threads adding documents being blocked when the queue of chunks
+ * is full. The documents of a thread are written in the order in which they
+ * were added but are interleaved with the ones of the other threads.
+ * <p>
+ * The corpus must not be used while documents are added with an appender.
+ * close() writes the remaining chunks and must only be called once all the
+ * threads are done; the corpus is then closed as usual to record the
+ * documents written.
+ **/
+public class RawCorpusAppender {
+
+	/** number of chunks which can wait for the writer **/
+	public static final int DEFAULT_CAPACITY = 64;
+
+	/** maximum number of chunks per write **/
+	private static final int MAX_BATCH = 16;
+
+	private static final Chunk END = new Chunk(false);
+
+	private final FileTrainingCorpus corpus;
+
+	private final boolean binary;
+
+	private final BlockingQueue<Chunk> queue;
+
+	private final ConcurrentLinkedQueue<Chunk> pool = new ConcurrentLinkedQueue<Chunk>();
+
+	/** chunk being filled by each thread **/
+	private final ConcurrentLinkedQueue<Producer> producers = new ConcurrentLinkedQueue<Producer>();
+
+	private final ThreadLocal<Producer> producer = new ThreadLocal<Producer>() {
+		@Override
+		protected Producer initialValue() {
+			Producer p = new Producer();
+			producers.add(p);
+			return p;
+		}
+	};
+
+	private final Thread writer;
+
+	private volatile IOException error;
+
+	private volatile boolean closed = false;
+
+	public RawCorpusAppender(FileTrainingCorpus corpus) throws IOException {
+		this(corpus, DEFAULT_CAPACITY);
+	}
+
+	public RawCorpusAppender(FileTrainingCorpus corpus, int capacity)
+			throws IOException {
+		this.corpus = corpus;
+		this.binary = corpus.isBinary();
+		this.queue = new ArrayBlockingQueue<Chunk>(capacity);
+		// the documents added before go first
+		corpus.flush();
+		writer = new Thread(new Runnable() {
+			public void run() {
+				write();
+			}
+		}, "RawCorpusAppender");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private static final class Producer {
+		Chunk chunk;
+	}
+
+	/** Can be called by several threads at the same time **/
+	public void addDocument(Document doc) throws IOException {
+		if (closed)
+			throw new IOException("Appender closed");
+		checkError();
+		Producer p = producer.get();
+		if (p.chunk == null) {
+			p.chunk = pool.poll();
+			if (p.chunk == null)
+				p.chunk = new Chunk(binary);
+		}
+		p.chunk.add(doc);
+		if (p.chunk.isFull()) {
+			Chunk full = p.chunk;
+			p.chunk = null;
+			submit(full);
+		}
+	}
+
+	/** waits for some space in the queue if it is full **/
+	private void submit(Chunk chunk) throws IOException {
+		try {
+			queue.put(chunk);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for the writer");
+		}
+		checkError();
+	}
+
+	private void checkError() throws IOException {
+		if (error != null)
+			throw new IOException("Can't write to raw file", error);
+	}
+
+	/**
+	 * Writes the chunks of all the threads and waits for the writer thread
+	 * to finish, the corpus remaining open
+	 **/
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		for (Producer p : producers) {
+			if (p.chunk != null && p.chunk.getNumDocs() > 0)
+				submit(p.chunk);
+			p.chunk = null;
+		}
+		submit(END);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while waiting for the writer");
+		}
+		checkError();
+	}
+
+	/**
+	 * Loop of the writer thread, which keeps taking the chunks after an error
+	 * or an interruption until close() so that the threads adding documents
+	 * are not blocked
+	 **/
+	private void write() {
+		List<Chunk> batch = new ArrayList<Chunk>(MAX_BATCH);
+		boolean end = false;
+		while (!end) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				if (error == null)
+					error = new InterruptedIOException("Writer interrupted");
+				continue;
+			}
+			queue.drainTo(batch, MAX_BATCH - 1);
+			end = batch.remove(END);
+			if (error == null && !batch.isEmpty()) {
+				ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+				int docs = 0;
+				for (int i = 0; i < buffers.length; i++) {
+					buffers[i] = batch.get(i).toBytes();
+					docs += batch.get(i).getNumDocs();
+				}
+				try {
+					corpus.write(buffers, docs);
+				} catch (IOException e) {
+					error = e;
+				}
+			}
+			for (Chunk chunk : batch) {
+				chunk.clear();
+				pool.offer(chunk);
+			}
+			batch.clear();
+		}
+	}
+
+	/** documents serialized in the format of the raw file **/
+	private static final class Chunk {
+
+		private final RawCorpusFormat.BlockEncoder encoder;
+
+		private byte[] text;
+
+		private int length = 0;
+
+		private int numDocs = 0;
+
+		Chunk(boolean binary) {
+			if (binary)
+				encoder = new RawCorpusFormat.BlockEncoder();
+			else {
+				encoder = null;
+				text = new byte[RawCorpusFormat.BLOCK_SIZE + 1024];
+			}
+		}
+
+		void add(Document doc) {
+			if (encoder != null) {
+				encoder.add(doc);
+				return;
+			}
+			byte[] serial = doc.getStringSerialization().getBytes(
+					StandardCharsets.ISO_8859_1);
+			if (length + serial.length > text.length)
+				text = Arrays.copyOf(text, Math.max(text.length * 2, length
+						+ serial.length));
+			System.arraycopy(serial, 0, text, length, serial.length);
+			length += serial.length;
+			numDocs++;
+		}
+
+		boolean isFull() {
+			if (encoder != null)
+				return encoder.isFull();
+			return length >= RawCorpusFormat.BLOCK_SIZE;
+		}
+
+		int getNumDocs() {
+			if (encoder != null)
+				return encoder.getNumDocs();
+			return numDocs;
+		}
+
+		ByteBuffer toBytes() {
+			if (encoder != null)
+				return encoder.toBlock();
+			return ByteBuffer.wrap(text, 0, length);
+		}
+
+		void clear() {
+			if (encoder != null)
+				encoder.clear();
+			length = 0;
+			numDocs = 0;
+		}
+	}
+
+}
@@ -0,0 +1,506 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Binary format of the raw files of a FileTrainingCorpus. The file starts with
+ * a header made of a magic number, the version and the number of documents,
+ * which is updated when the corpus is closed. The documents follow in blocks
+ * of about BLOCK_SIZE bytes, each block starting with the length of its
+ * payload, its number of documents, the CRC32 of the payload and the CRC32 of
+ * these three values, so that a corrupted block is detected and an incomplete
+ * one left by a crash at the end of the file can be dropped.
+ * <p>
+ * A document is encoded as its type (0 for a SimpleDocument, 1 for a
+ * MultiFieldDocument), its label, its number of tokens (per field for a
+ * MultiFieldDocument) and its number of attributes followed by the attribute
+ * IDs, as the differences between consecutive IDs, and the frequencies. A
+ * MultiFieldDocument then has the field of each attribute. The integers are
+ * written as varints, using the zigzag encoding for the values which can be
+ * negative i.e. the frequencies of a hashing lexicon and the gaps between the
+ * IDs should they not be sorted. The numbers of tokens are written as
+ * integers when they are whole, which is always the case in practice.
+ **/
+final class RawCorpusFormat {
+
+	static final int MAGIC = 0x54435242; // TCRB
+
+	static final int VERSION = 2;
+
+	/** magic, version and number of documents **/
+	static final int HEADER_SIZE = 4 + 4 + 8;
+
+	/** offset of the number of documents in the header **/
+	static final int DOC_COUNT_OFFSET = 8;
+
+	/**
+	 * length of the payload, number of documents, CRC32 of the payload and
+	 * CRC32 of the header
+	 **/
+	static final int BLOCK_HEADER_SIZE = 4 + 4 + 4 + 4;
+
+	/** part of the block header covered by its CRC32 **/
+	private static final int BLOCK_HEADER_CHECKED = 4 + 4 + 4;
+
+	/** a block is written once its payload exceeds this size **/
+	static final int BLOCK_SIZE = 64 * 1024;
+
+	private static final int SIMPLE = 0;
+
+	private static final int MULTIFIELD = 1;
+
+	private RawCorpusFormat() {
+	}
+
+	/** Returns true if a file starts with the magic number of the format **/
+	static boolean isBinary(File file) throws IOException {
+		if (!file.exists() || file.length() < 4)
+			return false;
+		InputStream input = new FileInputStream(file);
+		try {
+			byte[] magic = new byte[4];
+			int read = 0;
+			while (read < 4) {
+				int n = input.read(magic, read, 4 - read);
+				if (n == -1)
+					return false;
+				read += n;
+			}
+			return ByteBuffer.wrap(magic).getInt() == MAGIC;
+		} finally {
+			input.close();
+		}
+	}
+
+	static ByteBuffer header(long numDocs) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).putLong(numDocs);
+		header.flip();
+		return header;
+	}
+
+	/** Checks the header of a file and returns its number of documents **/
+	static long readHeader(FileChannel channel) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.getInt() != MAGIC)
+			throw new IOException("Not a binary raw file");
+		int version = header.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported version of raw file "
+					+ version);
+		return header.getLong();
+	}
+
+	/**
+	 * Reads as many bytes as the buffer can hold from a position, returns
+	 * false if the end of the file is reached first
+	 **/
+	static boolean readFully(FileChannel channel, ByteBuffer buffer,
+			long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n == -1)
+				return false;
+			position += n;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns true if the block header at the start of a buffer matches its
+	 * checksum and has no negative value
+	 **/
+	private static boolean isValidHeader(byte[] header, int offset) {
+		ByteBuffer buffer = ByteBuffer.wrap(header, offset, BLOCK_HEADER_SIZE);
+		return checksum(header, offset, BLOCK_HEADER_CHECKED) == buffer
+				.getInt(offset + BLOCK_HEADER_CHECKED)
+				&& buffer.getInt(offset) >= 0 && buffer.getInt(offset + 4) >= 0;
+	}
+
+	/**
+	 * Reads the block at a position in the decoder and returns the position
+	 * of the next block, or -1 if the block is what a crash while writing it
+	 * leaves at the end of the file : a block header which is incomplete, or
+	 * which is invalid and followed by zeros only, or a block which goes
+	 * beyond the end of the file or ends with it and is corrupted. Any other
+	 * corrupted block is an error.
+	 **/
+	static long readBlock(FileChannel channel, long position,
+			BlockDecoder decoder) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		long end = readBlockHeader(channel, position, header);
+		if (end == -1)
+			return -1;
+		int length = header.getInt(0);
+		int numDocs = header.getInt(4);
+		int crc = header.getInt(8);
+		byte[] payload = decoder.buffer(length);
+		if (!readFully(channel, ByteBuffer.wrap(payload, 0, length), position
+				+ BLOCK_HEADER_SIZE))
+			return -1;
+		if (checksum(payload, 0, length) != crc) {
+			if (end == channel.size())
+				return -1;
+			throw new IOException("Corrupted block at offset " + position);
+		}
+		decoder.reset(length, numDocs);
+		return end;
+	}
+
+	/**
+	 * Reads the header of the block at a position and returns the position of
+	 * the next block, or -1 if the header is incomplete, or invalid and
+	 * followed by zeros only, or if the block goes beyond the end of the
+	 * file. Any other invalid header is an error.
+	 **/
+	private static long readBlockHeader(FileChannel channel, long position,
+			ByteBuffer header) throws IOException {
+		header.clear();
+		if (!readFully(channel, header, position))
+			return -1;
+		if (!isValidHeader(header.array(), 0)) {
+			if (isZero(channel, position))
+				return -1;
+			throw new IOException("Corrupted block header at offset "
+					+ position);
+		}
+		long end = position + BLOCK_HEADER_SIZE + header.getInt(0);
+		if (end > channel.size())
+			return -1;
+		return end;
+	}
+
+	/**
+	 * Returns true if the bytes of a file from a position to its end are all
+	 * zeros, as left by a crash after the length of the file was updated but
+	 * not its content
+	 **/
+	private static boolean isZero(FileChannel channel, long position)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		while (true) {
+			buffer.clear();
+			int n = channel.read(buffer, position);
+			if (n == -1)
+				return true;
+			byte[] bytes = buffer.array();
+			for (int i = 0; i < n; i++)
+				if (bytes[i] != 0)
+					return false;
+			position += n;
+		}
+	}
+
+	/**
+	 * Returns the positions of the blocks of a file, read from their headers
+	 * only. The scan stops where readBlock() would, an invalid header which
+	 * is not followed by zeros only being an error; the checksums of the
+	 * payloads are verified when the blocks are read.
+	 **/
+	static long[] blockPositions(FileChannel channel) throws IOException {
+		long[] positions = new long[16];
+		int num = 0;
+		ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+		long position = HEADER_SIZE;
+		while (true) {
+			long end = readBlockHeader(channel, position, header);
+			if (end == -1)
+				break;
+			if (num == positions.length)
+				positions = Arrays.copyOf(positions, num * 2);
+			positions[num++] = position;
+			position = end;
+		}
+		return Arrays.copyOf(positions, num);
+	}
+
+	static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Accumulates the encoded documents of a block in a growable array and
+	 * writes them with the block header
+	 **/
+	static final class BlockEncoder {
+
+		private byte[] bytes = new byte[BLOCK_SIZE + 1024];
+
+		private int length = BLOCK_HEADER_SIZE;
+
+		private int numDocs = 0;
+
+		void add(Document doc) {
+			if (doc instanceof SimpleDocument) {
+				SimpleDocument sdoc = (SimpleDocument) doc;
+				writeVarInt(SIMPLE);
+				writeVarInt(sdoc.label);
+				writeNumber(sdoc.totalNumberTokens);
+				writeAttributes(sdoc.indices, sdoc.freqs);
+			} else if (doc instanceof MultiFieldDocument) {
+				MultiFieldDocument mdoc = (MultiFieldDocument) doc;
+				writeVarInt(MULTIFIELD);
+				writeVarInt(mdoc.label);
+				writeVarInt(mdoc.tokensPerField.length);
+				for (double tokens : mdoc.tokensPerField)
+					writeNumber(tokens);
+				writeAttributes(mdoc.indices, mdoc.freqs);
+				for (int field : mdoc.indexToField)
+					writeVarInt(field);
+			} else
+				throw new IllegalArgumentException("Can't store a "
+						+ doc.getClass().getSimpleName() + " in a raw file");
+			numDocs++;
+		}
+
+		private void writeAttributes(int[] indices, int[] freqs) {
+			writeVarInt(indices.length);
+			int last = 0;
+			for (int index : indices) {
+				writeVarInt(zigzag(index - last));
+				last = index;
+			}
+			for (int freq : freqs)
+				writeVarInt(zigzag(freq));
+		}
+
+		private void writeNumber(double value) {
+			if (value >= 0 && value == Math.rint(value) && value < (1l << 62)) {
+				writeVarLong(((long) value) << 1);
+				return;
+			}
+			writeVarLong(1);
+			long bits = Double.doubleToRawLongBits(value);
+			for (int shift = 56; shift >= 0; shift -= 8)
+				writeByte((int) (bits >>> shift));
+		}
+
+		private void writeVarInt(int value) {
+			writeVarLong(value & 0xFFFFFFFFl);
+		}
+
+		private void writeVarLong(long value) {
+			while ((value & ~0x7Fl) != 0) {
+				writeByte((int) ((value & 0x7F) | 0x80));
+				value >>>= 7;
+			}
+			writeByte((int) value);
+		}
+
+		private void writeByte(int b) {
+			if (length == bytes.length)
+				bytes = Arrays.copyOf(bytes, length * 2);
+			bytes[length++] = (byte) b;
+		}
+
+		int getNumDocs() {
+			return numDocs;
+		}
+
+		/** size of the payload **/
+		int size() {
+			return length - BLOCK_HEADER_SIZE;
+		}
+
+		boolean isFull() {
+			return size() >= BLOCK_SIZE;
+		}
+
+		/**
+		 * Returns the block with its header, which remains valid until the
+		 * next call to clear()
+		 **/
+		ByteBuffer toBlock() {
+			ByteBuffer block = ByteBuffer.wrap(bytes, 0, length);
+			block.putInt(0, size());
+			block.putInt(4, numDocs);
+			block.putInt(8, checksum(bytes, BLOCK_HEADER_SIZE, size()));
+			block.putInt(BLOCK_HEADER_CHECKED, checksum(bytes, 0,
+					BLOCK_HEADER_CHECKED));
+			return block;
+		}
+
+		void clear() {
+			length = BLOCK_HEADER_SIZE;
+			numDocs = 0;
+		}
+	}
+
+	/** Decodes the documents of the payload of a block **/
+	static final class BlockDecoder {
+
+		private byte[] bytes = new byte[0];
+
+		private int length = 0;
+
+		private int pos = 0;
+
+		private int remainingDocs = 0;
+
+		/** Returns a buffer of at least the given size to read a payload in **/
+		byte[] buffer(int size) {
+			if (bytes.length < size)
+				bytes = new byte[Math.max(size, bytes.length * 2)];
+			return bytes;
+		}
+
+		/** Starts decoding a payload read in buffer() **/
+		void reset(int payloadLength, int numDocs) {
+			this.length = payloadLength;
+			this.pos = 0;
+			this.remainingDocs = numDocs;
+		}
+
+		boolean hasNext() {
+			return remainingDocs > 0;
+		}
+
+		Document next() throws IOException {
+			if (remainingDocs == 0)
+				throw new IOException("No more documents in block");
+			remainingDocs--;
+			int type = readVarInt();
+			if (type == SIMPLE) {
+				SimpleDocument doc = new SimpleDocument();
+				doc.label = readVarInt();
+				doc.totalNumberTokens = readNumber();
+				int num = readVarInt();
+				doc.indices = readIndices(num);
+				doc.freqs = readFreqs(num);
+				return doc;
+			}
+			if (type == MULTIFIELD) {
+				MultiFieldDocument doc = new MultiFieldDocument();
+				doc.label = readVarInt();
+				doc.tokensPerField = new double[readVarInt()];
+				for (int f = 0; f < doc.tokensPerField.length; f++)
+					doc.tokensPerField[f] = readNumber();
+				int num = readVarInt();
+				doc.indices = readIndices(num);
+				doc.freqs = readFreqs(num);
+				doc.indexToField = new int[num];
+				for (int i = 0; i < num; i++)
+					doc.indexToField[i] = readVarInt();
+				return doc;
+			}
+			throw new IOException("Unknown document type " + type);
+		}
+
+		/** Goes past the next document without building it **/
+		void skip() throws IOException {
+			if (remainingDocs == 0)
+				throw new IOException("No more documents in block");
+			remainingDocs--;
+			int type = readVarInt();
+			if (type != SIMPLE && type != MULTIFIELD)
+				throw new IOException("Unknown document type " + type);
+			readVarInt();
+			int numbers = type == SIMPLE ? 1 : readVarInt();
+			for (int i = 0; i < numbers; i++)
+				readNumber();
+			int num = readVarInt();
+			int values = type == SIMPLE ? 2 * num : 3 * num;
+			for (int i = 0; i < values; i++)
+				readVarInt();
+		}
+
+		/** Offset in the payload of the next document **/
+		int position() {
+			return pos;
+		}
+
+		private int[] readIndices(int num) throws IOException {
+			int[] indices = new int[num];
+			int last = 0;
+			for (int i = 0; i < num; i++) {
+				last += unzigzag(readVarInt());
+				indices[i] = last;
+			}
+			return indices;
+		}
+
+		private int[] readFreqs(int num) throws IOException {
+			int[] freqs = new int[num];
+			for (int i = 0; i < num; i++)
+				freqs[i] = unzigzag(readVarInt());
+			return freqs;
+		}
+
+		private double readNumber() throws IOException {
+			long value = readVarLong();
+			if ((value & 1) == 0)
+				return value >>> 1;
+			long bits = 0;
+			for (int i = 0; i < 8; i++)
+				bits = (bits << 8) | (readByte() & 0xFF);
+			return Double.longBitsToDouble(bits);
+		}
+
+		private int readVarInt() throws IOException {
+			int b = readByte();
+			if (b >= 0)
+				return b;
+			int value = b & 0x7F;
+			for (int shift = 7; shift < 35; shift += 7) {
+				b = readByte();
+				value |= (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		private long readVarLong() throws IOException {
+			long value = 0;
+			for (int shift = 0; shift < 70; shift += 7) {
+				int b = readByte();
+				value |= (long) (b & 0x7F) << shift;
+				if (b >= 0)
+					return value;
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		private int readByte() throws IOException {
+			if (pos == length)
+				throw new IOException("Truncated document");
+			return bytes[pos++];
+		}
+	}
+
+	static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import com.digitalpebble.classification.Parameters.WeightingMethod;
+
+/**
+ * Snapshot of the information a Document needs from the Lexicon in order to
+ * weight its attributes : the weighting scheme of each field indexed by field
+ * ID and the IDF of each attribute indexed by attribute ID. The Lexicon
+ * discards its plan whenever one of these values changes.
+ **/
+final class ScoringPlan {
+
+	private final Lexicon lexicon;
+
+	/** weighting scheme per field ID **/
+	final WeightingMethod[] fieldMethods;
+
+	final double numDocs;
+
+	/** computed only if a TFIDF scheme is used **/
+	private volatile double[] idf;
+
+	ScoringPlan(Lexicon lexicon) {
+		this.lexicon = lexicon;
+		this.numDocs = (double) lexicon.getDocNum();
+		String[] fields = lexicon.getFields();
+		fieldMethods = new WeightingMethod[fields.length];
+		for (int i = 0; i < fields.length; i++)
+			fieldMethods[i] = lexicon.getMethod(fields[i]);
+	}
+
+	/**
+	 * Returns log(numDocs / docFreq) for an attribute ID, 0 if the attribute is
+	 * not in the lexicon. The values are cached in a table indexed by ID
+	 * unless the doc frequencies are read from a mapped file, a table would
+	 * then take as much heap as the lexicon saves.
+	 **/
+	double idf(int term) {
+		double[] table = idf;
+		if (table == null) {
+			if (lexicon.hasMappedDocFreqs()) {
+				int df = lexicon.getDocFreq(term);
+				if (df > 0)
+					return Math.log(numDocs / (double) df);
+				return 0;
+			}
+			table = getIDF();
+		}
+		return table[term];
+	}
+
+	/**
+	 * Returns log(numDocs / docFreq) for each attribute ID, 0 for the
+	 * attributes which are not in the lexicon
+	 **/
+	private double[] getIDF() {
+		double[] table = idf;
+		if (table != null)
+			return table;
+		table = new double[lexicon.maxAttributeID() + 1];
+		for (int i = 0; i < table.length; i++) {
+			int df = lexicon.getDocFreq(i);
+			if (df > 0)
+				table[i] = Math.log(numDocs / (double) df);
+		}
+		idf = table;
+		return table;
+	}
+
+}
@@ -0,0 +1,239 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar file of a raw file listing the segments committed to it, a segment
+ * being what has been appended between the opening and the closing of a
+ * FileTrainingCorpus. Each record gives the number of documents of the
+ * segment, the position of its end in the raw file, the CRC32 of its bytes
+ * and the CRC32 of the last TAIL_SIZE bytes before its end, followed by the
+ * CRC32 of the record itself. The tail starts at the first document at the
+ * earliest, so that it doesn't include the header of a binary file whose
+ * number of documents is rewritten. The records are only appended once the
+ * raw file has been forced to disk, so that the documents before the end of
+ * the last segment are known to be complete : when the raw file is opened
+ * again only what follows has to be scanned, which is nothing unless the
+ * previous corpus was not closed. The checksum of the tail of the last
+ * segment is compared to the raw file to detect a sidecar which does not
+ * belong to it, e.g. if the raw file has been rewritten by other means.
+ **/
+final class SegmentIndex {
+
+	static final String SUFFIX = ".segments";
+
+	private static final int MAGIC = 0x54435349; // TCSI
+
+	private static final int VERSION = 1;
+
+	private static final int HEADER_SIZE = 4 + 4;
+
+	/** docs, end, checksum, tail checksum, record checksum **/
+	private static final int RECORD_SIZE = 8 + 8 + 4 + 4 + 4;
+
+	static final int TAIL_SIZE = 4096;
+
+	private final FileChannel channel;
+
+	/** position of the first document in the raw file **/
+	private final long dataStart;
+
+	private long[] docs = new long[4];
+
+	private long[] ends = new long[4];
+
+	private int[] checksums = new int[4];
+
+	private int[] tailChecksums = new int[4];
+
+	private int num = 0;
+
+	private long totalDocs = 0;
+
+	private SegmentIndex(FileChannel channel, long dataStart) {
+		this.channel = channel;
+		this.dataStart = dataStart;
+	}
+
+	static File getFile(File raw) {
+		return new File(raw.getPath() + SUFFIX);
+	}
+
+	/** Creates an empty index, replacing any existing one **/
+	static SegmentIndex create(File raw, long dataStart) throws IOException {
+		FileChannel channel = FileChannel.open(getFile(raw).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(MAGIC).putInt(VERSION).flip();
+		while (header.hasRemaining())
+			channel.write(header);
+		return new SegmentIndex(channel, dataStart);
+	}
+
+	/**
+	 * Loads the index of a raw file, returns null if there is none or if it
+	 * is not usable. A record which was not completely written is dropped.
+	 **/
+	static SegmentIndex open(File raw, long dataStart) throws IOException {
+		File file = getFile(raw);
+		if (!file.exists() || file.length() < HEADER_SIZE)
+			return null;
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(
+				channel.size(), Integer.MAX_VALUE));
+		RawCorpusFormat.readFully(channel, buffer, 0);
+		buffer.flip();
+		if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+			channel.close();
+			return null;
+		}
+		SegmentIndex index = new SegmentIndex(channel, dataStart);
+		while (buffer.remaining() >= RECORD_SIZE) {
+			int start = buffer.position();
+			long docs = buffer.getLong();
+			long end = buffer.getLong();
+			int checksum = buffer.getInt();
+			int tailChecksum = buffer.getInt();
+			int recordChecksum = buffer.getInt();
+			CRC32 crc = new CRC32();
+			crc.update(buffer.array(), start, RECORD_SIZE - 4);
+			if ((int) crc.getValue() != recordChecksum)
+				break;
+			index.add(docs, end, checksum, tailChecksum);
+		}
+		long length = HEADER_SIZE + (long) index.num * RECORD_SIZE;
+		if (channel.size() > length)
+			channel.truncate(length);
+		return index;
+	}
+
+	private void add(long numDocs, long end, int checksum, int tailChecksum) {
+		if (num == ends.length) {
+			docs = Arrays.copyOf(docs, num * 2);
+			ends = Arrays.copyOf(ends, num * 2);
+			checksums = Arrays.copyOf(checksums, num * 2);
+			tailChecksums = Arrays.copyOf(tailChecksums, num * 2);
+		}
+		docs[num] = numDocs;
+		ends[num] = end;
+		checksums[num] = checksum;
+		tailChecksums[num] = tailChecksum;
+		num++;
+		totalDocs += numDocs;
+	}
+
+	/**
+	 * Records a segment of the raw file, which must have been forced to
+	 * disk, and forces the index
+	 **/
+	void append(long numDocs, long end, int checksum, FileChannel raw)
+			throws IOException {
+		int tailChecksum = tailChecksum(raw, end);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		record.putLong(numDocs).putLong(end).putInt(checksum).putInt(
+				tailChecksum);
+		CRC32 crc = new CRC32();
+		crc.update(record.array(), 0, RECORD_SIZE - 4);
+		record.putInt((int) crc.getValue());
+		record.flip();
+		long position = HEADER_SIZE + (long) num * RECORD_SIZE;
+		while (record.hasRemaining())
+			position += channel.write(record, position);
+		channel.force(false);
+		add(numDocs, end, checksum, tailChecksum);
+	}
+
+	/**
+	 * Returns true if the last segment matches the raw file, which is
+	 * checked in constant time from the checksum of its tail
+	 **/
+	boolean matches(FileChannel raw) throws IOException {
+		if (num == 0)
+			return true;
+		long end = ends[num - 1];
+		return end <= raw.size()
+				&& tailChecksum(raw, end) == tailChecksums[num - 1];
+	}
+
+	/** Checks the checksums of all the segments of a raw file **/
+	boolean verify(FileChannel raw) throws IOException {
+		long start = dataStart;
+		for (int s = 0; s < num; s++) {
+			if (ends[s] > raw.size()
+					|| checksum(raw, start, ends[s]) != checksums[s])
+				return false;
+			start = ends[s];
+		}
+		return true;
+	}
+
+	/** Returns the end of the last segment or -1 if there is none **/
+	long getLength() {
+		if (num == 0)
+			return -1;
+		return ends[num - 1];
+	}
+
+	long getDocNum() {
+		return totalDocs;
+	}
+
+	int getSegmentNum() {
+		return num;
+	}
+
+	void close() {
+		try {
+			channel.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private int tailChecksum(FileChannel raw, long end) throws IOException {
+		return checksum(raw, Math.max(dataStart, end - TAIL_SIZE), end);
+	}
+
+	/** CRC32 of the bytes of a file between two positions **/
+	static int checksum(FileChannel file, long start, long end)
+			throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(64 * 1024,
+				Math.max(end - start, 1)));
+		long position = start;
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			int n = file.read(buffer, position);
+			if (n <= 0)
+				throw new IOException("Unexpected end of file at " + position);
+			crc.update(buffer.array(), 0, n);
+			position += n;
+		}
+		return (int) crc.getValue();
+	}
+
+}
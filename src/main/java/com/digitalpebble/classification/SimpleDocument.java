@@ -16,11 +16,7 @@
 
 package com.digitalpebble.classification;
 
-import java.util.Iterator;
 import java.util.Map;
-import java.util.TreeMap;
-import java.util.Map.Entry;
-import java.util.regex.Pattern;
 
 /*******************************************************************************
  * A Document is built by an instance of Learner or Classifier
@@ -34,73 +30,11 @@ public class SimpleDocument implements Document {
 
 	double totalNumberTokens = 0;
 	
-	private static final Pattern SPACE_PATTERN = Pattern.compile("\\s+");
-
 	// used when building from serialisation
-	private SimpleDocument() {
+	// or by a DocumentBuilder
+	SimpleDocument() {
 	};
 
-	/***************************************************************************
-	 * A document is built from an array of Strings, with a reference to a
-	 * lexicon
-	 **************************************************************************/
-	SimpleDocument(String[] tokenstring, Lexicon lexicon, boolean create) {
-
-		totalNumberTokens = 0;
-
-		// create a vector for this document
-		// from the individual tokens
-		TreeMap<String, int[]> tokens = new TreeMap<String, int[]>();
-		for (int token = 0; token < tokenstring.length; token++) {
-			// remove null strings or empty strings
-			if (tokenstring[token] == null)
-				continue;
-			if (tokenstring[token].length() < 1)
-				continue;
-			// add a new instance to the count
-			totalNumberTokens++;
-			String normToken = simpleNormalisationTokenString(tokenstring[token]);
-			int[] count = (int[]) tokens.get(normToken);
-			if (count == null) {
-				count = new int[] { 0 };
-				tokens.put(normToken, count);
-			}
-			count[0]++;
-		}
-		indices = new int[tokens.size()];
-		freqs = new int[tokens.size()];
-		int lastused = 0;
-		// iterates on the internal vector
-		Iterator<Entry<String, int[]>> iter = tokens.entrySet().iterator();
-		while (iter.hasNext()) {
-			Entry<String, int[]> entry = iter.next();
-			String key = entry.getKey();
-			int[] localFreq = entry.getValue();
-			// gets the index from the lexicon
-			int index = -1;
-			if (create) {
-				index = lexicon.createIndex(key);
-			} else {
-				index = lexicon.getIndex(key);
-			}
-			// if not found in the lexicon
-			// we'll just put a conventional value
-			// which will help filtering it later
-			if (index == -1) {
-				index = Integer.MAX_VALUE;
-			}
-			// add it to the list
-			indices[lastused] = index;
-			freqs[lastused] = localFreq[0];
-			lastused++;
-		}
-		// at this stage all the tokens are linked
-		// to their indices in the lexicon
-		// and we have their raw frequency in the document
-		// sort the content of the vector
-		quicksort(indices, freqs, 0, indices.length - 1);
-	}
-
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -118,39 +52,42 @@ public class SimpleDocument implements Document {
 
 	public Vector getFeatureVector(Lexicon lexicon) {
 		Parameters.WeightingMethod method = lexicon.getMethod();
-		return getFeatureVector(lexicon, method, null);
+		return getFeatureVector(lexicon, method, (int[]) null);
 	}
 
 	public Vector getFeatureVector(Lexicon lexicon,
 			Parameters.WeightingMethod method) {
-		return getFeatureVector(lexicon, method, null);
+		return getFeatureVector(lexicon, method, (int[]) null);
 	}
-	
+
+	/** @deprecated use getFeatureVector(Lexicon, int[]) **/
+	@Deprecated
 	public Vector getFeatureVector(Lexicon lexicon, Map<Integer, Integer> equiv) {
 		Parameters.WeightingMethod method = lexicon.getMethod();
 		return getFeatureVector(lexicon, method, equiv);
 	}
 
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see
-	 * com.digitalpebble.classification.Document#getFeatureVector(com.digitalpebble
-	 * .classification.Lexicon)
-	 */
+	public Vector getFeatureVector(Lexicon lexicon, int[] oldToNew) {
+		Parameters.WeightingMethod method = lexicon.getMethod();
+		return getFeatureVector(lexicon, method, oldToNew);
+	}
+
+	/** @deprecated use getFeatureVector(Lexicon, WeightingMethod, int[]) **/
+	@Deprecated
 	public Vector getFeatureVector(Lexicon lexicon,
 			Parameters.WeightingMethod method, Map<Integer, Integer> equiv) {
-		// we need to iterate on the features
-		// of this document and compute a score
-		double numDocs = (double) lexicon.getDocNum();
-		int kept = 0;
-		double[] copyvalues = new double[indices.length];
-		
 		// have the attribute numbers been changed in
 		// the meantime?
+		// the document itself is never modified so that it can be
+		// shared between threads, the new attribute numbers go
+		// into copies of its arrays
+		int[] indices = this.indices;
+		int[] freqs = this.freqs;
 		if (equiv != null) {
+			indices = new int[this.indices.length];
+			freqs = this.freqs.clone();
 			for (int pos = 0; pos < indices.length; pos++) {
-				Integer newPos = equiv.get(indices[pos]);
+				Integer newPos = equiv.get(this.indices[pos]);
 				// filtered
 				if (newPos == null)
 					indices[pos] = Integer.MAX_VALUE;
@@ -160,8 +97,50 @@ public class SimpleDocument implements Document {
 			// resort the arrays
 			quicksort(indices, freqs, 0, indices.length - 1);
 		}
-		
+		return weight(lexicon, method, indices, freqs, indices.length);
+	}
+
+	/**
+	 * Same as above with the new attribute numbers given by a table indexed
+	 * by the old ones, -1 or a number beyond the end of the table meaning
+	 * that the attribute has been filtered. The attributes are only sorted
+	 * again if the mapping changes their order, the one returned by
+	 * Lexicon.compactIndices() preserves it.
+	 **/
+	public Vector getFeatureVector(Lexicon lexicon,
+			Parameters.WeightingMethod method, int[] oldToNew) {
+		if (oldToNew == null)
+			return weight(lexicon, method, indices, freqs, indices.length);
+		int[] newIndices = new int[indices.length];
+		int[] newFreqs = new int[indices.length];
+		int length = 0;
+		boolean sorted = true;
 		for (int pos = 0; pos < indices.length; pos++) {
+			int old = indices[pos];
+			if (old < 0 || old >= oldToNew.length || oldToNew[old] == -1)
+				continue;
+			int index = oldToNew[old];
+			if (length > 0 && index < newIndices[length - 1])
+				sorted = false;
+			newIndices[length] = index;
+			newFreqs[length] = freqs[pos];
+			length++;
+		}
+		if (!sorted)
+			quicksort(newIndices, newFreqs, 0, length - 1);
+		return weight(lexicon, method, newIndices, newFreqs, length);
+	}
+
+	/** Builds the vector of the first length attributes, sorted by number **/
+	private Vector weight(Lexicon lexicon, Parameters.WeightingMethod method,
+			int[] indices, int[] freqs, int length) {
+		// the IDF of the attributes are computed once by the lexicon
+		ScoringPlan plan = lexicon.getScoringPlan();
+
+		// count the attributes to keep so that
+		// the output arrays can be allocated directly
+		int kept = 0;
+		for (int pos = 0; pos < length; pos++) {
 			// need to check that a given term has not
 			// been filtered since the creation of the corpus
 			// the indices are sorted so we know there is no point
@@ -169,58 +148,92 @@ public class SimpleDocument implements Document {
 			// Integer.MAX_VALUE == unknown in model
 			if (indices[pos] == Integer.MAX_VALUE) {
 				break;
-			}		
+			}
 			if (lexicon.getDocFreq(indices[pos]) <= 0)
 				continue;
-			double score = getScore(pos, lexicon, method, numDocs);
-			copyvalues[pos] = score;
 			kept++;
 		}
-		// trim to size
 		int[] trimmedindices = new int[kept];
 		double[] trimmedvalues = new double[kept];
 
+		int last = 0;
+		for (int pos = 0; last < kept; pos++) {
+			if (lexicon.getDocFreq(indices[pos]) <= 0)
+				continue;
+			trimmedindices[last] = indices[pos];
+			trimmedvalues[last] = getScore(indices[pos], freqs[pos],
+					totalNumberTokens, method, plan);
+			last++;
+		}
+
 		// normalize the values?
 		if (lexicon.isNormalizeVector())
-			normalizeL2(trimmedvalues);
-
-		System.arraycopy(indices, 0, trimmedindices, 0, kept);
-		System.arraycopy(copyvalues, 0, trimmedvalues, 0, kept);
+			normalizeL2(trimmedvalues, kept);
 		return new Vector(trimmedindices, trimmedvalues);
 	}
 
-	private double getScore(int pos, Lexicon lexicon,
-			Parameters.WeightingMethod method, double numdocs) {
+	/**
+	 * Returns the score of an attribute occurring freq times in a document of
+	 * totalNumberTokens tokens. Also used by the DocumentBuilder when
+	 * classifying a text directly.
+	 **/
+	static double getScore(int indexTerm, int freq, double totalNumberTokens,
+			Parameters.WeightingMethod method, ScoringPlan plan) {
 		double score = 0;
-		int indexTerm = this.indices[pos];
-		double occurences = (double) this.freqs[pos];
+		double occurences = (double) freq;
 		double frequency = occurences / totalNumberTokens;
 
 		if (method == Parameters.WeightingMethod.BOOLEAN) {
-			score = 1;
+			// attributes counted negatively in hashing mode
+			score = freq < 0 ? -1 : 1;
 		} else if (method == Parameters.WeightingMethod.OCCURRENCES) {
 			score = occurences;
 		} else if (method == Parameters.WeightingMethod.FREQUENCY) {
 			score = frequency;
 		} else if (method == Parameters.WeightingMethod.TFIDF) {
-			int df = lexicon.getDocFreq(indexTerm);
-			double idf = numdocs / (double) df;
-			score = frequency * Math.log(idf);
+			score = frequency * plan.idf(indexTerm);
 		}
 		return score;
 	}
 
 	/**
-	 * Returns the L2 norm factor of this vector's values.
+	 * Returns a copy of the document with the attribute IDs and label of a
+	 * merged lexicon, see LexiconMapping
+	 **/
+	SimpleDocument remap(LexiconMapping mapping) {
+		SimpleDocument doc = new SimpleDocument();
+		doc.label = mapping.mapLabel(label);
+		doc.totalNumberTokens = totalNumberTokens;
+		int[] newIndices = new int[indices.length];
+		int[] newFreqs = new int[indices.length];
+		int kept = 0;
+		for (int pos = 0; pos < indices.length; pos++) {
+			int index = mapping.mapAttribute(indices[pos]);
+			if (index == -1)
+				continue;
+			newIndices[kept] = index;
+			newFreqs[kept] = freqs[pos];
+			kept++;
+		}
+		doc.indices = java.util.Arrays.copyOf(newIndices, kept);
+		doc.freqs = java.util.Arrays.copyOf(newFreqs, kept);
+		quicksort(doc.indices, doc.freqs, 0, kept - 1);
+		return doc;
+	}
+
+	/**
+	 * Divides the first length values by their L2 norm. Also used by the
+	 * MultiFieldDocument and by the DocumentBuilder when classifying a text
+	 * directly.
 	 */
-	private void normalizeL2(double[] scores) {
+	static void normalizeL2(double[] scores, int length) {
 		double square_sum = 0.0;
-		for (int i = 0; i < scores.length; i++) {
+		for (int i = 0; i < length; i++) {
 			square_sum += (scores[i] * scores[i]);
 		}
 		double norm = Math.sqrt(square_sum);
 		if (norm != 0)
-			for (int i = 0; i < scores.length; i++) {
+			for (int i = 0; i < length; i++) {
 				scores[i] = scores[i] / norm;
 			}
 	}
@@ -299,12 +312,4 @@ public class SimpleDocument implements Document {
 		return newdoc;
 	}
 
-	/**
-	 * this is done to make sure that the lexicon file will be read properly and
-	 * won't contain any characters that would break it
-	 **/
-	private static String simpleNormalisationTokenString(String token) {
-	    return SPACE_PATTERN.matcher(token).replaceAll("_");
-	}
-
-}
+}
\ No newline at end of file
@@ -0,0 +1,137 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification;
+
+import java.util.Arrays;
+
+import com.digitalpebble.classification.util.dictionary.HashTermDictionary;
+import com.digitalpebble.classification.util.dictionary.TermDictionary;
+
+/**
+ * Admission policy used by the Lexicon to decide which new terms deserve an
+ * attribute ID. A term which is not in the lexicon is first a candidate whose
+ * documents are counted; it becomes an attribute once it has been seen in
+ * minDocFreq documents. The number of candidates is bounded by lossy
+ * counting : when the budget is reached the threshold is raised and the
+ * candidates whose count plus the threshold at the time they were added, an
+ * upper bound of the documents they may have been seen in before, does not
+ * exceed it are evicted, until at most half of the budget is used. Rare terms
+ * are therefore forgotten while frequent ones are promoted, a term evicted by
+ * mistake being counted again from scratch. The methods are synchronized so
+ * that the policy can be used by a concurrent lexicon.
+ **/
+final class TermAdmission {
+
+	private final int minDocFreq;
+
+	private final int maxCandidates;
+
+	/** term -> slot in counts and deltas **/
+	private final HashTermDictionary candidates = new HashTermDictionary();
+
+	private int[] counts = new int[16];
+
+	/** threshold when the candidate was added **/
+	private int[] deltas = new int[16];
+
+	private int[] freeSlots = new int[16];
+
+	private int numFree = 0;
+
+	private int nextSlot = 0;
+
+	private int threshold = 0;
+
+	private long evicted = 0;
+
+	TermAdmission(int minDocFreq, int maxCandidates) {
+		if (minDocFreq < 2)
+			throw new IllegalArgumentException(
+					"The minimum doc frequency must be at least 2");
+		if (maxCandidates < 2)
+			throw new IllegalArgumentException("Invalid number of candidates "
+					+ maxCandidates);
+		this.minDocFreq = minDocFreq;
+		this.maxCandidates = maxCandidates;
+	}
+
+	/**
+	 * Counts a document containing a term which is not in the lexicon.
+	 * Returns the number of documents the term has been counted in if it
+	 * must now be added to the lexicon, 0 otherwise.
+	 **/
+	synchronized int admit(String term) {
+		int slot = candidates.get(term);
+		if (slot == TermDictionary.NOT_FOUND) {
+			if (candidates.size() >= maxCandidates)
+				evict();
+			slot = newSlot();
+			counts[slot] = 1;
+			deltas[slot] = threshold;
+			candidates.put(term, slot);
+			return 0;
+		}
+		int count = ++counts[slot];
+		if (count < minDocFreq)
+			return 0;
+		// promoted
+		candidates.remove(term);
+		freeSlot(slot);
+		return count;
+	}
+
+	/** Raises the threshold until half of the candidates at most are left **/
+	private void evict() {
+		do {
+			threshold++;
+			TermDictionary.Cursor cursor = candidates.cursor();
+			while (cursor.next()) {
+				int slot = cursor.id();
+				if (counts[slot] + deltas[slot] <= threshold) {
+					cursor.remove();
+					freeSlot(slot);
+					evicted++;
+				}
+			}
+		} while (candidates.size() > maxCandidates / 2);
+	}
+
+	private int newSlot() {
+		if (numFree > 0)
+			return freeSlots[--numFree];
+		if (nextSlot == counts.length) {
+			counts = Arrays.copyOf(counts, nextSlot * 2);
+			deltas = Arrays.copyOf(deltas, nextSlot * 2);
+		}
+		return nextSlot++;
+	}
+
+	private void freeSlot(int slot) {
+		if (numFree == freeSlots.length)
+			freeSlots = Arrays.copyOf(freeSlots, numFree * 2);
+		freeSlots[numFree++] = slot;
+	}
+
+	synchronized int getCandidateNum() {
+		return candidates.size();
+	}
+
+	synchronized long getEvicted() {
+		return evicted;
+	}
+
+}
@@ -23,28 +23,81 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import com.digitalpebble.classification.util.Tokenizer;
 import com.digitalpebble.classification.util.UnZip;
+import com.digitalpebble.classification.util.dictionary.BloomFilterTermDictionary;
 
+/**
+ * Applies a model to documents. The lexicon of a TextClassifier is never
+ * modified, so the same instance can create and classify documents from
+ * several threads; the implementations provided by the API keep no state
+ * between calls to classify.
+ **/
 public abstract class TextClassifier {
 	protected Lexicon lexicon;
 	private long lastmodifiedLexicon = 0l;
 	protected String pathResourceDirectory;
 
+	/** number of documents per task when classifying in parallel **/
+	private int parallelChunkSize = 0;
+
+	/**
+	 * Minimal number of documents per task so that the cost of scheduling a
+	 * task is amortised
+	 **/
+	private static final int MIN_CHUNK_SIZE = 64;
+
 	public static TextClassifier getClassifier(String pathResourceDirectory)
 			throws Exception {
 		File resourceDirectoryFile = new File(pathResourceDirectory);
 		return getClassifier(resourceDirectoryFile);
 	}
 
+	/**
+	 * How the lexicon of a classifier is held in memory, see
+	 * getClassifier(File, LexiconMode). A binary lexicon is mapped from disk
+	 * and keeps its terms whatever the mode.
+	 **/
+	public enum LexiconMode {
+		/** the lexicon keeps its terms **/
+		DEFAULT,
+		/**
+		 * a text lexicon is replaced by a perfect hash of its terms which
+		 * takes less memory and is faster to look up, but its terms can no
+		 * longer be listed or saved, see Lexicon.freeze()
+		 **/
+		FROZEN,
+		/**
+		 * same as FROZEN, the unknown tokens being rejected by a Bloom filter
+		 * before being looked up in the lexicon, see Lexicon.freeze(boolean).
+		 * The rate of unknown tokens is then given by getOOVFilter().
+		 **/
+		OOV_FILTER
+	}
+
 	/**
 	 * Returns a specific instance of a Text Classifier given a resource
-	 * Directory
+	 * Directory. The lexicon is not frozen and keeps its terms.
 	 * 
 	 * @throws Exception
 	 */
 	public static TextClassifier getClassifier(File resourceDirectoryFile)
 			throws Exception {
+		return getClassifier(resourceDirectoryFile, LexiconMode.DEFAULT);
+	}
+
+	/**
+	 * Same as getClassifier(File) with the lexicon held as specified by
+	 * lexiconMode
+	 **/
+	public static TextClassifier getClassifier(File resourceDirectoryFile,
+			LexiconMode lexiconMode) throws Exception {
 		// check whether we need to unzip the resources first
 		if (resourceDirectoryFile.toString().endsWith(".zip")
 				&& resourceDirectoryFile.isFile()) {
@@ -65,7 +118,11 @@ public abstract class TextClassifier {
 		File modelFile = new File(resourceDirectoryFile, Parameters.modelName);
 		if (modelFile.exists() == false)
 			throw new IOException("Model " + modelFile + " does not exist");
-		Lexicon lexicon = new Lexicon(lexiconFile.toString());
+		// the lexicon is only read, a binary one is mapped from disk
+		// and a text one can be frozen into a perfect hash
+		Lexicon lexicon = new Lexicon(lexiconFile.toString(), true);
+		if (lexiconMode != LexiconMode.DEFAULT)
+			lexicon.freeze(lexiconMode == LexiconMode.OOV_FILTER);
 		// ask the Lexicon for the classifier to use
 		String classifier = lexicon.getClassifierType();
 		TextClassifier instance = (TextClassifier) Class.forName(classifier)
@@ -95,6 +152,74 @@ public abstract class TextClassifier {
 	 ***/
 	public abstract double[] classify(Document document) throws Exception;
 
+	/**
+	 * Tokenizes a text with Tokenizer, lower-casing the tokens, and returns
+	 * the probabilities or scores for each label. Gives the same result as
+	 * classify(createDocument(Tokenizer.tokenize(text, true))) but the tokens
+	 * go straight from the text to the lexicon and, if the implementation
+	 * classifiesArrays(), the weighted attributes to the model, without
+	 * creating Strings, a Document or a Vector.
+	 ***/
+	public double[] classify(CharSequence text) throws Exception {
+		DocumentBuilder builder = DocumentBuilder.forCurrentThread();
+		builder.start(lexicon, false);
+		Tokenizer.tokenize(text, builder);
+		if (!classifiesArrays())
+			return classify(builder.finishSimpleDocument());
+		int length = builder.weightSimpleDocument();
+		return classify(builder.getIndices(), builder.getValues(), length);
+	}
+
+	/**
+	 * Same as above for a document made of several fields, texts[i] being the
+	 * content of the field fieldNames[i]. The fields unknown to the lexicon
+	 * are ignored.
+	 ***/
+	public double[] classify(String[] fieldNames, CharSequence[] texts)
+			throws Exception {
+		if (fieldNames.length != texts.length)
+			throw new IllegalArgumentException(
+					"Different numbers of field names and texts");
+		DocumentBuilder builder = DocumentBuilder.forCurrentThread();
+		builder.start(lexicon, false);
+		int numFields = Math.max(lexicon.getFieldNum(), fieldNames.length);
+		for (int f = 0; f < fieldNames.length; f++) {
+			int fieldNum = lexicon.getFieldID(fieldNames[f], false).intValue();
+			// field does not exist
+			if (fieldNum == -1)
+				continue;
+			numFields = Math.max(numFields, fieldNum + 1);
+			builder.setField(fieldNames[f], fieldNum);
+			Tokenizer.tokenize(texts[f], builder);
+		}
+		if (!classifiesArrays())
+			return classify(builder.finishMultiFieldDocument(numFields));
+		int length = builder.weightMultiFieldDocument();
+		return classify(builder.getIndices(), builder.getValues(), length);
+	}
+
+	/**
+	 * Returns true if the implementation scores the weighted vectors given
+	 * as arrays with classify(int[], double[], int), in which case the raw
+	 * texts are weighted straight into them. Otherwise they are turned into a
+	 * Document passed to classify(Document).
+	 **/
+	protected boolean classifiesArrays() {
+		return false;
+	}
+
+	/**
+	 * Returns the probabilities or scores for the first length attributes of
+	 * a weighted vector, sorted by index. The arrays are reused by the caller
+	 * afterwards and must not be kept. Only called if classifiesArrays()
+	 * returns true.
+	 **/
+	protected double[] classify(int[] indices, double[] values, int length)
+			throws Exception {
+		throw new UnsupportedOperationException(getClass().getName()
+				+ " does not score vectors given as arrays");
+	}
+
 	/**
 	 * Returns the probabilities for each label or the raw scores if the model
 	 * does not support probabilities
@@ -119,15 +244,93 @@ public abstract class TextClassifier {
 		return predictions;
 	}
 
+	/**
+	 * Same as classify(Document[]) but spreads the documents across the
+	 * threads of an ExecutorService (e.g. a ForkJoinPool). The implementations
+	 * of TextClassifier provided by the API can be used concurrently.
+	 ***/
+	public double[][] classify(Document[] documents, ExecutorService executor)
+			throws Exception {
+		double[][] predictions = new double[documents.length][];
+		classify(documents, predictions, executor);
+		return predictions;
+	}
+
+	public double[][] classify(List corpus, ExecutorService executor)
+			throws Exception {
+		Document[] documents = (Document[]) corpus.toArray(new Document[corpus
+				.size()]);
+		return classify(documents, executor);
+	}
+
+	/**
+	 * Classifies the documents in parallel and puts the scores of
+	 * documents[i] in predictions[i], which must be at least as long as the
+	 * array of documents. Returns once all the documents have been
+	 * classified.
+	 ***/
+	public void classify(final Document[] documents,
+			final double[][] predictions, ExecutorService executor)
+			throws Exception {
+		if (predictions.length < documents.length)
+			throw new IllegalArgumentException(
+					"Predictions array is smaller than the number of documents");
+		int chunkSize = getChunkSize(documents.length, executor);
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for (int start = 0; start < documents.length; start += chunkSize) {
+			final int from = start;
+			final int to = Math.min(start + chunkSize, documents.length);
+			tasks.add(new Callable<Object>() {
+				public Object call() throws Exception {
+					for (int d = from; d < to; d++)
+						predictions[d] = classify(documents[d]);
+					return null;
+				}
+			});
+		}
+		List<Future<Object>> results = executor.invokeAll(tasks);
+		for (Future<Object> result : results) {
+			try {
+				result.get();
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof Exception)
+					throw (Exception) e.getCause();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of documents classified by each task in
+	 * classify(Document[], ExecutorService). By default the documents are
+	 * split into a few chunks per thread.
+	 **/
+	public void setParallelChunkSize(int size) {
+		this.parallelChunkSize = size;
+	}
+
+	private int getChunkSize(int numDocs, ExecutorService executor) {
+		if (parallelChunkSize > 0)
+			return parallelChunkSize;
+		int threads = Runtime.getRuntime().availableProcessors();
+		if (executor instanceof ForkJoinPool)
+			threads = ((ForkJoinPool) executor).getParallelism();
+		// a few chunks per thread to balance the load
+		int chunk = (numDocs + threads * 4 - 1) / (threads * 4);
+		return Math.max(chunk, MIN_CHUNK_SIZE);
+	}
+
 	public Document createDocument(Field[] fields) {
-		return new MultiFieldDocument(fields, this.lexicon, false);
+		return DocumentBuilder.forCurrentThread().build(fields, this.lexicon,
+				false);
 	}
 
 	// Creates a document using the lexicon
 	// this way it is easier to collect the
 	// doc frequency and requires less memory
 	public Document createDocument(String[] tokenstring) {
-		return new SimpleDocument(tokenstring, this.lexicon, false);
+		return DocumentBuilder.forCurrentThread().build(tokenstring,
+				this.lexicon, false);
 	}
 
 	public double platterNormalisation(double x) {
@@ -196,6 +399,22 @@ public abstract class TextClassifier {
 		return (String[]) labelsKept.toArray(new String[labelsKept.size()]);
 	}
 
+	/**
+	 * Returns the lexicon of the classifier, which is shared by the threads
+	 * classifying documents and must not be modified
+	 **/
+	public Lexicon getLexicon() {
+		return lexicon;
+	}
+
+	/**
+	 * Returns the filter of unknown tokens with its counters if the classifier
+	 * was created with one, null otherwise
+	 **/
+	public BloomFilterTermDictionary getOOVFilter() {
+		return lexicon.getOOVFilter();
+	}
+
 	/**
 	 * Returns true if a new model/lexicon has been generated since the last
 	 * loading*
@@ -17,7 +17,16 @@
 package com.digitalpebble.classification;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface TrainingCorpus {
 
@@ -27,5 +36,65 @@ public interface TrainingCorpus {
 	*/
 	public void close();
 	public Iterator<Document> iterator();
-	
+
+	/**
+	 * Returns a Spliterator on the documents in the order of iterator(). The
+	 * implementations split it so that the documents can be processed in
+	 * parallel; by default it is built on the iterator and splits in batches
+	 * read sequentially from it.
+	 **/
+	public default Spliterator<Document> spliterator() {
+		return Spliterators.spliteratorUnknownSize(iterator(),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+	}
+
+	/** Returns a sequential Stream on the documents **/
+	public default Stream<Document> stream() {
+		return StreamSupport.stream(spliterator(), false);
+	}
+
+	/**
+	 * Returns a parallel Stream on the documents, the Document and Lexicon
+	 * objects being safe to read from several threads once the documents have
+	 * been created
+	 **/
+	public default Stream<Document> parallelStream() {
+		return StreamSupport.stream(spliterator(), true);
+	}
+
+	/**
+	 * Applies a function to the documents in parallel and gives the results
+	 * to an action in the order of iterator(). The documents are read
+	 * sequentially by batches of batchSize, the results of a batch being
+	 * computed in parallel and given to the action before the next batch is
+	 * read, so that no more than batchSize results are held in memory. A
+	 * batchSize of 1 or less applies the function sequentially on the
+	 * calling thread. The batches are processed in the common ForkJoinPool,
+	 * or in the pool of the calling task if it runs in another one.
+	 **/
+	@SuppressWarnings("unchecked")
+	public default <T> void forEachOrdered(
+			Function<? super Document, ? extends T> function,
+			Consumer<? super T> action, int batchSize) {
+		Iterator<Document> iter = iterator();
+		if (batchSize <= 1) {
+			while (iter.hasNext())
+				action.accept(function.apply(iter.next()));
+			return;
+		}
+		List<Document> batch = new ArrayList<Document>(batchSize);
+		Object[] results = new Object[batchSize];
+		while (iter.hasNext()) {
+			batch.clear();
+			while (batch.size() < batchSize && iter.hasNext())
+				batch.add(iter.next());
+			IntStream.range(0, batch.size()).parallel()
+					.forEach(i -> results[i] = function.apply(batch.get(i)));
+			for (int i = 0; i < batch.size(); i++) {
+				action.accept((T) results[i]);
+				results[i] = null;
+			}
+		}
+	}
+
 }
@@ -27,14 +27,25 @@ import java.util.List;
 import com.digitalpebble.classification.Document;
 import com.digitalpebble.classification.Parameters;
 import com.digitalpebble.classification.TextClassifier;
+import com.digitalpebble.classification.Vector;
 import com.digitalpebble.classification.libsvm.Utils;
 
-import de.bwaldvogel.liblinear.Predict;
+import de.bwaldvogel.liblinear.Model;
 
+/**
+ * Classifies documents with a model generated by LibLinearModelCreator. The
+ * model is loaded once and the documents are scored in memory, unless the
+ * system property liblinear_predict points to an external predict command in
+ * which case the vectors are written to temporary files and passed to it.
+ * Both modes can be used from several threads.
+ **/
 public class LibLinearApplier extends TextClassifier {
 
 	URL model;
-	
+
+	/** used for scoring in memory, null if an external command is used **/
+	private LinearScorer scorer;
+
 	private String parameters = null;
 
 	private String classifier_filename;	
@@ -50,13 +61,44 @@ public class LibLinearApplier extends TextClassifier {
 			modelPath = "file:///" + modelPath;
 		}
 		model = new URL(modelPath);
+		if (classifier_filename == null)
+			scorer = new LinearScorer(Model.load(new File(model.getFile())));
 	}
 
+	/**
+	 * Returns the probabilities for each label if the model supports them or
+	 * the decision values otherwise
+	 **/
 	public double[] classify(Document document) throws Exception {
-		return classify(new Document[]{document})[0];
+		if (scorer == null)
+			return classify(new Document[] { document })[0];
+
+		Vector vector = document.getFeatureVector(this.lexicon);
+		int[] indices = vector.getIndices();
+		double[] values = vector.getValues();
+		return classify(indices, values, indices.length);
 	}
-	
+
+	/**
+	 * The documents are written to a file for the external classifier when
+	 * the model can't be scored in memory
+	 **/
+	protected boolean classifiesArrays() {
+		return scorer != null;
+	}
+
+	protected double[] classify(int[] indices, double[] values, int length)
+			throws Exception {
+		return scorer.score(indices, values, length, lexicon.getLabelNum());
+	}
+
 	public double[][] classify(Document[] documents) throws Exception {
+		if (scorer != null) {
+			double[][] predictions = new double[documents.length][];
+			for (int d = 0; d < documents.length; d++)
+				predictions[d] = classify(documents[d]);
+			return predictions;
+		}
 		double[][] predictions = new double[documents.length][lexicon
 				.getLabelNum()];
 		// get a vectorial representation of the documents to classify
@@ -83,8 +125,7 @@ public class LibLinearApplier extends TextClassifier {
 		List<String> commandList = new ArrayList<String> ();
 		File modelFile = new File(model.getFile());
 		Process process = null;
-		if (classifier_filename != null)
-			commandList.add(classifier_filename);
+		commandList.add(classifier_filename);
 		if (this.getParameters() != null) {
 			String[] parameters = this.getParameters().split(" ");
 			for (int par = 0; par < parameters.length; par++) {
@@ -99,15 +140,11 @@ public class LibLinearApplier extends TextClassifier {
 		String[] commandArray = commandList
 				.toArray(new String[commandList.size()]);
 		
-		if (classifier_filename == null) {
-			Predict.main(commandArray);
-		} else {
-			process = Runtime.getRuntime().exec(commandArray);
-			
-			int value = process.waitFor();
-			if (value != 0)
-				throw new IOException("Process unsuccessful");
-		}
+		process = Runtime.getRuntime().exec(commandArray);
+
+		int value = process.waitFor();
+		if (value != 0)
+			throw new IOException("Process unsuccessful");
 		// Read labels from output file
 		try (BufferedReader in = new BufferedReader(new FileReader(output))) {
 			String line = null;
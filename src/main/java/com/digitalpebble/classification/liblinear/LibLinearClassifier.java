@@ -1,67 +1,48 @@
 package com.digitalpebble.classification.liblinear;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.List;
 
 import com.digitalpebble.classification.Document;
 import com.digitalpebble.classification.Parameters;
 import com.digitalpebble.classification.TextClassifier;
 import com.digitalpebble.classification.Vector;
 
-import de.bwaldvogel.liblinear.FeatureNode;
-import de.bwaldvogel.liblinear.Linear;
 import de.bwaldvogel.liblinear.Model;
 
+/**
+ * Classifies documents with a liblinear model. The scorer is immutable so a
+ * single instance can be used from several threads.
+ **/
 public class LibLinearClassifier extends TextClassifier {
 
 	Model liblinearModel;
 
-	public double[] classify(Document document) throws Exception {
-
-		int nr_feature = liblinearModel.getNrFeature();
-
-		// convert docs into liblinear format
-
-		List<FeatureNode> x = new ArrayList<FeatureNode>();
+	LinearScorer scorer;
 
+	/**
+	 * Returns the probabilities for each label if the model supports them or
+	 * the decision values otherwise
+	 **/
+	public double[] classify(Document document) throws Exception {
 		Vector vector = document.getFeatureVector(this.lexicon);
-
 		int[] indices = vector.getIndices();
 		double[] values = vector.getValues();
+		return classify(indices, values, indices.length);
+	}
 
-		for (int indexpos = 0; indexpos < indices.length; indexpos++) {
-			int index = indices[indexpos];
-			if (index <= nr_feature) {
-				FeatureNode node = new FeatureNode(index, values[indexpos]);
-				x.add(node);
-			}
-		}
-
-		if (liblinearModel.getBias() >= 0) {
-			FeatureNode node = new FeatureNode(nr_feature + 1,
-					liblinearModel.getBias());
-			x.add(node);
-		}
-
-		FeatureNode[] nodes = new FeatureNode[x.size()];
-		nodes = x.toArray(nodes);
-
-		if (liblinearModel.isProbabilityModel()) {
-			double[] prob_estimates = new double[liblinearModel.getNrClass()];
-			Linear.predictProbability(liblinearModel, nodes, prob_estimates);
-			return prob_estimates;
-		}
+	protected boolean classifiesArrays() {
+		return true;
+	}
 
-		double[] dec_values = new double[liblinearModel.getNrClass()];
-		Linear.predictValues(liblinearModel, nodes, dec_values);
-		return dec_values;
+	protected double[] classify(int[] indices, double[] values, int length) {
+		return scorer.score(indices, values, length, lexicon.getLabelNum());
 	}
 
 	protected void loadModel() throws Exception {
 		String modelPath = pathResourceDirectory + java.io.File.separator
 				+ Parameters.modelName;
 		liblinearModel = Model.load(new File(modelPath));
+		scorer = new LinearScorer(liblinearModel);
 	}
 
 }
@@ -0,0 +1,165 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.liblinear;
+
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.SolverType;
+
+/**
+ * Computes the outputs of a liblinear model straight from the indices and
+ * values of a Vector. The weights are copied once from the model into a
+ * feature-major array so that all the classes of a feature are next to each
+ * other, and no FeatureNode needs to be created for scoring. Gives the same
+ * values as Linear.predictValues and Linear.predictProbability. Instances are
+ * immutable and can be shared between threads.
+ **/
+public class LinearScorer {
+
+	/** weights[(index - 1) * nr_w + class] **/
+	private final double[] weights;
+
+	private final int nr_feature;
+
+	private final int nr_class;
+
+	/** number of weights per feature : 1 for binary models **/
+	private final int nr_w;
+
+	private final double bias;
+
+	private final boolean probability;
+
+	private final int[] labels;
+
+	public LinearScorer(Model model) {
+		nr_feature = model.getNrFeature();
+		nr_class = model.getNrClass();
+		if (nr_class == 2 && model.getSolverType() != SolverType.MCSVM_CS)
+			nr_w = 1;
+		else
+			nr_w = nr_class;
+		bias = model.getBias();
+		probability = model.isProbabilityModel();
+		labels = model.getLabels();
+		// includes the weights of the bias feature if any
+		int n = bias >= 0 ? nr_feature + 1 : nr_feature;
+		weights = new double[n * nr_w];
+		System.arraycopy(model.getFeatureWeights(), 0, weights, 0,
+				weights.length);
+	}
+
+	public int getNrClass() {
+		return nr_class;
+	}
+
+	public int getNrFeature() {
+		return nr_feature;
+	}
+
+	public boolean isProbabilityModel() {
+		return probability;
+	}
+
+	/**
+	 * Fills decValues with the decision values of the model for the first
+	 * length indices and values, in the order of the classes of the model.
+	 * Binary models have a single decision value. The indices must be sorted;
+	 * those larger than the number of features of the model are ignored.
+	 **/
+	public void decisionValues(int[] indices, double[] values, int length,
+			double[] decValues) {
+		for (int i = 0; i < nr_w; i++)
+			decValues[i] = 0;
+		if (nr_w == 1) {
+			double dec = 0;
+			for (int pos = 0; pos < length; pos++) {
+				int index = indices[pos];
+				if (index > nr_feature)
+					break;
+				dec += weights[index - 1] * values[pos];
+			}
+			if (bias >= 0)
+				dec += weights[nr_feature] * bias;
+			decValues[0] = dec;
+			return;
+		}
+		for (int pos = 0; pos < length; pos++) {
+			int index = indices[pos];
+			if (index > nr_feature)
+				break;
+			int offset = (index - 1) * nr_w;
+			double value = values[pos];
+			for (int i = 0; i < nr_w; i++)
+				decValues[i] += weights[offset + i] * value;
+		}
+		if (bias >= 0) {
+			int offset = nr_feature * nr_w;
+			for (int i = 0; i < nr_w; i++)
+				decValues[i] += weights[offset + i] * bias;
+		}
+	}
+
+	/**
+	 * Fills probEstimates with the probability of each class of the model.
+	 * Only available for logistic regression models.
+	 **/
+	public void probabilities(int[] indices, double[] values, int length,
+			double[] probEstimates) {
+		if (!probability)
+			throw new IllegalStateException(
+					"Model does not support probability estimates");
+		decisionValues(indices, values, length, probEstimates);
+		for (int i = 0; i < nr_w; i++)
+			probEstimates[i] = 1 / (1 + Math.exp(-probEstimates[i]));
+		if (nr_class == 2) {
+			probEstimates[1] = 1. - probEstimates[0];
+			return;
+		}
+		double sum = 0;
+		for (int i = 0; i < nr_class; i++)
+			sum += probEstimates[i];
+		for (int i = 0; i < nr_class; i++)
+			probEstimates[i] = probEstimates[i] / sum;
+	}
+
+	/**
+	 * Returns the probabilities or, if the model does not support them, the
+	 * decision values indexed by label. numLabels is the number of labels in
+	 * the lexicon; binary models give +v to their first label and -v to the
+	 * second one.
+	 **/
+	public double[] score(int[] indices, double[] values, int length,
+			int numLabels) {
+		double[] outputs = new double[nr_class];
+		if (probability) {
+			probabilities(indices, values, length, outputs);
+		} else {
+			decisionValues(indices, values, length, outputs);
+			if (nr_w == 1 && nr_class == 2)
+				outputs[1] = -outputs[0];
+		}
+		// the model orders the classes by their first occurrence
+		// in the vector file, put them back in the order of the lexicon
+		for (int l : labels)
+			numLabels = Math.max(numLabels, l + 1);
+		double[] scores = new double[numLabels];
+		for (int i = 0; i < labels.length; i++)
+			scores[labels[i]] = outputs[i];
+		return scores;
+	}
+
+}
@@ -27,6 +27,10 @@ import com.digitalpebble.classification.Parameters;
 import com.digitalpebble.classification.TextClassifier;
 import com.digitalpebble.classification.Vector;
 
+/**
+ * Classifies documents with a libSVM model. The model is only read when
+ * predicting so a single instance can be used from several threads.
+ **/
 public class LibSVMClassifier extends TextClassifier {
   svm_model model;
 
@@ -38,17 +42,25 @@ public class LibSVMClassifier extends TextClassifier {
   }
 
   public final double[] classify(Document document) throws Exception {
+    // creates nodes from document
+    Vector vector = document.getFeatureVector(this.lexicon);
+    int[] indices = vector.getIndices();
+    double[] values = vector.getValues();
+    return classify(indices, values, indices.length);
+  }
+
+  protected final boolean classifiesArrays() {
+    return true;
+  }
+
+  protected final double[] classify(int[] indices, double[] values, int length) {
     int svm_type = svm.svm_get_svm_type(model);
     int nr_class = svm.svm_get_nr_class(model);
     int[] labels = new int[nr_class];
     svm.svm_get_labels(model, labels);
     boolean support_probabilities = svm.svm_check_probability_model(model) == 1;
     double[] scores = new double[nr_class];
-    // creates nodes from document
-    Vector vector = document.getFeatureVector(this.lexicon);
-    int[] indices = vector.getIndices();
-    double[] values = vector.getValues();
-    svm_node[] svm_nodes = new svm_node[indices.length];
+    svm_node[] svm_nodes = new svm_node[length];
     for(int n = 0; n < svm_nodes.length; n++) {
       svm_nodes[n] = new svm_node();
       svm_nodes[n].index = indices[n];
@@ -21,8 +21,8 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Iterator;
 import java.util.Map;
+import java.util.function.Function;
 
 import com.digitalpebble.classification.Document;
 import com.digitalpebble.classification.Lexicon;
@@ -79,19 +79,57 @@ public class Utils {
 
     public static File writeExamples(TrainingCorpus corpus, Lexicon lexicon,
             boolean b, String vector_location) throws IOException {
-        return writeExamples(corpus, lexicon, b, vector_location, null, null);
+        return writeExamples(corpus, lexicon, b, vector_location,
+                (int[]) null, null);
     }
 
+    /** @deprecated use writeExamples(TrainingCorpus, Lexicon, boolean, String, int[], String) **/
+    @Deprecated
     public static File writeExamples(TrainingCorpus corpus, Lexicon lexicon,
             boolean b, String vector_location,
             Map<Integer, Integer> attributeMapping) throws IOException {
-        return writeExamples(corpus, lexicon, b, vector_location, null, null);
+        return writeExamples(corpus, lexicon, b, vector_location,
+                toTable(attributeMapping), null);
     }
 
+    /** @deprecated use writeExamples(TrainingCorpus, Lexicon, boolean, String, int[], String) **/
+    @Deprecated
     public static File writeExamples(TrainingCorpus corpus, Lexicon lexicon,
             boolean b, String vector_location,
             Map<Integer, Integer> attributeMapping, String format)
             throws IOException {
+        return writeExamples(corpus, lexicon, b, vector_location,
+                toTable(attributeMapping), format);
+    }
+
+    /**
+     * Converts a mapping of the attribute numbers into a table indexed by the
+     * old numbers, -1 marking the attributes which are not mapped
+     **/
+    private static int[] toTable(Map<Integer, Integer> attributeMapping) {
+        if (attributeMapping == null)
+            return null;
+        int max = -1;
+        for (Integer oldIndex : attributeMapping.keySet())
+            max = Math.max(max, oldIndex.intValue());
+        int[] oldToNew = new int[max + 1];
+        java.util.Arrays.fill(oldToNew, -1);
+        for (Map.Entry<Integer, Integer> entry : attributeMapping.entrySet())
+            if (entry.getKey().intValue() >= 0)
+                oldToNew[entry.getKey().intValue()] = entry.getValue()
+                        .intValue();
+        return oldToNew;
+    }
+
+    /**
+     * Writes the vectors of the documents in the libsvm format or in the one
+     * given by format ("arff" or "uci"), the attribute numbers being changed
+     * according to a table indexed by the old ones if attributeMapping is not
+     * null, e.g. as returned by Lexicon.compactIndices()
+     **/
+    public static File writeExamples(TrainingCorpus corpus, Lexicon lexicon,
+            boolean b, String vector_location, int[] attributeMapping,
+            String format) throws IOException {
         if ("arff".equalsIgnoreCase(format))
             return writeARFF(corpus, lexicon, b, vector_location,
                     attributeMapping);
@@ -102,36 +140,44 @@ public class Utils {
                 attributeMapping);
     }
 
+    /** @deprecated use writeVectors(TrainingCorpus, Lexicon, boolean, String, int[]) **/
+    @Deprecated
     public static File writeVectors(TrainingCorpus corpus, Lexicon lexicon,
             boolean b, String vector_location,
             Map<Integer, Integer> attributeMapping) throws IOException {
+        return writeVectors(corpus, lexicon, b, vector_location,
+                toTable(attributeMapping));
+    }
+
+    public static File writeVectors(TrainingCorpus corpus, Lexicon lexicon,
+            boolean b, String vector_location,
+            int[] attributeMapping) throws IOException {
         File vectorFile = new File(vector_location);
         PrintWriter out = null;
         out = new PrintWriter(new FileWriter(vectorFile));
-        // get an iterator on the Corpus
-        // and retrieve the documents one by one
-        Iterator<Document> docIterator = corpus.iterator();
-        while (docIterator.hasNext()) {
-            Document doc = docIterator.next();
+        // the vectors are built in parallel by batches
+        // and written in the order of the corpus
+        writeLines(corpus, out, doc -> {
             int label = doc.getLabel();
-            // get a vector from the document
-            // need a metric (e.g. relative frequency / binary)
-            // and a lexicon
-            // the vector is represented as a string directly
-            Vector vector = null;
-            if (attributeMapping == null)
-                vector = doc.getFeatureVector(lexicon);
-            else
-                vector = doc.getFeatureVector(lexicon, attributeMapping);
-            out.print(label + " " + Utils.getVectorString(vector) + "\n");
-        }
+            Vector vector = getVector(doc, lexicon, attributeMapping);
+            return label + " " + Utils.getVectorString(vector) + "\n";
+        });
         out.close();
         return vectorFile;
     }
 
+    /** @deprecated use writeARFF(TrainingCorpus, Lexicon, boolean, String, int[]) **/
+    @Deprecated
     public static File writeARFF(TrainingCorpus corpus, Lexicon lexicon,
             boolean b, String vector_location,
             Map<Integer, Integer> attributeMapping) throws IOException {
+        return writeARFF(corpus, lexicon, b, vector_location,
+                toTable(attributeMapping));
+    }
+
+    public static File writeARFF(TrainingCorpus corpus, Lexicon lexicon,
+            boolean b, String vector_location,
+            int[] attributeMapping) throws IOException {
         File vectorFile = new File(vector_location);
         PrintWriter out = null;
         out = new PrintWriter(new FileWriter(vectorFile));
@@ -172,21 +218,11 @@ public class Utils {
 
         out.print("@data\n");
 
-        // get an iterator on the Corpus
-        // and retrieve the documents one by one
-        Iterator<Document> docIterator = corpus.iterator();
-        while (docIterator.hasNext()) {
-            Document doc = docIterator.next();
+        // the vectors are built in parallel by batches
+        // and written in the order of the corpus
+        writeLines(corpus, out, doc -> {
             int label = doc.getLabel();
-            // get a vector from the document
-            // need a metric (e.g. relative frequency / binary)
-            // and a lexicon
-            // the vector is represented as a string directly
-            Vector vector = null;
-            if (attributeMapping == null)
-                vector = doc.getFeatureVector(lexicon);
-            else
-                vector = doc.getFeatureVector(lexicon, attributeMapping);
+            Vector vector = getVector(doc, lexicon, attributeMapping);
 
             StringBuffer buffer = new StringBuffer("{");
 
@@ -204,16 +240,25 @@ public class Utils {
                 buffer.append(indices[i]).append(" ").append(values[i]);
             }
             buffer.append("}\n");
-            out.print(buffer.toString());
-        }
+            return buffer.toString();
+        });
         out.close();
         return vectorFile;
     }
 
-    /** same as ARFF dense format but without headers **/
+    /** @deprecated use writeUCI(TrainingCorpus, Lexicon, boolean, String, int[]) **/
+    @Deprecated
     public static File writeUCI(TrainingCorpus corpus, Lexicon lexicon,
             boolean b, String vector_location,
             Map<Integer, Integer> attributeMapping) throws IOException {
+        return writeUCI(corpus, lexicon, b, vector_location,
+                toTable(attributeMapping));
+    }
+
+    /** same as ARFF dense format but without headers **/
+    public static File writeUCI(TrainingCorpus corpus, Lexicon lexicon,
+            boolean b, String vector_location,
+            int[] attributeMapping) throws IOException {
         File vectorFile = new File(vector_location);
         PrintWriter out = null;
         out = new PrintWriter(new FileWriter(vectorFile));
@@ -221,21 +266,11 @@ public class Utils {
         // dump the content of the lexicon file
         int attributeNum = lexicon.getAttributesNum();
 
-        // get an iterator on the Corpus
-        // and retrieve the documents one by one
-        Iterator<Document> docIterator = corpus.iterator();
-        while (docIterator.hasNext()) {
-            Document doc = docIterator.next();
+        // the vectors are built in parallel by batches
+        // and written in the order of the corpus
+        writeLines(corpus, out, doc -> {
             int label = doc.getLabel();
-            // get a vector from the document
-            // need a metric (e.g. relative frequency / binary)
-            // and a lexicon
-            // the vector is represented as a string directly
-            Vector vector = null;
-            if (attributeMapping == null)
-                vector = doc.getFeatureVector(lexicon);
-            else
-                vector = doc.getFeatureVector(lexicon, attributeMapping);
+            Vector vector = getVector(doc, lexicon, attributeMapping);
 
             StringBuffer buffer = new StringBuffer();
 
@@ -258,10 +293,36 @@ public class Utils {
             }
 
             buffer.append("\n");
-            out.print(buffer.toString());
-        }
+            return buffer.toString();
+        });
         out.close();
         return vectorFile;
     }
 
+    /**
+     * Number of documents whose lines are built in parallel before being
+     * written by writeVectors(), writeARFF() and writeUCI(), so that no more
+     * lines than that are held in memory
+     */
+    private static final int VECTOR_BATCH_SIZE = 1024;
+
+    /** Writes the line of each document of a corpus in its order **/
+    private static void writeLines(TrainingCorpus corpus, PrintWriter out,
+            Function<Document, String> line) {
+        corpus.forEachOrdered(line, out::print, VECTOR_BATCH_SIZE);
+    }
+
+    /**
+     * Returns the vector of a document, with the attribute numbers changed
+     * according to attributeMapping if it is not null
+     **/
+    private static Vector getVector(Document doc, Lexicon lexicon,
+            int[] attributeMapping) {
+        // need a metric (e.g. relative frequency / binary)
+        // and a lexicon
+        if (attributeMapping == null)
+            return doc.getFeatureVector(lexicon);
+        return doc.getFeatureVector(lexicon, attributeMapping);
+    }
+
 }
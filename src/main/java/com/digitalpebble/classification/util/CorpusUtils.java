@@ -27,13 +27,13 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.BitSet;
 import java.util.Iterator;
-import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 
 import com.digitalpebble.classification.Document;
 import com.digitalpebble.classification.FileTrainingCorpus;
 import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.LexiconMapping;
 import com.digitalpebble.classification.MultiFieldDocument;
 import com.digitalpebble.classification.Parameters.WeightingMethod;
 import com.digitalpebble.classification.libsvm.Utils;
@@ -57,6 +57,123 @@ public class CorpusUtils {
         writer.close();
     }
 
+    /**
+     * Rewrites the documents of a raw file built with the lexicon of a
+     * partition so that they use the IDs of the lexicon it has been merged
+     * into, see Lexicon.merge(). The file is read and written in a single
+     * pass, the documents being appended to output. Returns the number of
+     * documents written.
+     **/
+    public static int remapRawFile(File input, Writer output,
+            LexiconMapping mapping) throws IOException {
+        Iterator<Document> iterator = FileTrainingCorpus.readDocuments(input);
+        int count = 0;
+        while (iterator.hasNext()) {
+            output.write(mapping.remap(iterator.next())
+                    .getStringSerialization());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Copies the documents of a raw file in the text or binary format to a new
+     * raw file in the binary format, or in the text one if binary is false
+     **/
+    public static int convertRawFile(File input, File output, boolean binary)
+            throws IOException {
+        if (output.exists())
+            output.delete();
+        FileTrainingCorpus corpus = new FileTrainingCorpus(output, binary);
+        int count = 0;
+        try {
+            Iterator<Document> iterator = FileTrainingCorpus
+                    .readDocuments(input);
+            while (iterator.hasNext()) {
+                corpus.addDocument(iterator.next());
+                count++;
+            }
+        } finally {
+            corpus.close();
+        }
+        return count;
+    }
+
+    /**
+     * Merges the lexicons and raw files built separately on partitions of a
+     * corpus into a single lexicon and a single raw file. The lexicon is
+     * saved in the format of the first one.
+     **/
+    public static void mergePartitions(File[] lexicons, File[] rawFiles,
+            File newLexicon, File newRawFile) throws IOException {
+        if (lexicons.length == 0)
+            throw new IllegalArgumentException(
+                    "Expecting one raw file per lexicon");
+        mergePartitions(lexicons, rawFiles, newLexicon, newRawFile, Lexicon
+                .isBinaryFile(lexicons[0].getPath()));
+    }
+
+    /**
+     * Same as above with the lexicon saved in the binary format if binary is
+     * true or in the text one otherwise. The lexicons must have the same
+     * weighting schemes, normalisation, classifier type and hashing mode,
+     * which are those of the merged lexicon.
+     **/
+    public static void mergePartitions(File[] lexicons, File[] rawFiles,
+            File newLexicon, File newRawFile, boolean binary)
+            throws IOException {
+        if (lexicons.length != rawFiles.length || lexicons.length == 0)
+            throw new IllegalArgumentException(
+                    "Expecting one raw file per lexicon");
+        Lexicon[] partitions = new Lexicon[lexicons.length];
+        for (int p = 0; p < lexicons.length; p++)
+            partitions[p] = new Lexicon(lexicons[p].getPath());
+        Lexicon merged = partitions[0].emptyCopy();
+        for (int p = 1; p < partitions.length; p++)
+            if (!partitions[p].hasSameSettings(merged))
+                throw new IllegalArgumentException("The settings of "
+                        + lexicons[p] + " differ from those of "
+                        + lexicons[0]);
+        LexiconMapping[] mappings = merged.merge(partitions);
+        if (binary)
+            merged.saveToBinaryFile(newLexicon.getPath());
+        else
+            merged.saveToFile(newLexicon.getPath());
+        Writer writer = new BufferedWriter(new FileWriter(newRawFile));
+        try {
+            for (int p = 0; p < rawFiles.length; p++)
+                remapRawFile(rawFiles[p], writer, mappings[p]);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Renumbers the attributes of a lexicon without gaps and rewrites a raw
+     * file built with it so that both stay consistent. If byDocFreq is true
+     * the most frequent attributes get the smallest IDs, see
+     * Lexicon.compactIndicesByDocFreq(), otherwise they keep their order.
+     * The new lexicon is saved in the binary format.
+     **/
+    public static void compactAttributes(File rawFile, File newRawFile,
+            File lexiconFile, File newLexicon, boolean byDocFreq)
+            throws IOException {
+        Lexicon lexicon = new Lexicon(lexiconFile.getPath());
+        int[] oldToNew = byDocFreq ? lexicon.compactIndicesByDocFreq()
+                : lexicon.compactIndices();
+        if (oldToNew == null)
+            throw new IllegalArgumentException(
+                    "Can't renumber the attributes of a hashing lexicon");
+        lexicon.saveToBinaryFile(newLexicon.getPath());
+        Writer writer = new BufferedWriter(new FileWriter(newRawFile));
+        try {
+            remapRawFile(rawFile, writer,
+                    LexiconMapping.forAttributes(oldToNew, lexicon));
+        } finally {
+            writer.close();
+        }
+    }
+
     public static void dumpBestAttributes(String raw, String lexiconF)
             throws IOException {
         // load the corpus + the lexicon
@@ -84,6 +201,9 @@ public class CorpusUtils {
 
         boolean compact = "true".equals(props
                 .getProperty("compact.attribute.nums"));
+        // "docfreq" gives the smallest IDs to the most frequent attributes
+        boolean byDocFreq = "docfreq".equals(props
+                .getProperty("compact.attribute.order"));
 
         String format = props.getProperty("format");
 
@@ -122,10 +242,11 @@ public class CorpusUtils {
 
         // change the indices of the attributes to remove
         // gaps between them
-        Map<Integer, Integer> equiv = null;
+        int[] equiv = null;
         if (compact) {
             // create a new Lexicon object
-            equiv = lexicon.compact();
+            equiv = byDocFreq ? lexicon.compactIndicesByDocFreq() : lexicon
+                    .compactIndices();
         }
 
         // save the modified lexicon file
@@ -139,7 +260,8 @@ public class CorpusUtils {
     /**
      * Generates a random sample of lines from an input file and stores the
      * selection in a file named like the original but with the suffix
-     * "_"+number of lines.
+     * "_"+number of lines. The raw files in the binary format must be
+     * converted to the text one first, see convertRawFile().
      * 
      * @param input
      *            = input file
@@ -215,11 +337,14 @@ public class CorpusUtils {
         if (args.length < 2) {
             StringBuffer buffer = new StringBuffer();
             buffer.append("CorpusUtil : \n");
-            buffer.append("\t -compactAttributes existingRawFile newRawFile lexiconFile newLexiconFile\n");
+            buffer.append("\t -compactAttributes existingRawFile newRawFile lexiconFile newLexiconFile [-docFreq]\n");
             buffer.append("\t -filterFields existingRawFile newRawFile [field number]+ \n");
             buffer.append("\t -generateVector rawFile lexicon parameter_file\n");
             buffer.append("\t -randomSelection rawFile expected_num_lines [-noTest]\n");
             buffer.append("\t -bestAttributes rawFile lexicon\n");
+            buffer.append("\t -convertLexicon lexicon newLexicon [-text]\n");
+            buffer.append("\t -convertRaw rawFile newRawFile [-text]\n");
+            buffer.append("\t -mergePartitions newLexicon newRawFile [lexicon rawFile]+\n");
             System.out.println(buffer.toString());
             return;
         }
@@ -235,6 +360,17 @@ public class CorpusUtils {
             }
         }
 
+        else if (args[0].equalsIgnoreCase("-compactAttributes")) {
+            boolean byDocFreq = args.length >= 6
+                    && "-docFreq".equals(args[5]);
+            try {
+                compactAttributes(new File(args[1]), new File(args[2]),
+                        new File(args[3]), new File(args[4]), byDocFreq);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
         else if (args[0].equalsIgnoreCase("-bestAttributes")) {
             String fileName = args[1];
             String lexicon = args[2];
@@ -278,6 +414,50 @@ public class CorpusUtils {
             }
         }
 
+        else if (args[0].equalsIgnoreCase("-convertLexicon")) {
+            // converts a lexicon from one format to the other
+            // e.g. to get a readable version of a binary one
+            String lexiconF = args[1];
+            String newLexicon = args[2];
+            boolean text = args.length >= 4 && "-text".equals(args[3]);
+            try {
+                Lexicon lexicon = new Lexicon(lexiconF);
+                if (text)
+                    lexicon.saveToFile(newLexicon);
+                else
+                    lexicon.saveToBinaryFile(newLexicon);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        else if (args[0].equalsIgnoreCase("-convertRaw")) {
+            // converts a raw file from one format to the other
+            boolean text = args.length >= 4 && "-text".equals(args[3]);
+            try {
+                convertRawFile(new File(args[1]), new File(args[2]), !text);
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
+        else if (args[0].equalsIgnoreCase("-mergePartitions")) {
+            // lexicon and raw file of each partition
+            int numPartitions = (args.length - 3) / 2;
+            File[] lexicons = new File[numPartitions];
+            File[] rawFiles = new File[numPartitions];
+            for (int p = 0; p < numPartitions; p++) {
+                lexicons[p] = new File(args[3 + 2 * p]);
+                rawFiles[p] = new File(args[4 + 2 * p]);
+            }
+            try {
+                mergePartitions(lexicons, rawFiles, new File(args[1]),
+                        new File(args[2]));
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+
     }
 
 }
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only view of a file mapped in memory, addressed with long positions.
+ * A ByteBuffer cannot map more than 2GB so larger files are mapped as several
+ * segments; the pages are only read from disk when they are accessed and can
+ * be dropped by the OS when memory is needed, the heap footprint does not
+ * depend on the size of the file. Each segment overlaps the next one by a few
+ * bytes so that an int or a long never straddles two segments. Only absolute
+ * reads are done on the buffers so that a MappedFile can be shared between
+ * threads.
+ **/
+public class MappedFile {
+
+	/** segments of 1GB by default **/
+	private static final int SEGMENT_BITS = 30;
+
+	/** bytes shared by consecutive segments **/
+	private static final int OVERLAP = 8;
+
+	private final ByteBuffer[] segments;
+
+	private final int segmentBits;
+
+	private final long segmentMask;
+
+	private final long length;
+
+	/** Maps a file in segments of the default size **/
+	public static MappedFile map(File file) throws IOException {
+		return map(file, SEGMENT_BITS);
+	}
+
+	/**
+	 * Maps a file in segments of 2^segmentBits bytes, which is mostly useful
+	 * for testing the reads across segments on small files
+	 **/
+	public static MappedFile map(File file, int segmentBits)
+			throws IOException {
+		if (segmentBits < 4 || segmentBits > SEGMENT_BITS)
+			throw new IllegalArgumentException("Invalid segment size 2^"
+					+ segmentBits);
+		FileChannel channel = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			long segmentSize = 1l << segmentBits;
+			int numSegments = (int) Math.max(1, (length + segmentSize - 1)
+					/ segmentSize);
+			ByteBuffer[] segments = new ByteBuffer[numSegments];
+			for (int s = 0; s < numSegments; s++) {
+				long start = s * segmentSize;
+				long size = Math.min(length - start, segmentSize + OVERLAP);
+				// the mappings remain valid once the channel is closed
+				segments[s] = channel.map(FileChannel.MapMode.READ_ONLY,
+						start, size);
+			}
+			return new MappedFile(segments, segmentBits, length);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/** Wraps a single buffer, e.g. a heap one **/
+	public MappedFile(ByteBuffer buffer) {
+		this(new ByteBuffer[] { buffer }, 31, buffer.capacity());
+	}
+
+	private MappedFile(ByteBuffer[] segments, int segmentBits, long length) {
+		this.segments = segments;
+		this.segmentBits = segmentBits;
+		this.segmentMask = (1l << segmentBits) - 1;
+		this.length = length;
+	}
+
+	/** Returns the size of the file in bytes **/
+	public long length() {
+		return length;
+	}
+
+	public byte get(long position) {
+		return segments[(int) (position >>> segmentBits)]
+				.get((int) (position & segmentMask));
+	}
+
+	public int getInt(long position) {
+		return segments[(int) (position >>> segmentBits)]
+				.getInt((int) (position & segmentMask));
+	}
+
+	public long getLong(long position) {
+		return segments[(int) (position >>> segmentBits)]
+				.getLong((int) (position & segmentMask));
+	}
+
+	/** Copies length bytes from position into dst **/
+	public void get(long position, byte[] dst, int offset, int length) {
+		while (length > 0) {
+			ByteBuffer segment = segments[(int) (position >>> segmentBits)];
+			int start = (int) (position & segmentMask);
+			int count = (int) Math.min(length, segmentMask + 1 - start);
+			if (count < 16) {
+				for (int i = 0; i < count; i++)
+					dst[offset + i] = segment.get(start + i);
+			} else {
+				// bulk copies are much faster but need a buffer of our own
+				ByteBuffer view = segment.duplicate();
+				view.position(start);
+				view.get(dst, offset, count);
+			}
+			position += count;
+			offset += count;
+			length -= count;
+		}
+	}
+
+	/**
+	 * Reads a variable length int of 7 bits per byte, lowest bits first, as
+	 * written by writeVarint
+	 **/
+	public int getVarint(long position) {
+		int value = 0;
+		int shift = 0;
+		while (true) {
+			byte b = get(position++);
+			value |= (b & 0x7F) << shift;
+			if (b >= 0)
+				return value;
+			shift += 7;
+		}
+	}
+
+	/** Returns the number of bytes used by a variable length int **/
+	public static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	/**
+	 * Writes a variable length int to a byte array and returns the position
+	 * after it; the array must have at least 5 bytes left
+	 **/
+	public static int writeVarint(int value, byte[] dst, int offset) {
+		while ((value & ~0x7F) != 0) {
+			dst[offset++] = (byte) ((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		dst[offset++] = (byte) value;
+		return offset;
+	}
+
+}
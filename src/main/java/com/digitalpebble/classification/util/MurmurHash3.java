@@ -0,0 +1,77 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util;
+
+/**
+ * 32 bits MurmurHash3 of the chars of a term, taken two by two as the 4 bytes
+ * blocks of the original algorithm so that a term does not need to be encoded
+ * first. Gives the same values as Guava's murmur3_32().hashUnencodedChars().
+ **/
+public final class MurmurHash3 {
+
+	private static final int C1 = 0xcc9e2d51;
+
+	private static final int C2 = 0x1b873593;
+
+	private MurmurHash3() {
+	}
+
+	public static int hash(CharSequence term, int seed) {
+		int length = term.length();
+		int h = seed;
+		int i = 1;
+		for (; i < length; i += 2)
+			h = mixH(h, mixK(term.charAt(i - 1) | (term.charAt(i) << 16)));
+		if ((length & 1) == 1)
+			h ^= mixK(term.charAt(length - 1));
+		return fmix(h, 2 * length);
+	}
+
+	public static int hash(char[] buffer, int offset, int length, int seed) {
+		int h = seed;
+		int end = offset + length;
+		int i = offset + 1;
+		for (; i < end; i += 2)
+			h = mixH(h, mixK(buffer[i - 1] | (buffer[i] << 16)));
+		if ((length & 1) == 1)
+			h ^= mixK(buffer[end - 1]);
+		return fmix(h, 2 * length);
+	}
+
+	private static int mixK(int k) {
+		k *= C1;
+		k = Integer.rotateLeft(k, 15);
+		return k * C2;
+	}
+
+	private static int mixH(int h, int k) {
+		h ^= k;
+		h = Integer.rotateLeft(h, 13);
+		return h * 5 + 0xe6546b64;
+	}
+
+	private static int fmix(int h, int length) {
+		h ^= length;
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+}
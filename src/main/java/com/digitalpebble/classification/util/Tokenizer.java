@@ -1,12 +1,12 @@
 /**
  * Copyright 2009 DigitalPebble Ltd
- * 
+ *
  * Licensed under the Apache License, Version 2.0 (the "License"); you may not
  * use this file except in compliance with the License. You may obtain a copy of
  * the License at
- * 
+ *
  * http://www.apache.org/licenses/LICENSE-2.0
- * 
+ *
  * Unless required by applicable law or agreed to in writing, software
  * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
  * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
@@ -16,18 +16,157 @@
 
 package com.digitalpebble.classification.util;
 
-/** Oversimplistic tokenization but useful nonetheless **/
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Oversimplistic tokenization but useful nonetheless. A token is a run of
+ * Unicode letters, digits, combining marks or connector punctuation (i.e.
+ * the Unicode version of \w), everything else separates the tokens. The text
+ * is scanned one code point at a time and the tokens are given to a
+ * TokenHandler as regions of the text, without copying them ; they can be
+ * lower-cased with toLowerCase() while being copied by the handler.
+ **/
 public class Tokenizer {
 
-	// tokenize based on simple regular expression
+	/** Receives the tokens found in a text **/
+	public interface TokenHandler {
+
+		/**
+		 * Called for each token, which is the region of the input from start
+		 * to start + length. The token is not lower-cased.
+		 **/
+		public void token(CharSequence input, int start, int length);
+	}
+
+	/** token characters in the ASCII range **/
+	private static final boolean[] asciiWordChars = new boolean[128];
+
+	static {
+		for (char c = '0'; c <= '9'; c++)
+			asciiWordChars[c] = true;
+		for (char c = 'a'; c <= 'z'; c++)
+			asciiWordChars[c] = true;
+		for (char c = 'A'; c <= 'Z'; c++)
+			asciiWordChars[c] = true;
+		asciiWordChars['_'] = true;
+	}
+
+	/**
+	 * Returns the tokens of a String. Unlike the previous implementation
+	 * based on String.split, no empty tokens are returned.
+	 **/
 	public static String[] tokenize(String input, boolean lowercase) {
-		String[] tokens = input.split("\\W");
-		// lower case
-		for (int i = 0; i < tokens.length && lowercase; i++) {
-			tokens[i] = tokens[i].toLowerCase();
+		final List<String> tokens = new ArrayList<String>();
+		tokenize(input, new TokenHandler() {
+			private char[] buffer = new char[32];
+
+			public void token(CharSequence text, int start, int length) {
+				if (!lowercase) {
+					tokens.add(input.substring(start, start + length));
+					return;
+				}
+				if (length > buffer.length)
+					buffer = new char[Math.max(length, buffer.length * 2)];
+				int n = toLowerCase(text, start, length, buffer, 0);
+				tokens.add(new String(buffer, 0, n));
+			}
+		});
+		return tokens.toArray(new String[tokens.size()]);
+	}
+
+	/**
+	 * Sends the tokens of a region of a char array to a handler, their
+	 * positions being those of the array
+	 **/
+	public static void tokenize(char[] input, int offset, int length,
+			TokenHandler handler) {
+		tokenize(CharBuffer.wrap(input), offset, offset + length, handler);
+	}
+
+	/**
+	 * Sends the tokens of a text to a handler without copying them or
+	 * creating a String for each of them
+	 **/
+	public static void tokenize(CharSequence input, TokenHandler handler) {
+		tokenize(input, 0, input.length(), handler);
+	}
+
+	private static void tokenize(CharSequence input, int pos, int end,
+			TokenHandler handler) {
+		int start = -1;
+		while (pos < end) {
+			int current = pos;
+			char c = input.charAt(pos++);
+			// fast path for ASCII
+			if (c < 128) {
+				if (asciiWordChars[c]) {
+					if (start == -1)
+						start = current;
+				} else if (start != -1) {
+					handler.token(input, start, current - start);
+					start = -1;
+				}
+				continue;
+			}
+			int codePoint = c;
+			if (Character.isHighSurrogate(c) && pos < end
+					&& Character.isLowSurrogate(input.charAt(pos)))
+				codePoint = Character.toCodePoint(c, input.charAt(pos++));
+			if (isWordCodePoint(codePoint)) {
+				if (start == -1)
+					start = current;
+			} else if (start != -1) {
+				handler.token(input, start, current - start);
+				start = -1;
+			}
 		}
+		if (start != -1)
+			handler.token(input, start, end - start);
+	}
 
-		return tokens;
+	/**
+	 * Copies a region of a text into dest from destOffset, lower-casing it
+	 * one code point at a time with Character.toLowerCase, and returns the
+	 * number of chars written. dest must have room for length chars, the
+	 * lower case of a code point being in the same plane.
+	 **/
+	public static int toLowerCase(CharSequence input, int start, int length,
+			char[] dest, int destOffset) {
+		int written = destOffset;
+		int end = start + length;
+		int pos = start;
+		while (pos < end) {
+			char c = input.charAt(pos++);
+			if (c < 128) {
+				if (c >= 'A' && c <= 'Z')
+					c = (char) (c + ('a' - 'A'));
+				dest[written++] = c;
+				continue;
+			}
+			int codePoint = c;
+			if (Character.isHighSurrogate(c) && pos < end
+					&& Character.isLowSurrogate(input.charAt(pos)))
+				codePoint = Character.toCodePoint(c, input.charAt(pos++));
+			written += Character.toChars(Character.toLowerCase(codePoint),
+					dest, written);
+		}
+		return written - destOffset;
+	}
+
+	private static boolean isWordCodePoint(int codePoint) {
+		if (Character.isLetterOrDigit(codePoint))
+			return true;
+		switch (Character.getType(codePoint)) {
+		case Character.NON_SPACING_MARK:
+		case Character.ENCLOSING_MARK:
+		case Character.COMBINING_SPACING_MARK:
+		case Character.CONNECTOR_PUNCTUATION:
+			return true;
+		default:
+			return false;
+		}
 	}
 
 }
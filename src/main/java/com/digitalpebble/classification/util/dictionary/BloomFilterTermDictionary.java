@@ -0,0 +1,233 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util.dictionary;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Read-only dictionary which puts a Bloom filter of the terms in front of
+ * another dictionary so that most of the out-of-vocabulary tokens are
+ * rejected without looking them up. The filter is blocked : the bits of a
+ * term are all in the same block of 512 bits, i.e. one cache line, so that
+ * checking a term costs a single memory access whatever the number of hash
+ * functions. With the default of 10 bits per term about 1% of the unknown
+ * terms get through to the dictionary.
+ * <p>
+ * The outcome of the lookups is counted so that the rate of unknown tokens
+ * can be monitored; the counters can be incremented by several threads.
+ **/
+public class BloomFilterTermDictionary implements TermDictionary {
+
+	/** Default size of the filter **/
+	public static final int BITS_PER_TERM = 10;
+
+	private static final int NUM_HASHES = 7;
+
+	/** longs per block of 512 bits **/
+	private static final int BLOCK_WORDS = 8;
+
+	private static final long M1 = 0xBF58476D1CE4E5B9L;
+
+	private static final long M2 = 0x94D049BB133111EBL;
+
+	private final TermDictionary dictionary;
+
+	private final long[] bits;
+
+	private final int numBlocks;
+
+	private final LongAdder rejected = new LongAdder();
+
+	private final LongAdder found = new LongAdder();
+
+	private final LongAdder falsePositives = new LongAdder();
+
+	private BloomFilterTermDictionary(TermDictionary dictionary, long[] bits) {
+		this.dictionary = dictionary;
+		this.bits = bits;
+		this.numBlocks = bits.length / BLOCK_WORDS;
+	}
+
+	public int get(CharSequence term) {
+		int length = term.length();
+		long a = length;
+		long b = ~a;
+		for (int i = 0; i < length; i++) {
+			char c = term.charAt(i);
+			a = (a ^ c) * M1;
+			b = Long.rotateLeft(b + c, 31) * M2;
+		}
+		if (!mightContain(bits, numBlocks, a, b)) {
+			rejected.increment();
+			return NOT_FOUND;
+		}
+		return count(dictionary.get(term));
+	}
+
+	public int get(char[] buffer, int offset, int length) {
+		long a = length;
+		long b = ~a;
+		for (int i = offset; i < offset + length; i++) {
+			char c = buffer[i];
+			a = (a ^ c) * M1;
+			b = Long.rotateLeft(b + c, 31) * M2;
+		}
+		if (!mightContain(bits, numBlocks, a, b)) {
+			rejected.increment();
+			return NOT_FOUND;
+		}
+		return count(dictionary.get(buffer, offset, length));
+	}
+
+	private int count(int id) {
+		if (id == NOT_FOUND)
+			falsePositives.increment();
+		else
+			found.increment();
+		return id;
+	}
+
+	private static boolean mightContain(long[] bits, int numBlocks, long a,
+			long b) {
+		int block = blockOf(a, numBlocks);
+		long h = mix(b);
+		for (int i = 0; i < NUM_HASHES; i++) {
+			int bit = (int) (h & 511);
+			h >>>= 9;
+			if ((bits[block + (bit >>> 6)] & (1l << bit)) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** Returns the first word of the block of a term **/
+	private static int blockOf(long a, int numBlocks) {
+		return (int) (((mix(a) & 0xFFFFFFFFL) * numBlocks) >>> 32)
+				* BLOCK_WORDS;
+	}
+
+	private static long mix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/** Returns the number of lookups since the creation or the last reset **/
+	public long getLookups() {
+		return rejected.sum() + found.sum() + falsePositives.sum();
+	}
+
+	/** Returns the number of lookups of known terms **/
+	public long getHits() {
+		return found.sum();
+	}
+
+	/** Returns the number of lookups of unknown terms **/
+	public long getMisses() {
+		return rejected.sum() + falsePositives.sum();
+	}
+
+	/**
+	 * Returns the number of unknown terms which went through the filter and
+	 * had to be looked up in the dictionary
+	 **/
+	public long getFalsePositives() {
+		return falsePositives.sum();
+	}
+
+	/** Returns the proportion of lookups of unknown terms **/
+	public double getOOVRate() {
+		long lookups = getLookups();
+		if (lookups == 0)
+			return 0;
+		return (double) getMisses() / (double) lookups;
+	}
+
+	public void resetCounters() {
+		rejected.reset();
+		found.reset();
+		falsePositives.reset();
+	}
+
+	public void put(String term, int id) {
+		throw new UnsupportedOperationException("Dictionary is read-only");
+	}
+
+	public int remove(CharSequence term) {
+		throw new UnsupportedOperationException("Dictionary is read-only");
+	}
+
+	public int size() {
+		return dictionary.size();
+	}
+
+	public Cursor cursor() {
+		return dictionary.cursor();
+	}
+
+	public Cursor sortedCursor() {
+		return dictionary.sortedCursor();
+	}
+
+	/** Sets the bits of the terms then wraps a dictionary holding them **/
+	public static class Builder {
+
+		private final long[] bits;
+
+		private final int numBlocks;
+
+		public Builder(int expectedTerms) {
+			this(expectedTerms, BITS_PER_TERM);
+		}
+
+		public Builder(int expectedTerms, int bitsPerTerm) {
+			long numBits = Math.max(1l, (long) expectedTerms) * bitsPerTerm;
+			numBlocks = (int) Math.max(1, (numBits + 511) / 512);
+			bits = new long[numBlocks * BLOCK_WORDS];
+		}
+
+		public void add(CharSequence term) {
+			int length = term.length();
+			long a = length;
+			long b = ~a;
+			for (int i = 0; i < length; i++) {
+				char c = term.charAt(i);
+				a = (a ^ c) * M1;
+				b = Long.rotateLeft(b + c, 31) * M2;
+			}
+			int block = blockOf(a, numBlocks);
+			long h = mix(b);
+			for (int i = 0; i < NUM_HASHES; i++) {
+				int bit = (int) (h & 511);
+				h >>>= 9;
+				bits[block + (bit >>> 6)] |= 1l << bit;
+			}
+		}
+
+		/**
+		 * Returns a dictionary filtering the lookups done on dictionary,
+		 * which must contain all the terms added
+		 **/
+		public BloomFilterTermDictionary build(TermDictionary dictionary) {
+			return new BloomFilterTermDictionary(dictionary, bits);
+		}
+	}
+
+}
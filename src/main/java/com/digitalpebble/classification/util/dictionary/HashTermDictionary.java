@@ -0,0 +1,404 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util.dictionary;
+
+import java.util.Arrays;
+
+/**
+ * Open-addressing hash from a term to a primitive int. The characters of the
+ * terms are stored one after the other in a single char array and each entry
+ * costs a handful of ints, instead of a String, a boxed value and a tree node
+ * per term. Lookups use linear probing and removals do a backward shift so
+ * that no tombstones are left in the table.
+ **/
+public class HashTermDictionary implements TermDictionary {
+
+	private static final int MIN_CAPACITY = 16;
+
+	/** Slots of the hash table, hold entry number + 1 or 0 if free **/
+	private int[] slots;
+
+	private int mask;
+
+	/** Characters of all the terms, stored contiguously **/
+	private char[] chars;
+
+	private int charsUsed = 0;
+
+	// per entry values
+	private int[] offsets;
+
+	private int[] lengths;
+
+	private int[] hashes;
+
+	private int[] ids;
+
+	/** number of entries including the removed ones **/
+	private int entries = 0;
+
+	/** number of live entries **/
+	private int size = 0;
+
+	public HashTermDictionary() {
+		this(MIN_CAPACITY);
+	}
+
+	public HashTermDictionary(int expectedSize) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < expectedSize * 2)
+			capacity <<= 1;
+		slots = new int[capacity];
+		mask = capacity - 1;
+		int perEntry = Math.max(MIN_CAPACITY, expectedSize);
+		offsets = new int[perEntry];
+		lengths = new int[perEntry];
+		hashes = new int[perEntry];
+		ids = new int[perEntry];
+		chars = new char[perEntry * 8];
+	}
+
+	public int get(CharSequence term) {
+		int slot = findSlot(term, hash(term));
+		if (slot == -1)
+			return NOT_FOUND;
+		return ids[slots[slot] - 1];
+	}
+
+	public int get(char[] buffer, int offset, int length) {
+		int h = hash(buffer, offset, length);
+		int slot = h & mask;
+		while (true) {
+			int e = slots[slot] - 1;
+			if (e == -1)
+				return NOT_FOUND;
+			if (hashes[e] == h && lengths[e] == length
+					&& regionMatches(e, buffer, offset, length))
+				return ids[e];
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	public void put(String term, int id) {
+		int h = hash(term);
+		int slot = findSlot(term, h);
+		if (slot != -1) {
+			ids[slots[slot] - 1] = id;
+			return;
+		}
+		// reclaim the space used by the removed entries
+		// before growing the arrays
+		if (entries == offsets.length && size < entries / 2)
+			rebuild(slots.length);
+		if ((size + 1) * 2 > slots.length)
+			rebuild(slots.length << 1);
+		int e = addEntry(term, h, id);
+		slot = h & mask;
+		while (slots[slot] != 0)
+			slot = (slot + 1) & mask;
+		slots[slot] = e + 1;
+		size++;
+	}
+
+	public int remove(CharSequence term) {
+		int slot = findSlot(term, hash(term));
+		if (slot == -1)
+			return NOT_FOUND;
+		int e = slots[slot] - 1;
+		int id = ids[e];
+		removeSlot(slot);
+		lengths[e] = -1;
+		size--;
+		return id;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/** Removes all the terms but keeps the memory allocated so far **/
+	public void clear() {
+		Arrays.fill(slots, 0);
+		charsUsed = 0;
+		entries = 0;
+		size = 0;
+	}
+
+	public Cursor cursor() {
+		return new EntryCursor(null);
+	}
+
+	public Cursor sortedCursor() {
+		int[] order = new int[size];
+		int pos = 0;
+		for (int e = 0; e < entries; e++) {
+			if (lengths[e] != -1)
+				order[pos++] = e;
+		}
+		sort(order);
+		return new EntryCursor(order);
+	}
+
+	/** Returns the slot containing the term or -1 if it is not found **/
+	private int findSlot(CharSequence term, int h) {
+		int length = term.length();
+		int slot = h & mask;
+		while (true) {
+			int e = slots[slot] - 1;
+			if (e == -1)
+				return -1;
+			if (hashes[e] == h && lengths[e] == length
+					&& regionMatches(e, term))
+				return slot;
+			slot = (slot + 1) & mask;
+		}
+	}
+
+	/** Frees a slot and shifts back the entries which collided with it **/
+	private void removeSlot(int slot) {
+		int free = slot;
+		int next = (free + 1) & mask;
+		while (slots[next] != 0) {
+			int home = hashes[slots[next] - 1] & mask;
+			// can the entry in next be moved to the free slot?
+			boolean move;
+			if (free <= next)
+				move = home <= free || home > next;
+			else
+				move = home <= free && home > next;
+			if (move) {
+				slots[free] = slots[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		slots[free] = 0;
+	}
+
+	private int addEntry(String term, int h, int id) {
+		if (entries == offsets.length) {
+			int newLength = offsets.length + (offsets.length >> 1);
+			offsets = Arrays.copyOf(offsets, newLength);
+			lengths = Arrays.copyOf(lengths, newLength);
+			hashes = Arrays.copyOf(hashes, newLength);
+			ids = Arrays.copyOf(ids, newLength);
+		}
+		int length = term.length();
+		if (charsUsed + length > chars.length) {
+			long newLength = Math.max(charsUsed + length,
+					(long) chars.length + (chars.length >> 1));
+			if (newLength > Integer.MAX_VALUE - 8)
+				throw new IllegalStateException(
+						"Too many characters in dictionary");
+			chars = Arrays.copyOf(chars, (int) newLength);
+		}
+		term.getChars(0, length, chars, charsUsed);
+		int e = entries++;
+		offsets[e] = charsUsed;
+		lengths[e] = length;
+		hashes[e] = h;
+		ids[e] = id;
+		charsUsed += length;
+		return e;
+	}
+
+	/**
+	 * Rehashes the live entries into a table with the given capacity,
+	 * discarding the removed ones
+	 **/
+	private void rebuild(int capacity) {
+		int liveChars = 0;
+		for (int e = 0; e < entries; e++)
+			if (lengths[e] != -1)
+				liveChars += lengths[e];
+		char[] newChars = new char[Math.max(liveChars
+				+ (liveChars >> 1), MIN_CAPACITY)];
+		int newEntriesLength = Math.max(size + (size >> 1), MIN_CAPACITY);
+		int[] newOffsets = new int[newEntriesLength];
+		int[] newLengths = new int[newEntriesLength];
+		int[] newHashes = new int[newEntriesLength];
+		int[] newIds = new int[newEntriesLength];
+		slots = new int[capacity];
+		mask = capacity - 1;
+		int pos = 0;
+		int charPos = 0;
+		for (int e = 0; e < entries; e++) {
+			int length = lengths[e];
+			if (length == -1)
+				continue;
+			System.arraycopy(chars, offsets[e], newChars, charPos, length);
+			newOffsets[pos] = charPos;
+			newLengths[pos] = length;
+			newHashes[pos] = hashes[e];
+			newIds[pos] = ids[e];
+			int slot = hashes[e] & mask;
+			while (slots[slot] != 0)
+				slot = (slot + 1) & mask;
+			slots[slot] = pos + 1;
+			charPos += length;
+			pos++;
+		}
+		chars = newChars;
+		charsUsed = charPos;
+		offsets = newOffsets;
+		lengths = newLengths;
+		hashes = newHashes;
+		ids = newIds;
+		entries = pos;
+	}
+
+	private boolean regionMatches(int e, CharSequence term) {
+		int offset = offsets[e];
+		for (int i = 0; i < lengths[e]; i++) {
+			if (chars[offset + i] != term.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private boolean regionMatches(int e, char[] buffer, int start, int length) {
+		int offset = offsets[e];
+		for (int i = 0; i < length; i++) {
+			if (chars[offset + i] != buffer[start + i])
+				return false;
+		}
+		return true;
+	}
+
+	/** Compares two entries in the natural String order **/
+	private int compare(int e1, int e2) {
+		int o1 = offsets[e1];
+		int o2 = offsets[e2];
+		int l1 = lengths[e1];
+		int l2 = lengths[e2];
+		int lim = Math.min(l1, l2);
+		for (int i = 0; i < lim; i++) {
+			char c1 = chars[o1 + i];
+			char c2 = chars[o2 + i];
+			if (c1 != c2)
+				return c1 - c2;
+		}
+		return l1 - l2;
+	}
+
+	/** Merge sort of entry numbers by term **/
+	private void sort(int[] order) {
+		int[] buffer = new int[order.length];
+		int[] src = order;
+		int[] dest = buffer;
+		for (int width = 1; width < order.length; width <<= 1) {
+			for (int low = 0; low < order.length; low += width << 1) {
+				int mid = Math.min(low + width, order.length);
+				int high = Math.min(low + (width << 1), order.length);
+				int i = low, j = mid, k = low;
+				while (i < mid && j < high)
+					dest[k++] = compare(src[i], src[j]) <= 0 ? src[i++]
+							: src[j++];
+				while (i < mid)
+					dest[k++] = src[i++];
+				while (j < high)
+					dest[k++] = src[j++];
+			}
+			int[] tmp = src;
+			src = dest;
+			dest = tmp;
+		}
+		if (src != order)
+			System.arraycopy(src, 0, order, 0, order.length);
+	}
+
+	/** Same as String.hashCode() followed by a finalisation step **/
+	static int hash(CharSequence term) {
+		int h;
+		if (term instanceof String)
+			h = term.hashCode();
+		else {
+			h = 0;
+			for (int i = 0; i < term.length(); i++)
+				h = 31 * h + term.charAt(i);
+		}
+		return mix(h);
+	}
+
+	static int hash(char[] buffer, int offset, int length) {
+		int h = 0;
+		for (int i = offset; i < offset + length; i++)
+			h = 31 * h + buffer[i];
+		return mix(h);
+	}
+
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
+
+	private class EntryCursor implements Cursor {
+
+		/** entry numbers to visit or null to visit all of them **/
+		private final int[] order;
+
+		private int pos = -1;
+
+		private int current = -1;
+
+		EntryCursor(int[] order) {
+			this.order = order;
+		}
+
+		public boolean next() {
+			if (order != null) {
+				while (++pos < order.length) {
+					current = order[pos];
+					if (lengths[current] != -1)
+						return true;
+				}
+				return false;
+			}
+			while (++current < entries) {
+				if (lengths[current] != -1)
+					return true;
+			}
+			return false;
+		}
+
+		public String term() {
+			return new String(chars, offsets[current], lengths[current]);
+		}
+
+		public int id() {
+			return ids[current];
+		}
+
+		public void setId(int id) {
+			ids[current] = id;
+		}
+
+		public void remove() {
+			int slot = hashes[current] & mask;
+			while (slots[slot] - 1 != current)
+				slot = (slot + 1) & mask;
+			removeSlot(slot);
+			lengths[current] = -1;
+			size--;
+		}
+	}
+
+}
@@ -0,0 +1,412 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util.dictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.digitalpebble.classification.util.MappedFile;
+
+/**
+ * Read-only dictionary over the terms section of a binary lexicon file,
+ * usually memory-mapped. The terms are stored as a sorted string table : they
+ * are in String order and cut into blocks of a fixed number of terms. Within
+ * a block each term is front-coded, i.e. stored as the number of UTF-8 bytes
+ * it shares with the previous term followed by the rest of its bytes and its
+ * ID. The first term of each block is kept on the heap as a sparse index, a
+ * lookup does a binary search on this index then reads and scans a single
+ * block of the file. The heap footprint is thus a fraction of the number of
+ * terms and the blocks are paged in by the OS as they are needed. No object
+ * is created per lookup and the file is only read with absolute positions so
+ * that the dictionary can be used by several threads.
+ **/
+public class MappedTermDictionary implements TermDictionary {
+
+	/** Default number of terms per block **/
+	public static final int BLOCK_SIZE = 32;
+
+	private final MappedFile file;
+
+	/** position of each block plus the end of the last one **/
+	private final long[] blockStarts;
+
+	/** first term of each block, as UTF-8 **/
+	private final byte[] firstTerms;
+
+	/** offset of the first term of each block in firstTerms **/
+	private final int[] firstTermOffsets;
+
+	private final int[] firstIds;
+
+	private final int numTerms;
+
+	private final int numBlocks;
+
+	/** buffers for reading a block, one per thread **/
+	private final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	/**
+	 * Creates a dictionary over a file containing the sections written by a
+	 * Writer, indexStart and the other values being those given by the Writer
+	 **/
+	public MappedTermDictionary(MappedFile file, long indexStart,
+			int numTerms, int numBlocks) {
+		this.file = file;
+		this.numTerms = numTerms;
+		this.numBlocks = numBlocks;
+		this.blockStarts = new long[numBlocks + 1];
+		this.firstIds = new int[numBlocks];
+		this.firstTermOffsets = new int[numBlocks + 1];
+		// the index is read sequentially
+		long pos = indexStart;
+		byte[] terms = new byte[Math.max(16, numBlocks * 8)];
+		int termsLength = 0;
+		for (int b = 0; b < numBlocks; b++) {
+			blockStarts[b] = file.getLong(pos);
+			firstIds[b] = file.getInt(pos + 8);
+			pos += 12;
+			int length = file.getVarint(pos);
+			pos += MappedFile.varintSize(length);
+			if (termsLength + length > terms.length)
+				terms = Arrays.copyOf(terms, Math.max(termsLength + length,
+						terms.length * 2));
+			file.get(pos, terms, termsLength, length);
+			pos += length;
+			firstTermOffsets[b] = termsLength;
+			termsLength += length;
+		}
+		// the blocks are followed by the index
+		blockStarts[numBlocks] = indexStart;
+		firstTermOffsets[numBlocks] = termsLength;
+		this.firstTerms = Arrays.copyOf(terms, termsLength);
+	}
+
+	public int get(CharSequence term) {
+		int length = term.length();
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++)
+			chars[i] = term.charAt(i);
+		return get(chars, 0, length);
+	}
+
+	public int get(char[] query, int offset, int length) {
+		// last block starting with a term lower or equal to the query
+		int low = 0;
+		int high = numBlocks - 1;
+		int block = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int start = firstTermOffsets[mid];
+			int cmp = compare(firstTerms, start, firstTermOffsets[mid + 1]
+					- start, query, offset, length);
+			if (cmp == 0)
+				return firstIds[mid];
+			if (cmp < 0) {
+				block = mid;
+				low = mid + 1;
+			} else
+				high = mid - 1;
+		}
+		if (block == -1)
+			return NOT_FOUND;
+
+		// scan the rest of the block
+		Scratch s = scratch.get();
+		int end = s.readBlock(block);
+		// the first term has already been compared
+		int pos = s.readEntry(0);
+		while (pos < end) {
+			pos = s.readEntry(pos);
+			int cmp = compare(s.term, 0, s.termLength, query, offset, length);
+			if (cmp == 0)
+				return s.id;
+			if (cmp > 0)
+				return NOT_FOUND;
+		}
+		return NOT_FOUND;
+	}
+
+	public void put(String term, int id) {
+		throw new UnsupportedOperationException("Dictionary is read-only");
+	}
+
+	public int remove(CharSequence term) {
+		throw new UnsupportedOperationException("Dictionary is read-only");
+	}
+
+	public int size() {
+		return numTerms;
+	}
+
+	/** Returns the terms in String order **/
+	public Cursor cursor() {
+		return new BlockCursor();
+	}
+
+	public Cursor sortedCursor() {
+		return new BlockCursor();
+	}
+
+	/**
+	 * Compares a UTF-8 term with the query in the order of String.compareTo,
+	 * i.e. on their UTF-16 chars. Returns a negative value if the stored term
+	 * is lower.
+	 **/
+	private static int compare(byte[] bytes, int pos, int byteLength,
+			char[] query, int offset, int length) {
+		int end = pos + byteLength;
+		int q = offset;
+		int qEnd = offset + length;
+		while (pos < end) {
+			int b = bytes[pos] & 0xFF;
+			int c;
+			if (b < 0x80) {
+				c = b;
+				pos++;
+			} else if (b < 0xE0) {
+				c = ((b & 0x1F) << 6) | (bytes[pos + 1] & 0x3F);
+				pos += 2;
+			} else if (b < 0xF0) {
+				c = ((b & 0x0F) << 12) | ((bytes[pos + 1] & 0x3F) << 6)
+						| (bytes[pos + 2] & 0x3F);
+				pos += 3;
+			} else {
+				int codePoint = ((b & 0x07) << 18)
+						| ((bytes[pos + 1] & 0x3F) << 12)
+						| ((bytes[pos + 2] & 0x3F) << 6)
+						| (bytes[pos + 3] & 0x3F);
+				pos += 4;
+				// compare the surrogate pair
+				if (q == qEnd)
+					return 1;
+				int diff = Character.highSurrogate(codePoint) - query[q++];
+				if (diff != 0)
+					return diff;
+				c = Character.lowSurrogate(codePoint);
+			}
+			if (q == qEnd)
+				return 1;
+			int diff = c - query[q++];
+			if (diff != 0)
+				return diff;
+		}
+		return q == qEnd ? 0 : -1;
+	}
+
+	/**
+	 * Holds a block copied from the file and the term being decoded from it.
+	 * A block entry is the length of the prefix shared with the previous term,
+	 * the length of the suffix, the suffix and the ID, the lengths and ID
+	 * being varints.
+	 **/
+	private class Scratch {
+
+		byte[] block = new byte[1024];
+
+		byte[] term = new byte[64];
+
+		int termLength;
+
+		int id;
+
+		/** copies a block and returns its length **/
+		int readBlock(int b) {
+			int length = (int) (blockStarts[b + 1] - blockStarts[b]);
+			if (length > block.length)
+				block = new byte[Math.max(length, block.length * 2)];
+			file.get(blockStarts[b], block, 0, length);
+			return length;
+		}
+
+		/** decodes the entry at pos and returns the position of the next one **/
+		int readEntry(int pos) {
+			int prefix = 0;
+			int shift = 0;
+			byte v;
+			do {
+				v = block[pos++];
+				prefix |= (v & 0x7F) << shift;
+				shift += 7;
+			} while (v < 0);
+			int suffix = 0;
+			shift = 0;
+			do {
+				v = block[pos++];
+				suffix |= (v & 0x7F) << shift;
+				shift += 7;
+			} while (v < 0);
+			termLength = prefix + suffix;
+			if (termLength > term.length)
+				term = Arrays.copyOf(term, Math.max(termLength,
+						term.length * 2));
+			System.arraycopy(block, pos, term, prefix, suffix);
+			pos += suffix;
+			id = 0;
+			shift = 0;
+			do {
+				v = block[pos++];
+				id |= (v & 0x7F) << shift;
+				shift += 7;
+			} while (v < 0);
+			return pos;
+		}
+	}
+
+	/** Iterates on the terms in the order of the file **/
+	private class BlockCursor implements Cursor {
+
+		private final Scratch reader = new Scratch();
+
+		private int block = -1;
+
+		private int pos;
+
+		private int end;
+
+		public boolean next() {
+			while (pos >= end) {
+				if (block + 1 >= numBlocks)
+					return false;
+				block++;
+				end = reader.readBlock(block);
+				pos = 0;
+			}
+			pos = reader.readEntry(pos);
+			return true;
+		}
+
+		public String term() {
+			return new String(reader.term, 0, reader.termLength,
+					StandardCharsets.UTF_8);
+		}
+
+		public int id() {
+			return reader.id;
+		}
+
+		public void setId(int id) {
+			throw new UnsupportedOperationException("Dictionary is read-only");
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException("Dictionary is read-only");
+		}
+	}
+
+	/**
+	 * Writes the terms of a dictionary to a stream. The terms must be added in
+	 * String order, e.g. from a sorted cursor. The blocks are written as they
+	 * come; the index, i.e. the position, first ID and first term of each
+	 * block, is kept in memory and written after them by finish().
+	 **/
+	public static class Writer {
+
+		private final DataOutputStream out;
+
+		private final int blockSize;
+
+		/** position in the file of the next byte written **/
+		private long position;
+
+		private final ByteArrayOutputStream indexBytes = new ByteArrayOutputStream();
+
+		private final DataOutputStream index = new DataOutputStream(indexBytes);
+
+		private byte[] previous = new byte[0];
+
+		private byte[] entry = new byte[64];
+
+		private int numTerms = 0;
+
+		private long indexStart;
+
+		/**
+		 * position is the number of bytes already written to the file, the
+		 * positions stored are relative to the start of the file
+		 **/
+		public Writer(DataOutputStream out, long position) {
+			this(out, position, BLOCK_SIZE);
+		}
+
+		public Writer(DataOutputStream out, long position, int blockSize) {
+			this.out = out;
+			this.position = position;
+			this.blockSize = blockSize;
+		}
+
+		public void add(String term, int id) throws IOException {
+			byte[] bytes = term.getBytes(StandardCharsets.UTF_8);
+			int prefix = 0;
+			if (numTerms % blockSize == 0) {
+				index.writeLong(position);
+				index.writeInt(id);
+				int length = MappedFile.writeVarint(bytes.length, entry, 0);
+				index.write(entry, 0, length);
+				index.write(bytes);
+			} else {
+				int max = Math.min(previous.length, bytes.length);
+				while (prefix < max && previous[prefix] == bytes[prefix])
+					prefix++;
+			}
+			int suffix = bytes.length - prefix;
+			if (entry.length < suffix + 15)
+				entry = new byte[suffix + 15];
+			int length = MappedFile.writeVarint(prefix, entry, 0);
+			length = MappedFile.writeVarint(suffix, entry, length);
+			System.arraycopy(bytes, prefix, entry, length, suffix);
+			length = MappedFile.writeVarint(id, entry, length + suffix);
+			out.write(entry, 0, length);
+			position += length;
+			previous = bytes;
+			numTerms++;
+		}
+
+		/** Writes the block index, returns the position after it **/
+		public long finish() throws IOException {
+			indexStart = position;
+			index.flush();
+			indexBytes.writeTo(out);
+			position += indexBytes.size();
+			return position;
+		}
+
+		public int getNumTerms() {
+			return numTerms;
+		}
+
+		public int getNumBlocks() {
+			return (numTerms + blockSize - 1) / blockSize;
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		public long getIndexStart() {
+			return indexStart;
+		}
+	}
+
+}
@@ -0,0 +1,429 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util.dictionary;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.digitalpebble.classification.util.MappedFile;
+
+/**
+ * Read-only dictionary based on a minimal perfect hash of a fixed set of
+ * terms, for lexicons which do not change anymore e.g. when classifying.
+ * <p>
+ * The hash is built with the BDZ method : each term is an edge between three
+ * vertices of a 3-hypergraph of about 1.23 vertices per term, the graph is
+ * peeled and a value in [0,3] is assigned to each vertex so that the values of
+ * the three vertices of a term select one vertex which belongs to this term
+ * only. These values take 2 bits per vertex and the rank of the selected
+ * vertex among the used ones, counted with samples every 256 vertices, gives
+ * the slot of the term in [0, number of terms). That is about 2.6 bits per
+ * term for the hash itself.
+ * <p>
+ * The terms themselves are not kept : a 32-bit fingerprint is stored in each
+ * slot next to the ID of the term in order to reject the unknown terms. A
+ * 16-bit one would be smaller but would map about one unknown term in 65000
+ * to the ID of a known one, with 32 bits this drops to one in 4 billions.
+ * <p>
+ * The structure is read from a MappedFile at a given position so that it can
+ * be either built on the heap or mapped from a binary lexicon. Cursors are
+ * delegated to an optional dictionary holding the terms.
+ **/
+public class PerfectHashTermDictionary implements TermDictionary {
+
+	private static final long M1 = 0x9E3779B97F4A7C15L;
+
+	private static final long M2 = 0xC2B2AE3D27D4EB4FL;
+
+	/** seed, number of terms and number of vertices per part **/
+	private static final int HEADER_SIZE = 16;
+
+	/** words of 2-bit values between two rank samples **/
+	private static final int WORDS_PER_SAMPLE = 8;
+
+	private final MappedFile file;
+
+	private final long start;
+
+	private final long seed;
+
+	private final int numTerms;
+
+	/** number of vertices in each of the three parts of the graph **/
+	private final int r;
+
+	private final long valuesStart;
+
+	private final long ranksStart;
+
+	private final long fingerprintsStart;
+
+	private final long idsStart;
+
+	private final long end;
+
+	/** gives the terms to the cursors, may be null **/
+	private final TermDictionary terms;
+
+	/**
+	 * Reads a hash written by a Builder at position start in a file. The
+	 * cursors are delegated to terms if it is not null.
+	 **/
+	public PerfectHashTermDictionary(MappedFile file, long start,
+			TermDictionary terms) {
+		this.file = file;
+		this.start = start;
+		this.terms = terms;
+		this.seed = file.getLong(start);
+		this.numTerms = file.getInt(start + 8);
+		this.r = file.getInt(start + 12);
+		int numWords = numWords(r);
+		this.valuesStart = start + HEADER_SIZE;
+		this.ranksStart = valuesStart + 8l * numWords;
+		this.fingerprintsStart = ranksStart + 4l * numSamples(numWords);
+		this.idsStart = fingerprintsStart + 4l * numTerms;
+		this.end = idsStart + 4l * numTerms;
+	}
+
+	private static int numWords(int r) {
+		return (int) ((3l * r + 31) / 32);
+	}
+
+	private static int numSamples(int numWords) {
+		return (numWords + WORDS_PER_SAMPLE - 1) / WORDS_PER_SAMPLE;
+	}
+
+	public int get(CharSequence term) {
+		int length = term.length();
+		long a = length;
+		long b = ~a;
+		for (int i = 0; i < length; i++) {
+			char c = term.charAt(i);
+			a = (a ^ c) * M1;
+			b = Long.rotateLeft(b + c, 29) * M2;
+		}
+		return find(fmix(a), fmix(b));
+	}
+
+	public int get(char[] buffer, int offset, int length) {
+		long a = length;
+		long b = ~a;
+		for (int i = offset; i < offset + length; i++) {
+			char c = buffer[i];
+			a = (a ^ c) * M1;
+			b = Long.rotateLeft(b + c, 29) * M2;
+		}
+		return find(fmix(a), fmix(b));
+	}
+
+	private int find(long a, long b) {
+		if (numTerms == 0)
+			return NOT_FOUND;
+		long x = fmix(a ^ seed);
+		long y = fmix(b ^ seed);
+		int v0 = vertex(x, r, 0);
+		int v1 = vertex(x >>> 32, r, 1);
+		int v2 = vertex(y, r, 2);
+		int g0 = value(v0);
+		int g1 = value(v1);
+		int g2 = value(v2);
+		int i = (g0 + g1 + g2) % 3;
+		int v = i == 0 ? v0 : (i == 1 ? v1 : v2);
+		int g = i == 0 ? g0 : (i == 1 ? g1 : g2);
+		// unused vertex : the term cannot be in the set
+		if (g == 3)
+			return NOT_FOUND;
+		int slot = rank(v);
+		if (file.getInt(fingerprintsStart + 4l * slot) != fingerprint(a, b))
+			return NOT_FOUND;
+		return file.getInt(idsStart + 4l * slot);
+	}
+
+	/** Returns the 2-bit value of a vertex **/
+	private int value(int v) {
+		long word = file.getLong(valuesStart + 8l * (v >>> 5));
+		return (int) (word >>> ((v & 31) << 1)) & 3;
+	}
+
+	/** Returns the number of used vertices, i.e. not valued 3, before v **/
+	private int rank(int v) {
+		int w = v >>> 5;
+		int sample = w / WORDS_PER_SAMPLE;
+		int rank = file.getInt(ranksStart + 4l * sample);
+		for (int k = sample * WORDS_PER_SAMPLE; k < w; k++)
+			rank += 32 - Long.bitCount(threes(file.getLong(valuesStart + 8l
+					* k)));
+		int bits = (v & 31) << 1;
+		if (bits > 0) {
+			long word = file.getLong(valuesStart + 8l * w);
+			rank += (v & 31)
+					- Long.bitCount(threes(word) & ((1l << bits) - 1));
+		}
+		return rank;
+	}
+
+	/** Returns a word with the low bit of each 2-bit value equal to 3 set **/
+	private static long threes(long word) {
+		return word & (word >>> 1) & 0x5555555555555555L;
+	}
+
+	private static int vertex(long hash, int r, int part) {
+		return part * r + (int) (((hash & 0xFFFFFFFFL) * r) >>> 32);
+	}
+
+	private static int fingerprint(long a, long b) {
+		return (int) (a >>> 32) ^ (int) b;
+	}
+
+	private static long fmix(long h) {
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	public void put(String term, int id) {
+		throw new UnsupportedOperationException("Dictionary is read-only");
+	}
+
+	public int remove(CharSequence term) {
+		throw new UnsupportedOperationException("Dictionary is read-only");
+	}
+
+	public int size() {
+		return numTerms;
+	}
+
+	public Cursor cursor() {
+		if (terms == null)
+			throw new UnsupportedOperationException(
+					"The terms of a perfect hash are not kept");
+		return terms.cursor();
+	}
+
+	public Cursor sortedCursor() {
+		if (terms == null)
+			throw new UnsupportedOperationException(
+					"The terms of a perfect hash are not kept");
+		return terms.sortedCursor();
+	}
+
+	/** Returns the number of bytes taken by the hash **/
+	public long length() {
+		return end - start;
+	}
+
+	/** Copies the hash to an output, it can then be mapped from there **/
+	public void writeTo(DataOutput out) throws IOException {
+		byte[] chunk = new byte[8192];
+		for (long pos = start; pos < end; pos += chunk.length) {
+			int length = (int) Math.min(chunk.length, end - pos);
+			file.get(pos, chunk, 0, length);
+			out.write(chunk, 0, length);
+		}
+	}
+
+	/**
+	 * Collects the hashes of the terms and their IDs then builds a perfect
+	 * hash on the heap. The terms are not kept, only 20 bytes of hashes and
+	 * ID per term.
+	 **/
+	public static class Builder {
+
+		/** two hashes per term **/
+		private long[] hashes;
+
+		private int[] ids;
+
+		private int size = 0;
+
+		public Builder() {
+			this(16);
+		}
+
+		public Builder(int expectedTerms) {
+			hashes = new long[Math.max(2, expectedTerms * 2)];
+			ids = new int[Math.max(1, expectedTerms)];
+		}
+
+		/** Adds a term, which must not have been added before **/
+		public void add(CharSequence term, int id) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				hashes = Arrays.copyOf(hashes, size * 4);
+			}
+			int length = term.length();
+			long a = length;
+			long b = ~a;
+			for (int i = 0; i < length; i++) {
+				char c = term.charAt(i);
+				a = (a ^ c) * M1;
+				b = Long.rotateLeft(b + c, 29) * M2;
+			}
+			hashes[size * 2] = fmix(a);
+			hashes[size * 2 + 1] = fmix(b);
+			ids[size++] = id;
+		}
+
+		/**
+		 * Builds the hash, terms giving the cursors of the resulting
+		 * dictionary if not null
+		 **/
+		public PerfectHashTermDictionary build(TermDictionary terms) {
+			int n = size;
+			int r = Math.max(1, (int) Math.ceil(n * 1.23 / 3)) + 2;
+			int[] edges = new int[n * 3];
+			long seed = 0;
+			for (int attempt = 0;; attempt++) {
+				// a few graphs are not peelable, in which case
+				// another seed is tried, with more vertices if
+				// the set of terms is tiny
+				if (attempt == 100)
+					throw new IllegalStateException(
+							"Could not build a perfect hash, are there duplicate terms?");
+				if (attempt > 0 && attempt % 10 == 0)
+					r += r / 10 + 1;
+				seed = fmix(M1 * (attempt + 1));
+				for (int e = 0; e < n; e++) {
+					long x = fmix(hashes[e * 2] ^ seed);
+					long y = fmix(hashes[e * 2 + 1] ^ seed);
+					edges[e * 3] = vertex(x, r, 0);
+					edges[e * 3 + 1] = vertex(x >>> 32, r, 1);
+					edges[e * 3 + 2] = vertex(y, r, 2);
+				}
+				byte[] values = assign(edges, n, 3 * r);
+				if (values != null)
+					return write(values, edges, n, r, seed, terms);
+			}
+		}
+
+		/**
+		 * Peels the graph and assigns the values of the vertices, returns null
+		 * if the graph cannot be peeled
+		 **/
+		private static byte[] assign(int[] edges, int n, int m) {
+			int[] degrees = new int[m];
+			// xor of the edges of each vertex, gives the last
+			// edge of a vertex once its degree is 1
+			int[] xors = new int[m];
+			for (int e = 0; e < n; e++) {
+				for (int j = 0; j < 3; j++) {
+					int v = edges[e * 3 + j];
+					degrees[v]++;
+					xors[v] ^= e;
+				}
+			}
+			int[] queue = new int[m];
+			int head = 0;
+			int tail = 0;
+			for (int v = 0; v < m; v++)
+				if (degrees[v] == 1)
+					queue[tail++] = v;
+			// edges in the order they are peeled with their free vertex
+			int[] stack = new int[n];
+			byte[] free = new byte[n];
+			int peeled = 0;
+			while (head < tail) {
+				int v = queue[head++];
+				if (degrees[v] != 1)
+					continue;
+				int e = xors[v];
+				stack[peeled] = e;
+				for (int j = 0; j < 3; j++) {
+					int u = edges[e * 3 + j];
+					if (u == v)
+						free[peeled] = (byte) j;
+					degrees[u]--;
+					xors[u] ^= e;
+					if (degrees[u] == 1)
+						queue[tail++] = u;
+				}
+				peeled++;
+			}
+			if (peeled < n)
+				return null;
+			// in reverse order the free vertex of an edge
+			// is not used by the edges already assigned
+			byte[] values = new byte[m];
+			Arrays.fill(values, (byte) 3);
+			for (int i = n - 1; i >= 0; i--) {
+				int e = stack[i];
+				int j = free[i];
+				int sum = values[edges[e * 3 + (j + 1) % 3]]
+						+ values[edges[e * 3 + (j + 2) % 3]];
+				values[edges[e * 3 + j]] = (byte) (((j - sum) % 3 + 6) % 3);
+			}
+			return values;
+		}
+
+		private PerfectHashTermDictionary write(byte[] values, int[] edges,
+				int n, int r, long seed, TermDictionary terms) {
+			int m = 3 * r;
+			int numWords = numWords(r);
+			int numSamples = numSamples(numWords);
+			long length = HEADER_SIZE + 8l * numWords + 4l * numSamples + 8l
+					* n;
+			if (length > Integer.MAX_VALUE)
+				throw new IllegalStateException("Too many terms : " + n);
+			ByteBuffer buffer = ByteBuffer.allocate((int) length);
+			buffer.putLong(seed);
+			buffer.putInt(n);
+			buffer.putInt(r);
+			// 2-bit values, the unused slots of the last word are 3
+			int[] ranks = new int[m];
+			int rank = 0;
+			int valuesStart = buffer.position();
+			int ranksStart = valuesStart + 8 * numWords;
+			for (int w = 0; w < numWords; w++) {
+				if (w % WORDS_PER_SAMPLE == 0)
+					buffer.putInt(ranksStart + 4 * (w / WORDS_PER_SAMPLE),
+							rank);
+				long word = -1l;
+				for (int k = 0; k < 32; k++) {
+					int v = w * 32 + k;
+					if (v >= m)
+						break;
+					word &= ~(3l << (k << 1));
+					word |= ((long) values[v]) << (k << 1);
+					ranks[v] = rank;
+					if (values[v] != 3)
+						rank++;
+				}
+				buffer.putLong(valuesStart + 8 * w, word);
+			}
+			// fingerprint and ID of each term in its slot
+			int fingerprintsStart = ranksStart + 4 * numSamples;
+			int idsStart = fingerprintsStart + 4 * n;
+			for (int e = 0; e < n; e++) {
+				int j = 0;
+				for (int k = 0; k < 3; k++)
+					j += values[edges[e * 3 + k]];
+				int slot = ranks[edges[e * 3 + j % 3]];
+				buffer.putInt(fingerprintsStart + 4 * slot, fingerprint(
+						hashes[e * 2], hashes[e * 2 + 1]));
+				buffer.putInt(idsStart + 4 * slot, ids[e]);
+			}
+			return new PerfectHashTermDictionary(new MappedFile(buffer), 0,
+					terms);
+		}
+	}
+
+}
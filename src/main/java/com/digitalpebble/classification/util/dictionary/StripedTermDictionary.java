@@ -0,0 +1,217 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util.dictionary;
+
+import java.util.PriorityQueue;
+import java.util.function.IntSupplier;
+
+/**
+ * Dictionary which can be modified and queried by several threads at once.
+ * The terms are spread over a number of HashTermDictionary stripes according
+ * to their hash, each stripe being locked for the duration of an operation so
+ * that threads only contend when they access the same stripe. The cursors
+ * must only be used when no other thread is modifying the dictionary.
+ **/
+public class StripedTermDictionary implements TermDictionary {
+
+	/** Default number of stripes **/
+	public static final int STRIPES = 64;
+
+	private final HashTermDictionary[] stripes;
+
+	private final int mask;
+
+	public StripedTermDictionary() {
+		this(STRIPES);
+	}
+
+	/** numStripes is rounded up to a power of 2 **/
+	public StripedTermDictionary(int numStripes) {
+		int size = Integer.highestOneBit(Math.max(1, numStripes - 1)) << 1;
+		stripes = new HashTermDictionary[size];
+		for (int s = 0; s < size; s++)
+			stripes[s] = new HashTermDictionary();
+		mask = size - 1;
+	}
+
+	private HashTermDictionary stripe(CharSequence term) {
+		int h = 0;
+		for (int i = 0; i < term.length(); i++)
+			h = 31 * h + term.charAt(i);
+		return stripes[spread(h)];
+	}
+
+	private HashTermDictionary stripe(char[] buffer, int offset, int length) {
+		int h = 0;
+		for (int i = offset; i < offset + length; i++)
+			h = 31 * h + buffer[i];
+		return stripes[spread(h)];
+	}
+
+	private int spread(int h) {
+		h ^= h >>> 16;
+		h *= 0x45d9f3b;
+		h ^= h >>> 16;
+		return h & mask;
+	}
+
+	public int get(CharSequence term) {
+		HashTermDictionary stripe = stripe(term);
+		synchronized (stripe) {
+			return stripe.get(term);
+		}
+	}
+
+	public int get(char[] buffer, int offset, int length) {
+		HashTermDictionary stripe = stripe(buffer, offset, length);
+		synchronized (stripe) {
+			return stripe.get(buffer, offset, length);
+		}
+	}
+
+	public void put(String term, int id) {
+		HashTermDictionary stripe = stripe(term);
+		synchronized (stripe) {
+			stripe.put(term, id);
+		}
+	}
+
+	/**
+	 * Returns the ID of a term, adding it with an ID given by newId if it is
+	 * not in the dictionary yet. The check and the insertion are atomic so a
+	 * term added by several threads at once gets a single ID.
+	 **/
+	public int putIfAbsent(String term, IntSupplier newId) {
+		HashTermDictionary stripe = stripe(term);
+		synchronized (stripe) {
+			int id = stripe.get(term);
+			if (id == NOT_FOUND) {
+				id = newId.getAsInt();
+				stripe.put(term, id);
+			}
+			return id;
+		}
+	}
+
+	public int remove(CharSequence term) {
+		HashTermDictionary stripe = stripe(term);
+		synchronized (stripe) {
+			return stripe.remove(term);
+		}
+	}
+
+	public int size() {
+		int size = 0;
+		for (HashTermDictionary stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/** Iterates on the stripes one after the other **/
+	public Cursor cursor() {
+		return new Cursor() {
+			private int s = 0;
+
+			private Cursor current = stripes[0].cursor();
+
+			public boolean next() {
+				while (!current.next()) {
+					if (++s == stripes.length)
+						return false;
+					current = stripes[s].cursor();
+				}
+				return true;
+			}
+
+			public String term() {
+				return current.term();
+			}
+
+			public int id() {
+				return current.id();
+			}
+
+			public void setId(int id) {
+				current.setId(id);
+			}
+
+			public void remove() {
+				current.remove();
+			}
+		};
+	}
+
+	/** Merges the sorted cursors of the stripes **/
+	public Cursor sortedCursor() {
+		final PriorityQueue<Head> queue = new PriorityQueue<Head>(
+				stripes.length);
+		for (HashTermDictionary stripe : stripes) {
+			Cursor cursor = stripe.sortedCursor();
+			if (cursor.next())
+				queue.add(new Head(cursor));
+		}
+		return new Cursor() {
+			private Head current;
+
+			public boolean next() {
+				if (current != null && current.cursor.next()) {
+					current.term = current.cursor.term();
+					queue.add(current);
+				}
+				current = queue.poll();
+				return current != null;
+			}
+
+			public String term() {
+				return current.term;
+			}
+
+			public int id() {
+				return current.cursor.id();
+			}
+
+			public void setId(int id) {
+				current.cursor.setId(id);
+			}
+
+			public void remove() {
+				current.cursor.remove();
+			}
+		};
+	}
+
+	/** Cursor of a stripe with its current term **/
+	private static class Head implements Comparable<Head> {
+
+		final Cursor cursor;
+
+		String term;
+
+		Head(Cursor cursor) {
+			this.cursor = cursor;
+			this.term = cursor.term();
+		}
+
+		public int compareTo(Head other) {
+			return term.compareTo(other.term);
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util.dictionary;
+
+/**
+ * Maps the token forms of a Lexicon to their attribute IDs. Implementations
+ * are free to store the terms in any order; the natural String order is only
+ * produced on demand by {@link #sortedCursor()}.
+ **/
+public interface TermDictionary {
+
+	/** Value returned when a term is not in the dictionary **/
+	public static final int NOT_FOUND = -1;
+
+	/** Returns the ID of a term or NOT_FOUND if it is unknown **/
+	public int get(CharSequence term);
+
+	/**
+	 * Same as above but takes the term from a region of a char buffer so that
+	 * callers don't have to create a String
+	 **/
+	public int get(char[] buffer, int offset, int length);
+
+	/** Associates an ID with a term, replacing the previous one if any **/
+	public void put(String term, int id);
+
+	/** Removes a term and returns its ID or NOT_FOUND if it was unknown **/
+	public int remove(CharSequence term);
+
+	/** Returns the number of terms in the dictionary **/
+	public int size();
+
+	/**
+	 * Returns a cursor on the terms in no particular order. Modifying the
+	 * dictionary other than via the cursor invalidates it.
+	 **/
+	public Cursor cursor();
+
+	/**
+	 * Returns a cursor on the terms sorted in their natural String order.
+	 * Modifying the dictionary other than via the cursor invalidates it.
+	 **/
+	public Cursor sortedCursor();
+
+	/** Iterates on the entries of a TermDictionary **/
+	public interface Cursor {
+
+		/** Moves to the next entry, returns false if there are none left **/
+		public boolean next();
+
+		public String term();
+
+		public int id();
+
+		/** Changes the ID of the current entry **/
+		public void setId(int id);
+
+		/** Removes the current entry from the dictionary **/
+		public void remove();
+	}
+
+}
@@ -0,0 +1,109 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.util.scorers;
+
+import java.util.function.Function;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.TrainingCorpus;
+import com.digitalpebble.classification.Vector;
+
+/**
+ * Sums the values of the attributes per label over a corpus : attributes x
+ * labels matrix and its totals. The attributes are given a rank in the order
+ * in which they are first seen. The vectors are built in parallel by batches
+ * but summed in the order of the corpus, so that the result is the same as
+ * with a sequential pass.
+ **/
+class LabelCounts {
+
+	/** Number of vectors built in parallel before being summed **/
+	private static final int BATCH_SIZE = 1024;
+
+	final double[][] matrix;
+
+	final double[] totalAttributes;
+
+	final double[] totalClasses;
+
+	double total = 0d;
+
+	final int[] attributeIDToRank;
+
+	final int[] attributeRankToID;
+
+	private int latestRank = 0;
+
+	LabelCounts(Lexicon lexicon) {
+		int numAttributes = lexicon.getAttributesNum();
+		matrix = new double[numAttributes][lexicon.getLabelNum()];
+		totalAttributes = new double[numAttributes];
+		totalClasses = new double[lexicon.getLabelNum()];
+		attributeIDToRank = new int[lexicon.maxAttributeID() + 1];
+		java.util.Arrays.fill(attributeIDToRank, -1);
+		attributeRankToID = new int[numAttributes];
+		java.util.Arrays.fill(attributeRankToID, -1);
+	}
+
+	static LabelCounts count(TrainingCorpus corpus, Lexicon lexicon,
+			Function<Document, Vector> vectorizer) {
+		LabelCounts counts = new LabelCounts(lexicon);
+		corpus.forEachOrdered(
+				d -> new LabelledVector(d.getLabel(), vectorizer.apply(d)),
+				v -> counts.add(v.label, v.vector), BATCH_SIZE);
+		return counts;
+	}
+
+	private static final class LabelledVector {
+
+		final int label;
+
+		final Vector vector;
+
+		LabelledVector(int label, Vector vector) {
+			this.label = label;
+			this.vector = vector;
+		}
+	}
+
+	private void add(int classNum, Vector vector) {
+		int[] indices = vector.getIndices();
+		double[] values = vector.getValues();
+		for (int i = 0; i < indices.length; i++) {
+			int index = indices[i];
+			double value = values[i];
+			if (value == 0)
+				continue;
+			// problem here : the index is not the same as the rank
+			// find the rank of this attribute
+			int rank = attributeIDToRank[index];
+			if (rank == -1) {
+				// not seen this one yet
+				rank = latestRank;
+				attributeIDToRank[index] = rank;
+				attributeRankToID[rank] = index;
+				latestRank++;
+			}
+			matrix[rank][classNum] += value;
+			totalAttributes[rank] += value;
+			totalClasses[classNum] += value;
+			total += value;
+		}
+	}
+
+}
@@ -0,0 +1,123 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.test;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.digitalpebble.classification.Field;
+import com.digitalpebble.classification.Learner;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Parameters;
+import com.digitalpebble.classification.RAMTrainingCorpus;
+import com.digitalpebble.classification.TextClassifier;
+
+/** Checks that the binary format of the lexicon gives the same results **/
+public class TestBinaryLexicon extends AbstractLearnerTest {
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		learner = Learner.getLearner(tempFile.getAbsolutePath(),
+				Learner.LibLinearModelCreator, true);
+	}
+
+	public void testSameAsText() throws Exception {
+		learner.setBinaryLexicon(false);
+		learner.setMethod(Parameters.WeightingMethod.TFIDF);
+		learner.getLexicon().setMethod(Parameters.WeightingMethod.BOOLEAN,
+				"title");
+		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
+		for (int i = 0; i < TestLibLinear.texts.length; i++) {
+			Field[] fields = new Field[] {
+					new Field("title", TestLibLinear.texts[i]),
+					new Field("body", new String[] { "Мастер", "東京",
+							"𝐀" + i, "the" }) };
+			corpus.add(learner.createDocument(fields, TestLibLinear.labels[i]));
+		}
+		learner.learn(corpus);
+		File lexiconFile = new File(tempFile, Parameters.lexiconName);
+		Lexicon text = new Lexicon(lexiconFile.getAbsolutePath());
+		TextClassifier classifier = TextClassifier.getClassifier(tempFile);
+		double[][] expected = classifier.classify(corpus);
+
+		// convert the lexicon to the binary format
+		text.saveToBinaryFile(lexiconFile.getAbsolutePath());
+		Lexicon mapped = new Lexicon(lexiconFile.getAbsolutePath(), true);
+		Lexicon loaded = new Lexicon(lexiconFile.getAbsolutePath());
+		for (Lexicon binary : new Lexicon[] { mapped, loaded }) {
+			assertEquals(text.getDocNum(), binary.getDocNum());
+			assertEquals(text.getMethod(), binary.getMethod());
+			assertEquals(text.getMethod("title"), binary.getMethod("title"));
+			assertTrue(Arrays.equals(text.getLabels(), binary.getLabels()));
+			assertTrue(Arrays.equals(text.getFields(), binary.getFields()));
+			assertEquals(text.getAttributesNum(), binary.getAttributesNum());
+			assertEquals(text.maxAttributeID(), binary.maxAttributeID());
+			Map<Integer, String> terms = text.getInvertedIndex();
+			assertEquals(terms, binary.getInvertedIndex());
+			for (Map.Entry<Integer, String> term : terms.entrySet()) {
+				assertEquals(term.getKey().intValue(), binary.getIndex(term
+						.getValue()));
+				assertEquals(text.getDocFreq(term.getKey()), binary
+						.getDocFreq(term.getKey()));
+			}
+			assertEquals(-1, binary.getIndex("unknown"));
+		}
+
+		// same lookups once the terms are in a perfect hash
+		Lexicon frozen = new Lexicon(lexiconFile.getAbsolutePath());
+		frozen.freeze();
+		assertEquals(text.getAttributesNum(), frozen.getAttributesNum());
+		for (Map.Entry<Integer, String> term : text.getInvertedIndex()
+				.entrySet())
+			assertEquals(term.getKey().intValue(), frozen.getIndex(term
+					.getValue()));
+		assertEquals(-1, frozen.getIndex("unknown"));
+
+		classifier = TextClassifier.getClassifier(tempFile);
+		double[][] actual = classifier.classify(corpus);
+		for (int d = 0; d < expected.length; d++)
+			assertTrue(Arrays.equals(expected[d], actual[d]));
+	}
+
+	/** The text format is the default, the binary one has to be chosen **/
+	public void testDefaultFormat() throws Exception {
+		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
+		for (int i = 0; i < TestLibLinear.texts.length; i++)
+			corpus.add(learner.createDocument(TestLibLinear.texts[i],
+					TestLibLinear.labels[i]));
+		learner.learn(corpus);
+		File lexiconFile = new File(tempFile, Parameters.lexiconName);
+		assertFalse(startsWithMagic(lexiconFile));
+		learner.setBinaryLexicon(true);
+		learner.learn(corpus);
+		assertTrue(startsWithMagic(lexiconFile));
+	}
+
+	private static boolean startsWithMagic(File file) throws Exception {
+		DataInputStream input = new DataInputStream(new FileInputStream(file));
+		try {
+			return input.readInt() == 0x54434C58; // TCLX
+		} finally {
+			input.close();
+		}
+	}
+
+}
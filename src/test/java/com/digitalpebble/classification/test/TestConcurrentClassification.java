@@ -0,0 +1,250 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Field;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Learner;
+import com.digitalpebble.classification.Parameters;
+import com.digitalpebble.classification.RAMTrainingCorpus;
+import com.digitalpebble.classification.TextClassifier;
+import com.digitalpebble.classification.Vector;
+
+/**
+ * Shares the same TextClassifier and Documents between several threads and
+ * checks that they all get the results of a sequential run
+ **/
+public class TestConcurrentClassification extends AbstractLearnerTest {
+
+	private static final int THREADS = 8;
+
+	private static final int ITERATIONS = 2000;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		learner = Learner.getLearner(tempFile.getAbsolutePath(),
+				Learner.LibLinearModelCreator, true);
+	}
+
+	public void testSharedDocuments() throws Exception {
+		learner.setMethod(Parameters.WeightingMethod.TFIDF);
+		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
+		for (int i = 0; i < TestLibLinear.texts.length; i++) {
+			corpus.add(learner.createDocument(TestLibLinear.texts[i],
+					TestLibLinear.labels[i]));
+			Field[] fields = new Field[] {
+					new Field("title", TestLibLinear.texts[i]),
+					new Field("body", TestLibLinear.texts[(i + 2)
+							% TestLibLinear.texts.length]) };
+			corpus.add(learner.createDocument(fields,
+					TestLibLinear.labels[i]));
+		}
+		learner.learn(corpus);
+
+		final TextClassifier classifier = TextClassifier
+				.getClassifier(tempFile);
+		final Lexicon lexicon = learner.getLexicon();
+
+		// two different mappings of the attribute numbers
+		final List<Map<Integer, Integer>> mappings = new ArrayList<Map<Integer, Integer>>();
+		for (int m = 0; m < 2; m++) {
+			Map<Integer, Integer> equiv = new HashMap<Integer, Integer>();
+			for (int id = 1; id <= lexicon.maxAttributeID(); id++)
+				equiv.put(id, m == 0 ? lexicon.maxAttributeID() - id + 1
+						: id);
+			mappings.add(equiv);
+		}
+
+		// reference values computed sequentially
+		final Document[] documents = corpus.toArray(new Document[corpus
+				.size()]);
+		final String[] serialisations = new String[documents.length];
+		final double[][] expectedScores = new double[documents.length][];
+		final Vector[][] expectedVectors = new Vector[documents.length][mappings
+				.size()];
+		for (int d = 0; d < documents.length; d++) {
+			serialisations[d] = documents[d].getStringSerialization();
+			expectedScores[d] = classifier.classify(documents[d]);
+			for (int m = 0; m < mappings.size(); m++)
+				expectedVectors[d][m] = documents[d].getFeatureVector(
+						lexicon, mappings.get(m));
+		}
+		final double[][] expectedTextScores = new double[TestLibLinear.texts.length][];
+		for (int t = 0; t < TestLibLinear.texts.length; t++)
+			expectedTextScores[t] = classifier.classify(classifier
+					.createDocument(TestLibLinear.texts[t]));
+
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int t = 0; t < THREADS; t++) {
+			final Random random = new Random(t);
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					start.await();
+					for (int i = 0; i < ITERATIONS; i++) {
+						int d = random.nextInt(documents.length);
+						switch (random.nextInt(3)) {
+						case 0:
+							assertTrue(Arrays.equals(expectedScores[d],
+									classifier.classify(documents[d])));
+							break;
+						case 1:
+							int m = random.nextInt(mappings.size());
+							Vector vector = documents[d].getFeatureVector(
+									lexicon, mappings.get(m));
+							assertTrue(Arrays.equals(
+									expectedVectors[d][m].getIndices(),
+									vector.getIndices()));
+							assertTrue(Arrays.equals(
+									expectedVectors[d][m].getValues(),
+									vector.getValues()));
+							break;
+						default:
+							int text = random
+									.nextInt(TestLibLinear.texts.length);
+							Document doc = classifier
+									.createDocument(TestLibLinear.texts[text]);
+							assertTrue(Arrays.equals(expectedTextScores[text],
+									classifier.classify(doc)));
+						}
+					}
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		try {
+			for (Future<Object> result : results)
+				result.get();
+		} finally {
+			executor.shutdown();
+		}
+
+		// the documents have not been modified
+		for (int d = 0; d < documents.length; d++)
+			assertEquals(serialisations[d], documents[d]
+					.getStringSerialization());
+	}
+
+	/**
+	 * Creates the same documents sequentially with a normal lexicon, then
+	 * sequentially and from several threads with a concurrent one
+	 **/
+	public void testConcurrentIngestion() throws Exception {
+		final int numDocs = 400;
+		final String[][] tokens = TestTrainingCorpus.randomTokens(numDocs, 35,
+				"w", 3000, 0);
+		final String[] labels = new String[numDocs];
+		for (int d = 0; d < numDocs; d++)
+			labels[d] = "label" + (d % 5);
+		Learner sequential = newLearner("sequential");
+		for (int d = 0; d < numDocs; d++)
+			createDocument(sequential, tokens[d], labels[d], d);
+
+		// same order : same IDs
+		learner.setConcurrent(true);
+		for (int d = 0; d < numDocs; d++)
+			createDocument(learner, tokens[d], labels[d], d);
+		Lexicon expected = sequential.getLexicon();
+		Lexicon lexicon = learner.getLexicon();
+		assertEquals(expected.getInvertedIndex(), lexicon.getInvertedIndex());
+		for (int id = 0; id <= expected.maxAttributeID(); id++)
+			assertEquals(expected.getDocFreq(id), lexicon.getDocFreq(id));
+
+		// any order : same terms and counts
+		final Learner parallel = newLearner("parallel");
+		parallel.setConcurrent(true);
+		final CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		List<Future<Object>> results = new ArrayList<Future<Object>>();
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			results.add(executor.submit(new Callable<Object>() {
+				public Object call() throws Exception {
+					start.await();
+					for (int d = thread; d < numDocs; d += THREADS)
+						createDocument(parallel, tokens[d], labels[d], d);
+					return null;
+				}
+			}));
+		}
+		start.countDown();
+		try {
+			for (Future<Object> result : results)
+				result.get();
+		} finally {
+			executor.shutdown();
+		}
+		lexicon = parallel.getLexicon();
+		lexicon.setConcurrent(false);
+		assertEquals(expected.getDocNum(), lexicon.getDocNum());
+		assertEquals(expected.getAttributesNum(), lexicon.getAttributesNum());
+		// no ID given twice
+		assertEquals(expected.maxAttributeID(), lexicon.maxAttributeID());
+		List<String> expectedLabels = Arrays.asList(expected.getLabels());
+		List<String> actualLabels = Arrays.asList(lexicon.getLabels());
+		assertEquals(expectedLabels.size(), actualLabels.size());
+		assertTrue(actualLabels.containsAll(expectedLabels));
+		assertEquals(expected.getFields().length, lexicon.getFields().length);
+		for (Map.Entry<Integer, String> term : expected.getInvertedIndex()
+				.entrySet())
+			assertEquals(expected.getDocFreq(term.getKey()), lexicon
+					.getDocFreq(lexicon.getIndex(term.getValue())));
+	}
+
+	private Learner newLearner(String name) throws Exception {
+		return newLearner(tempFile, name);
+	}
+
+	/** Returns a learner working in a sub-directory **/
+	static Learner newLearner(File parent, String name) throws Exception {
+		File directory = new File(parent, name);
+		directory.mkdir();
+		return Learner.getLearner(directory.getAbsolutePath(),
+				Learner.LibLinearModelCreator, true);
+	}
+
+	/** alternates simple and multi-field documents **/
+	static Document createDocument(Learner learner, String[] tokens,
+			String label, int d) {
+		if (d % 2 == 0)
+			return learner.createDocument(tokens, label);
+		int half = tokens.length / 2;
+		Field[] fields = new Field[] {
+				new Field("title", Arrays.copyOfRange(tokens, 0, half)),
+				new Field("body", Arrays.copyOfRange(tokens, half,
+						tokens.length)) };
+		return learner.createDocument(fields, label);
+	}
+
+}
@@ -0,0 +1,212 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.test;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+
+import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Learner;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.Parameters;
+import com.digitalpebble.classification.RAMTrainingCorpus;
+import com.digitalpebble.classification.TextClassifier;
+import com.digitalpebble.classification.util.Tokenizer;
+import com.digitalpebble.classification.util.dictionary.BloomFilterTermDictionary;
+
+public class TestLibLinear extends AbstractLearnerTest {
+
+	static final String[][] texts = new String[][] {
+			{ "the", "cat", "sat", "on", "the", "mat" },
+			{ "a", "cat", "and", "a", "kitten" },
+			{ "stocks", "fell", "on", "the", "market" },
+			{ "the", "market", "rallied", "stocks", "rose" },
+			{ "the", "team", "won", "the", "match" },
+			{ "a", "great", "match", "for", "the", "team" } };
+
+	static final String[] labels = new String[] { "pets", "pets",
+			"finance", "finance", "sport", "sport" };
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		learner = Learner.getLearner(tempFile.getAbsolutePath(),
+				Learner.LibLinearModelCreator, true);
+	}
+
+	RAMTrainingCorpus train() throws Exception {
+		learner.setMethod(Parameters.WeightingMethod.FREQUENCY);
+		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
+		for (int i = 0; i < texts.length; i++)
+			corpus.add(learner.createDocument(texts[i], labels[i]));
+		learner.learn(corpus);
+		return corpus;
+	}
+
+	public void testInMemoryPrediction() throws Exception {
+		RAMTrainingCorpus corpus = train();
+		TextClassifier classifier = TextClassifier.getClassifier(tempFile);
+		double[][] scores = classifier.classify(corpus);
+		for (int i = 0; i < texts.length; i++) {
+			assertEquals(labels[i], classifier.getBestLabel(scores[i]));
+			// decision values rather than a one-hot vector
+			int nonZero = 0;
+			for (double score : scores[i])
+				if (score != 0)
+					nonZero++;
+			assertEquals(3, nonZero);
+		}
+		Document doc = classifier.createDocument(new String[] { "kitten",
+				"on", "a", "mat" });
+		assertEquals("pets", classifier.getBestLabel(classifier.classify(doc)));
+	}
+
+	public void testClassifyText() throws Exception {
+		train();
+		TextClassifier classifier = TextClassifier.getClassifier(tempFile);
+		String[] inputs = new String[] { "The cat sat on the MAT",
+				"stocks rallied, the team won", "nothing known", "" };
+		for (String text : inputs) {
+			Document doc = classifier.createDocument(Tokenizer.tokenize(text,
+					true));
+			assertTrue(java.util.Arrays.equals(classifier.classify(doc),
+					classifier.classify(text)));
+		}
+		assertEquals("finance", classifier.getBestLabel(classifier
+				.classify("Stocks fell on the market")));
+	}
+
+	/**
+	 * An implementation which only classifies Documents gets the ones of the
+	 * raw texts
+	 **/
+	public void testClassifyTextAsDocument() throws Exception {
+		train();
+		final TextClassifier classifier = TextClassifier
+				.getClassifier(tempFile);
+		final Lexicon loaded = new Lexicon(new File(tempFile,
+				Parameters.lexiconName).getPath());
+		TextClassifier byDocument = new TextClassifier() {
+			{
+				this.lexicon = loaded;
+			}
+
+			protected void loadModel() {
+			}
+
+			public double[] classify(Document document) throws Exception {
+				assertNotNull(document.getStringSerialization());
+				return classifier.classify(document);
+			}
+		};
+		String text = "The cat sat on the MAT";
+		assertTrue(java.util.Arrays.equals(classifier.classify(text),
+				byDocument.classify(text)));
+		assertTrue(java.util.Arrays.equals(classifier.classify(
+				new String[] { "unknown" }, new String[] { text }), byDocument
+				.classify(new String[] { "unknown" }, new String[] { text })));
+	}
+
+	public void testOOVFilter() throws Exception {
+		train();
+		TextClassifier classifier = TextClassifier.getClassifier(tempFile);
+		TextClassifier filtered = TextClassifier.getClassifier(tempFile,
+				TextClassifier.LexiconMode.OOV_FILTER);
+		assertNull(classifier.getOOVFilter());
+		BloomFilterTermDictionary filter = filtered.getOOVFilter();
+		assertNotNull(filter);
+		String[] inputs = new String[] { "The cat sat on the MAT",
+				"stocks rallied, the team won", "nothing known", "" };
+		for (String text : inputs)
+			assertTrue(java.util.Arrays.equals(classifier.classify(text),
+					filtered.classify(text)));
+		filter.resetCounters();
+		filtered.classify("cat cat xyzzy");
+		assertEquals(3, filter.getLookups());
+		assertEquals(2, filter.getHits());
+		assertEquals(1, filter.getMisses());
+		assertEquals(1d / 3d, filter.getOOVRate(), 1e-9);
+	}
+
+	/**
+	 * The lexicon of a classifier keeps its terms unless it is frozen, which
+	 * gives the same predictions
+	 **/
+	public void testFrozenLexicon() throws Exception {
+		train();
+		TextClassifier classifier = TextClassifier.getClassifier(tempFile);
+		TextClassifier frozen = TextClassifier.getClassifier(tempFile,
+				TextClassifier.LexiconMode.FROZEN);
+		Lexicon lexicon = classifier.getLexicon();
+		assertEquals(learner.getLexicon().getInvertedIndex(), lexicon
+				.getInvertedIndex());
+		lexicon.saveToFile(new File(tempFile, "copy").getAbsolutePath());
+		try {
+			frozen.getLexicon().getInvertedIndex();
+			fail("The terms of a frozen lexicon are not kept");
+		} catch (UnsupportedOperationException e) {
+		}
+		for (String[] tokens : texts)
+			assertTrue(java.util.Arrays.equals(classifier.classify(classifier
+					.createDocument(tokens)), frozen.classify(frozen
+					.createDocument(tokens))));
+	}
+
+	public void testHashing() throws Exception {
+		learner.setHashing(16);
+		RAMTrainingCorpus corpus = train();
+		Lexicon lexicon = learner.getLexicon();
+		assertTrue(lexicon.isHashing());
+		assertTrue(lexicon.getInvertedIndex().isEmpty());
+		assertEquals(1 << 16, lexicon.getAttributesNum());
+
+		TextClassifier classifier = TextClassifier.getClassifier(tempFile);
+		double[][] scores = classifier.classify(corpus);
+		for (int i = 0; i < texts.length; i++)
+			assertEquals(labels[i], classifier.getBestLabel(scores[i]));
+		assertEquals("finance", classifier.getBestLabel(classifier
+				.classify("Stocks fell on the market")));
+
+		// the text format keeps the doc frequencies of the IDs
+		File text = new File(tempFile, "hashing.txt");
+		lexicon.saveToFile(text.getPath());
+		Lexicon loaded = new Lexicon(text.getPath());
+		assertEquals(16, loaded.getHashingBits());
+		assertEquals(lexicon.getIndex("market"), loaded.getIndex("market"));
+		for (int id = 0; id <= lexicon.maxAttributeID(); id++)
+			assertEquals(lexicon.getDocFreq(id), loaded.getDocFreq(id));
+	}
+
+	public void testParallelClassification() throws Exception {
+		RAMTrainingCorpus corpus = train();
+		TextClassifier classifier = TextClassifier.getClassifier(tempFile);
+		Document[] documents = new Document[1000];
+		for (int d = 0; d < documents.length; d++)
+			documents[d] = corpus.get(d % corpus.size());
+		double[][] expected = classifier.classify(documents);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			classifier.setParallelChunkSize(10);
+			double[][] actual = classifier.classify(documents, pool);
+			for (int d = 0; d < documents.length; d++)
+				assertTrue(java.util.Arrays.equals(expected[d], actual[d]));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+}
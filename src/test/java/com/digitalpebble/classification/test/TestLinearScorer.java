@@ -0,0 +1,141 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.test;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.digitalpebble.classification.liblinear.LinearScorer;
+
+import de.bwaldvogel.liblinear.Feature;
+import de.bwaldvogel.liblinear.FeatureNode;
+import de.bwaldvogel.liblinear.Linear;
+import de.bwaldvogel.liblinear.Model;
+import de.bwaldvogel.liblinear.Parameter;
+import de.bwaldvogel.liblinear.Problem;
+import de.bwaldvogel.liblinear.SolverType;
+
+/** Checks that LinearScorer gives the same values as liblinear **/
+public class TestLinearScorer extends TestCase {
+
+	private static final int numFeatures = 50;
+
+	@Override
+	protected void setUp() throws Exception {
+		super.setUp();
+		Linear.disableDebugOutput();
+	}
+
+	public void testBinary() {
+		checkParity(SolverType.L2R_L2LOSS_SVC_DUAL, 2, 1);
+		checkParity(SolverType.L2R_L2LOSS_SVC_DUAL, 2, -1);
+		checkParity(SolverType.MCSVM_CS, 2, 1);
+	}
+
+	public void testMultiClass() {
+		checkParity(SolverType.L2R_L2LOSS_SVC_DUAL, 4, 1);
+		checkParity(SolverType.MCSVM_CS, 4, -1);
+	}
+
+	public void testProbabilities() {
+		checkParity(SolverType.L2R_LR, 2, 1);
+		checkParity(SolverType.L2R_LR, 3, -1);
+	}
+
+	private void checkParity(SolverType solver, int numClasses, double bias) {
+		Random random = new Random(numClasses);
+		Problem problem = new Problem();
+		problem.l = 200;
+		problem.n = bias >= 0 ? numFeatures + 1 : numFeatures;
+		problem.bias = bias;
+		problem.x = new Feature[problem.l][];
+		problem.y = new double[problem.l];
+		for (int i = 0; i < problem.l; i++) {
+			// labels deliberately not in order of first occurrence
+			int label = numClasses - 1 - (i % numClasses);
+			problem.y[i] = label;
+			int[] indices = randomIndices(random, numFeatures);
+			double[] values = new double[indices.length];
+			for (int j = 0; j < indices.length; j++)
+				values[j] = random.nextDouble()
+						+ (indices[j] % numClasses == label ? 1 : 0);
+			problem.x[i] = toNodes(indices, values, indices.length, bias);
+		}
+		Model model = Linear.train(problem, new Parameter(solver, 1, 0.01));
+		LinearScorer scorer = new LinearScorer(model);
+
+		int nr_class = model.getNrClass();
+		int[] modelLabels = model.getLabels();
+		for (int t = 0; t < 50; t++) {
+			// test vectors can have features unknown to the model
+			int[] indices = randomIndices(random, numFeatures + 10);
+			double[] values = new double[indices.length];
+			for (int j = 0; j < indices.length; j++)
+				values[j] = random.nextDouble();
+			int known = 0;
+			while (known < indices.length && indices[known] <= numFeatures)
+				known++;
+			Feature[] nodes = toNodes(indices, values, known, bias);
+
+			double[] expected = new double[nr_class];
+			double[] actual = new double[nr_class];
+			Linear.predictValues(model, nodes, expected);
+			scorer.decisionValues(indices, values, indices.length, actual);
+			for (int c = 0; c < nr_class; c++)
+				assertEquals(expected[c], actual[c], 1e-12);
+
+			double[] scores = scorer.score(indices, values, indices.length,
+					nr_class);
+			if (model.isProbabilityModel()) {
+				Linear.predictProbability(model, nodes, expected);
+				scorer.probabilities(indices, values, indices.length, actual);
+				for (int c = 0; c < nr_class; c++) {
+					assertEquals(expected[c], actual[c], 1e-12);
+					assertEquals(expected[c], scores[modelLabels[c]], 1e-12);
+				}
+			}
+
+			// the best label must be the one predicted by liblinear
+			int best = 0;
+			for (int c = 1; c < scores.length; c++)
+				if (scores[c] > scores[best])
+					best = c;
+			assertEquals(Linear.predict(model, nodes), (double) best);
+		}
+	}
+
+	private static int[] randomIndices(Random random, int max) {
+		int[] indices = new int[max];
+		int num = 0;
+		for (int i = 1; i <= max; i++)
+			if (random.nextInt(3) == 0)
+				indices[num++] = i;
+		return java.util.Arrays.copyOf(indices, num);
+	}
+
+	private static Feature[] toNodes(int[] indices, double[] values,
+			int length, double bias) {
+		Feature[] nodes = new Feature[bias >= 0 ? length + 1 : length];
+		for (int i = 0; i < length; i++)
+			nodes[i] = new FeatureNode(indices[i], values[i]);
+		if (bias >= 0)
+			nodes[length] = new FeatureNode(numFeatures + 1, bias);
+		return nodes;
+	}
+
+}
@@ -17,6 +17,7 @@
 package com.digitalpebble.classification.test;
 
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 import com.digitalpebble.classification.Document;
 import com.digitalpebble.classification.Field;
@@ -24,6 +25,7 @@ import com.digitalpebble.classification.Parameters;
 import com.digitalpebble.classification.RAMTrainingCorpus;
 import com.digitalpebble.classification.TextClassifier;
 import com.digitalpebble.classification.Vector;
+import com.digitalpebble.classification.util.Tokenizer;
 
 public class TestMultiFieldDocs extends AbstractLearnerTest {
 
@@ -72,10 +74,78 @@ public class TestMultiFieldDocs extends AbstractLearnerTest {
 		assertEquals("small", classi.getBestLabel(scores));
 	}
 
+	/** Classifying the raw text of the fields gives the same scores **/
+	public void testClassifyText() throws Exception {
+		train();
+		TextClassifier classi = TextClassifier.getClassifier(tempFile);
+		String[] names = new String[] { "title", "content", "unknown" };
+		String[] texts = new String[] { "This is not a title",
+				"This is the content, this will have a small value", "value" };
+		Field[] tokenized = new Field[names.length];
+		for (int f = 0; f < names.length; f++)
+			tokenized[f] = new Field(names[f], Tokenizer.tokenize(texts[f],
+					true));
+		assertTrue(java.util.Arrays.equals(classi.classify(classi
+				.createDocument(tokenized)), classi.classify(names, texts)));
+	}
+
+	/** Same results when classifying in parallel **/
+	public void testParallelClassification() throws Exception {
+		Document[] docs = train();
+		TextClassifier classi = TextClassifier.getClassifier(tempFile);
+		Document[] documents = new Document[300];
+		for (int d = 0; d < documents.length; d++)
+			documents[d] = docs[d % docs.length];
+		double[][] expected = classi.classify(documents);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			classi.setParallelChunkSize(7);
+			double[][] actual = classi.classify(documents, pool);
+			for (int d = 0; d < documents.length; d++)
+				assertTrue(java.util.Arrays.equals(expected[d], actual[d]));
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Learns from the first two documents of testMultiField() and returns
+	 * them with the third one
+	 **/
+	private Document[] train() throws Exception {
+		learner.setMethod(Parameters.WeightingMethod.TFIDF);
+		Document doc = learner.createDocument(new Field[] {
+				new Field("title", new String[] { "This", "is", "a", "title" }),
+				new Field("abstract", new String[] { "abstract" }),
+				new Field("content", new String[] { "This", "is", "the",
+						"content", "this", "will", "have", "a", "large",
+						"value" }) }, "large");
+		Document doc2 = learner.createDocument(new Field[] {
+				new Field("title", new String[] { "This", "is", "not", "a",
+						"title" }),
+				new Field("content", new String[] { "This", "is", "the",
+						"content", "this", "will", "have", "a", "small",
+						"value" }) }, "small");
+		Document doc3 = learner.createDocument(new Field[] {
+				new Field("title", new String[] { "This", "is", "not", "a",
+						"title" }),
+				new Field("content", new String[] { "This", "is", "the",
+						"content", "this", "will", "have", "a", "small",
+						"value" }),
+				new Field("title", new String[] { "some", "different",
+						"content" }) }, "small");
+		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
+		corpus.add(doc);
+		corpus.add(doc2);
+		learner.learn(corpus);
+		return new Document[] { doc, doc2, doc3 };
+	}
+
 	public void testCustomWeightingScheme() throws Exception {
 		Field[] fields = new Field[1];
 		fields[0] = new Field("keywords", new String[] { "test","keywords"});
 		learner.setMethod(Parameters.WeightingMethod.FREQUENCY);
+		learner.setNormalization(false);
 		learner.getLexicon().setMethod(Parameters.WeightingMethod.BOOLEAN, "keywords");
 		Document doc = learner.createDocument(fields, "large");
 		Vector vector = doc.getFeatureVector(learner.getLexicon());
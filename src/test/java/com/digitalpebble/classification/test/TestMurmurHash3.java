@@ -0,0 +1,52 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.test;
+
+import junit.framework.TestCase;
+
+import com.digitalpebble.classification.util.MurmurHash3;
+
+/**
+ * Checks MurmurHash3 against the published outputs of MurmurHash3_x86_32, the
+ * attributes of the hashed models depending on them. The chars of a term are
+ * hashed as their UTF-16LE bytes, so the byte inputs are given here as the
+ * chars which encode to them.
+ **/
+public class TestMurmurHash3 extends TestCase {
+
+	public void testKnownAnswers() {
+		assertHash(0, "", 0);
+		assertHash(0x514E28B7, "", 1);
+		assertHash(0x81F16F39, "", 0xFFFFFFFF);
+		// 00 00 00 00
+		assertHash(0x2362F9DE, "\u0000\u0000", 0);
+		// "aaaa"
+		assertHash(0x5A97808A, "\u6161\u6161", 0x9747B28C);
+		// "abcd"
+		assertHash(0xF0478627, "\u6261\u6463", 0x9747B28C);
+		// "ab", a single char in the tail
+		assertHash(0x74875592, "\u6261", 0x9747B28C);
+	}
+
+	private static void assertHash(int expected, String term, int seed) {
+		assertEquals(expected, MurmurHash3.hash(term, seed));
+		char[] buffer = ("xx" + term + "x").toCharArray();
+		assertEquals(expected, MurmurHash3.hash(buffer, 2, term.length(),
+				seed));
+	}
+
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.TreeMap;
+
+import junit.framework.TestCase;
+
+import com.digitalpebble.classification.util.MappedFile;
+import com.digitalpebble.classification.util.dictionary.HashTermDictionary;
+import com.digitalpebble.classification.util.dictionary.MappedTermDictionary;
+import com.digitalpebble.classification.util.dictionary.PerfectHashTermDictionary;
+import com.digitalpebble.classification.util.dictionary.TermDictionary;
+
+public class TestTermDictionary extends TestCase {
+
+	public void testAgainstTreeMap() {
+		TermDictionary dictionary = new HashTermDictionary();
+		TreeMap<String, Integer> reference = new TreeMap<String, Integer>();
+		java.util.Random random = new java.util.Random(0);
+		for (int i = 0; i < 20000; i++) {
+			String term = "t" + random.nextInt(5000);
+			if (random.nextInt(4) == 0) {
+				Integer expected = reference.remove(term);
+				assertEquals(expected == null ? TermDictionary.NOT_FOUND
+						: expected.intValue(), dictionary.remove(term));
+			} else {
+				reference.put(term, i);
+				dictionary.put(term, i);
+			}
+		}
+		assertEquals(reference.size(), dictionary.size());
+
+		// terms must come back in the same order as with the TreeMap
+		TermDictionary.Cursor cursor = dictionary.sortedCursor();
+		for (String term : reference.keySet()) {
+			assertTrue(cursor.next());
+			assertEquals(term, cursor.term());
+			assertEquals(reference.get(term).intValue(), cursor.id());
+			char[] chars = ("_" + term).toCharArray();
+			assertEquals(cursor.id(), dictionary.get(chars, 1,
+					chars.length - 1));
+		}
+		assertFalse(cursor.next());
+	}
+
+	public void testCursorRemove() {
+		TermDictionary dictionary = new HashTermDictionary();
+		for (int i = 0; i < 100; i++)
+			dictionary.put("term" + i, i);
+		TermDictionary.Cursor cursor = dictionary.cursor();
+		while (cursor.next()) {
+			if (cursor.id() % 2 == 0)
+				cursor.remove();
+		}
+		assertEquals(50, dictionary.size());
+		for (int i = 0; i < 100; i++) {
+			int expected = i % 2 == 0 ? TermDictionary.NOT_FOUND : i;
+			assertEquals(expected, dictionary.get("term" + i));
+		}
+	}
+
+	public void testMappedDictionary() throws Exception {
+		// mix of ASCII, BMP chars above the surrogates
+		// and supplementary chars to check the ordering
+		String[] alphabet = new String[] { "a", "b", "z", "\u00e9", "\u0416",
+				"\uff21", "\ud835\udc00", "\u6771" };
+		TreeMap<String, Integer> reference = new TreeMap<String, Integer>();
+		java.util.Random random = new java.util.Random(0);
+		while (reference.size() < 5000) {
+			StringBuilder term = new StringBuilder();
+			int length = 1 + random.nextInt(6);
+			for (int i = 0; i < length; i++)
+				term.append(alphabet[random.nextInt(alphabet.length)]);
+			reference.put(term.toString(), reference.size() + 1);
+		}
+		File file = File.createTempFile("terms", ".bin");
+		file.deleteOnExit();
+		DataOutputStream out = new DataOutputStream(new FileOutputStream(
+				file));
+		out.writeInt(42);
+		MappedTermDictionary.Writer writer = new MappedTermDictionary.Writer(
+				out, 4, 16);
+		for (Map.Entry<String, Integer> entry : reference.entrySet())
+			writer.add(entry.getKey(), entry.getValue());
+		writer.finish();
+		out.close();
+		// tiny segments so that blocks and terms straddle them
+		MappedFile[] files = new MappedFile[] { MappedFile.map(file),
+				MappedFile.map(file, 6) };
+		for (MappedFile mapped : files) {
+			TermDictionary dictionary = new MappedTermDictionary(mapped,
+					writer.getIndexStart(), writer.getNumTerms(), writer
+							.getNumBlocks());
+			checkMappedDictionary(reference, dictionary);
+		}
+		file.delete();
+	}
+
+	private void checkMappedDictionary(TreeMap<String, Integer> reference,
+			TermDictionary dictionary) {
+		assertEquals(reference.size(), dictionary.size());
+		TermDictionary.Cursor cursor = dictionary.sortedCursor();
+		for (Map.Entry<String, Integer> entry : reference.entrySet()) {
+			assertTrue(cursor.next());
+			assertEquals(entry.getKey(), cursor.term());
+			assertEquals(entry.getValue().intValue(), cursor.id());
+			assertEquals(cursor.id(), dictionary.get(entry.getKey()));
+			// unknown terms around the known one
+			String before = entry.getKey().substring(0,
+					entry.getKey().length() - 1);
+			if (!reference.containsKey(before))
+				assertEquals(TermDictionary.NOT_FOUND, dictionary.get(before));
+			assertEquals(TermDictionary.NOT_FOUND, dictionary.get(entry
+					.getKey()
+					+ "!"));
+		}
+		assertFalse(cursor.next());
+		assertEquals(TermDictionary.NOT_FOUND, dictionary.get(""));
+		assertEquals(TermDictionary.NOT_FOUND, dictionary.get("\uffff"));
+	}
+
+	public void testPerfectHash() {
+		String[] alphabet = new String[] { "a", "b", "\u00e9", "\u0416",
+				"\ud835\udc00", "\u6771" };
+		java.util.Random random = new java.util.Random(0);
+		for (int size : new int[] { 0, 1, 2, 3, 10, 5000 }) {
+			TreeMap<String, Integer> reference = new TreeMap<String, Integer>();
+			while (reference.size() < size) {
+				StringBuilder term = new StringBuilder();
+				int length = 1 + random.nextInt(8);
+				for (int i = 0; i < length; i++)
+					term.append(alphabet[random.nextInt(alphabet.length)]);
+				reference.put(term.toString(), random.nextInt(1000000));
+			}
+			PerfectHashTermDictionary.Builder builder = new PerfectHashTermDictionary.Builder();
+			for (Map.Entry<String, Integer> entry : reference.entrySet())
+				builder.add(entry.getKey(), entry.getValue());
+			TermDictionary dictionary = builder.build(null);
+			assertEquals(size, dictionary.size());
+			for (Map.Entry<String, Integer> entry : reference.entrySet()) {
+				assertEquals(entry.getValue().intValue(), dictionary
+						.get(entry.getKey()));
+				char[] chars = ("_" + entry.getKey()).toCharArray();
+				assertEquals(entry.getValue().intValue(), dictionary.get(
+						chars, 1, chars.length - 1));
+				assertEquals(TermDictionary.NOT_FOUND, dictionary.get(entry
+						.getKey()
+						+ "!"));
+			}
+			assertEquals(TermDictionary.NOT_FOUND, dictionary.get(""));
+		}
+		try {
+			new PerfectHashTermDictionary.Builder().build(null).cursor();
+			fail("the terms of a perfect hash are not kept");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+}
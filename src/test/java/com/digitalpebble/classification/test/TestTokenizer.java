@@ -0,0 +1,64 @@
+/**
+ * Copyright 2009 DigitalPebble Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.digitalpebble.classification.test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.digitalpebble.classification.util.Tokenizer;
+
+public class TestTokenizer extends TestCase {
+
+	public void testAscii() {
+		String[] tokens = Tokenizer.tokenize("  The cat, sat_on 2 MATS!", true);
+		assertTrue(Arrays.equals(new String[] { "the", "cat", "sat_on", "2",
+				"mats" }, tokens));
+		tokens = Tokenizer.tokenize("The Cat", false);
+		assertTrue(Arrays.equals(new String[] { "The", "Cat" }, tokens));
+		assertEquals(0, Tokenizer.tokenize(" ,;. ", true).length);
+	}
+
+	public void testNonEuropean() {
+		String[] tokens = Tokenizer.tokenize(
+				"Мастер и Маргарита. नमस्ते दुनिया 東京𝐀", true);
+		assertTrue(Arrays.equals(new String[] { "мастер", "и", "маргарита",
+				"नमस्ते", "दुनिया", "東京𝐀" }, tokens));
+	}
+
+	public void testSpans() {
+		final List<String> tokens = new ArrayList<String>();
+		char[] text = "xx Hello World xx".toCharArray();
+		final List<Integer> starts = new ArrayList<Integer>();
+		Tokenizer.tokenize(text, 3, 11, new Tokenizer.TokenHandler() {
+			public void token(CharSequence input, int start, int length) {
+				tokens.add(input.subSequence(start, start + length)
+						.toString());
+				starts.add(start);
+			}
+		});
+		// the regions of the array, as they are
+		assertEquals(Arrays.asList("Hello", "World"), tokens);
+		assertEquals(Arrays.asList(3, 9), starts);
+		char[] lower = new char[5];
+		assertEquals(5, Tokenizer.toLowerCase("ÉCOLE", 0, 5, lower, 0));
+		assertEquals("école", new String(lower));
+	}
+
+}
@@ -16,11 +16,35 @@
 
 package com.digitalpebble.classification.test;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
 
 import com.digitalpebble.classification.Document;
 import com.digitalpebble.classification.Field;
+import com.digitalpebble.classification.FileTrainingCorpus;
+import com.digitalpebble.classification.Learner;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.LexiconMapping;
+import com.digitalpebble.classification.MappedTrainingCorpus;
+import com.digitalpebble.classification.Parameters;
 import com.digitalpebble.classification.RAMTrainingCorpus;
+import com.digitalpebble.classification.RawCorpusAppender;
+import com.digitalpebble.classification.TrainingCorpus;
+import com.digitalpebble.classification.Vector;
+import com.digitalpebble.classification.libsvm.Utils;
+import com.digitalpebble.classification.util.CorpusUtils;
 
 public class TestTrainingCorpus extends AbstractLearnerTest {
 
@@ -73,4 +97,658 @@ public class TestTrainingCorpus extends AbstractLearnerTest {
 
 	}
 
+	/**
+	 * The documents read from a binary raw file are the same as the ones
+	 * added, across several blocks, after reopening the file and after an
+	 * incomplete block has been dropped
+	 **/
+	public void testBinaryRawFile() throws Exception {
+		String[][] tokens = randomTokens(6000, 40, "t", 5000, 0);
+		List<Document> docs = new ArrayList<Document>();
+		for (int d = 0; d < tokens.length; d++) {
+			if (d % 3 == 0) {
+				Field[] fields = new Field[] {
+						new Field("title", new String[] { tokens[d][0] }),
+						new Field("body", tokens[d]) };
+				docs.add(learner.createDocument(fields, "label" + (d % 2)));
+			} else
+				docs.add(learner.createDocument(tokens[d], "label" + (d % 2)));
+		}
+		File raw = new File(tempFile, "raw.bin");
+		FileTrainingCorpus corpus = new FileTrainingCorpus(raw, true);
+		assertTrue(corpus.isBinary());
+		for (Document doc : docs.subList(0, 4000))
+			corpus.addDocument(doc);
+		corpus.close();
+
+		// appending to the existing file
+		corpus = new FileTrainingCorpus(raw);
+		assertTrue(corpus.isBinary());
+		for (Document doc : docs.subList(4000, docs.size()))
+			corpus.addDocument(doc);
+		corpus.close();
+		assertSameDocuments(docs, corpus.iterator());
+
+		// the text format is still supported
+		File text = new File(tempFile, "raw.txt");
+		assertEquals(docs.size(), CorpusUtils.convertRawFile(raw, text, false));
+		assertFalse(new FileTrainingCorpus(text).isBinary());
+		assertSameDocuments(docs, FileTrainingCorpus.readDocuments(text));
+		assertTrue(raw.length() < text.length() / 2);
+
+		// an incomplete block at the end is dropped when the file is reopened
+		long length = raw.length();
+		RandomAccessFile file = new RandomAccessFile(raw, "rw");
+		file.seek(length);
+		file.writeInt(1000);
+		file.writeInt(3);
+		file.close();
+		corpus = new FileTrainingCorpus(raw);
+		corpus.close();
+		assertEquals(length, raw.length());
+		assertSameDocuments(docs, corpus.iterator());
+
+		// as are the zeros left by a crash after the file was extended
+		file = new RandomAccessFile(raw, "rw");
+		file.setLength(length + 100000);
+		file.close();
+		corpus = new FileTrainingCorpus(raw);
+		corpus.close();
+		assertEquals(length, raw.length());
+
+		// but not a block whose length was corrupted, nor what follows it
+		File index = new File(raw.getPath() + ".segments");
+		File copy = new File(tempFile, "copy.bin");
+		java.nio.file.Files.copy(raw.toPath(), copy.toPath());
+		FileTrainingCorpus copyCorpus = new FileTrainingCorpus(copy);
+		copyCorpus.close();
+		assertTrue(new File(copy.getPath() + ".segments").delete());
+		file = new RandomAccessFile(copy, "rw");
+		file.seek(16);
+		file.writeInt(10);
+		file.close();
+		try {
+			new FileTrainingCorpus(copy);
+			fail("Corrupted block header not detected");
+		} catch (IOException e) {
+		}
+		assertEquals(length, copy.length());
+		try {
+			copyCorpus.parallelStream().count();
+			fail("Corrupted block header not detected by the spliterator");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+
+		// a corrupted block which is not the last one is found by verify()
+		// or when the file is read without its index
+		file = new RandomAccessFile(raw, "rw");
+		file.seek(100);
+		file.write(file.read() ^ 0xFF);
+		file.close();
+		corpus = new FileTrainingCorpus(raw);
+		assertFalse(corpus.verify());
+		corpus.close();
+		assertTrue(index.delete());
+		try {
+			new FileTrainingCorpus(raw);
+			fail("Corrupted raw file not detected");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * A raw file is reopened from its index, only what was written after the
+	 * last segment being scanned, or entirely if the index is missing
+	 **/
+	public void testReopen() throws Exception {
+		for (boolean binary : new boolean[] { true, false }) {
+			List<Document> docs = randomDocuments(5000, 0);
+			File raw = new File(tempFile, "reopen" + binary);
+			File index = new File(raw.getPath() + ".segments");
+			FileTrainingCorpus corpus = new FileTrainingCorpus(raw, binary);
+			for (Document doc : docs.subList(0, 3000))
+				corpus.addDocument(doc);
+			corpus.close();
+			assertTrue(index.exists());
+
+			corpus = new FileTrainingCorpus(raw);
+			assertEquals(3000, corpus.getDocNum());
+			for (Document doc : docs.subList(3000, 4000))
+				corpus.addDocument(doc);
+			assertEquals(4000, corpus.getDocNum());
+			corpus.close();
+			long length = raw.length();
+
+			// documents written by a corpus which was not closed, the last
+			// one being incomplete
+			File other = new File(tempFile, "other" + binary);
+			corpus = new FileTrainingCorpus(other, binary);
+			for (Document doc : docs.subList(4000, docs.size()))
+				corpus.addDocument(doc);
+			corpus.close();
+			byte[] bytes = java.nio.file.Files.readAllBytes(other.toPath());
+			int from = binary ? 16 : 0;
+			RandomAccessFile file = new RandomAccessFile(raw, "rw");
+			file.seek(length);
+			file.write(bytes, from, bytes.length - from);
+			file.write(bytes, from, 10);
+			file.close();
+
+			corpus = new FileTrainingCorpus(raw);
+			assertEquals(binary, corpus.isBinary());
+			assertEquals(docs.size(), corpus.getDocNum());
+			assertTrue(corpus.verify());
+			corpus.close();
+			assertEquals(length + bytes.length - from, raw.length());
+			assertSameDocuments(docs, corpus.iterator());
+
+			// the index still matches a small binary file whose number of
+			// documents in the header has changed
+			if (binary) {
+				File small = new File(tempFile, "small");
+				File smallIndex = new File(small.getPath() + ".segments");
+				for (int session = 0; session < 2; session++) {
+					corpus = new FileTrainingCorpus(small, true);
+					corpus.addDocument(docs.get(session));
+					corpus.close();
+				}
+				assertEquals(2 * 28 + 8, smallIndex.length());
+				file = new RandomAccessFile(small, "rw");
+				file.seek(8);
+				file.writeLong(1000);
+				file.close();
+				corpus = new FileTrainingCorpus(small);
+				assertEquals(2, corpus.getDocNum());
+				corpus.close();
+				// not rebuilt from a full scan
+				assertEquals(2 * 28 + 8, smallIndex.length());
+			}
+
+			// without the index
+			assertTrue(index.delete());
+			corpus = new FileTrainingCorpus(raw);
+			assertEquals(docs.size(), corpus.getDocNum());
+			corpus.close();
+			assertSameDocuments(docs, corpus.iterator());
+		}
+	}
+
+	/** Random access to the documents of a binary raw file and its views **/
+	public void testMappedCorpus() throws Exception {
+		File raw = new File(tempFile, "raw.bin");
+		FileTrainingCorpus corpus = new FileTrainingCorpus(raw, true);
+		List<String> expected = new ArrayList<String>();
+		for (Document doc : randomDocuments(5000, 0)) {
+			corpus.addDocument(doc);
+			expected.add(doc.getStringSerialization());
+		}
+		corpus.close();
+
+		MappedTrainingCorpus mapped = MappedTrainingCorpus.open(raw);
+		assertEquals(expected.size(), mapped.size());
+		for (int d = expected.size() - 1; d >= 0; d -= 7)
+			assertEquals(expected.get(d), mapped.get(d)
+					.getStringSerialization());
+		Iterator<Document> iter = mapped.iterator();
+		for (String doc : expected)
+			assertEquals(doc, iter.next().getStringSerialization());
+		assertFalse(iter.hasNext());
+
+		// a fold and the rest of the corpus
+		MappedTrainingCorpus fold = mapped.subCorpus(1000, 2000);
+		assertEquals(1000, fold.size());
+		assertEquals(expected.get(1500), fold.get(500).getStringSerialization());
+		int[] rest = new int[4000];
+		for (int i = 0; i < rest.length; i++)
+			rest[i] = i < 1000 ? i : i + 1000;
+		MappedTrainingCorpus training = mapped.subCorpus(rest);
+		assertEquals(expected.get(2000), training.get(1000)
+				.getStringSerialization());
+
+		// the shuffled views are permutations of the documents
+		MappedTrainingCorpus shuffled = fold.shuffle(new Random(1));
+		Set<String> docs = new HashSet<String>();
+		for (int i = 0; i < shuffled.size(); i++)
+			docs.add(shuffled.get(i).getStringSerialization());
+		assertEquals(new HashSet<String>(expected.subList(1000, 2000)), docs);
+		try {
+			shuffled.get(1000);
+			fail("Document out of the view");
+		} catch (IndexOutOfBoundsException e) {
+		}
+
+		// the number of documents of the header doesn't size the offsets
+		RandomAccessFile file = new RandomAccessFile(raw, "rw");
+		file.seek(8);
+		file.writeLong(Long.MAX_VALUE);
+		file.close();
+		mapped = MappedTrainingCorpus.open(raw);
+		assertEquals(expected.size(), mapped.size());
+		assertEquals(expected.get(expected.size() - 1), mapped.get(
+				expected.size() - 1).getStringSerialization());
+
+		// the blocks are checked as when the file is read : the zeros left
+		// by a crash are ignored but not a corrupted block header
+		file = new RandomAccessFile(raw, "rw");
+		file.setLength(raw.length() + 1000);
+		file.close();
+		assertEquals(expected.size(), MappedTrainingCorpus.open(raw).size());
+		file = new RandomAccessFile(raw, "rw");
+		file.seek(16);
+		file.writeInt(10);
+		file.close();
+		try {
+			MappedTrainingCorpus.open(raw);
+			fail("Corrupted block header not detected");
+		} catch (IOException e) {
+		}
+	}
+
+	/**
+	 * The Spliterators of the corpora split on the boundaries of the
+	 * documents and the parallel streams give them in the same order
+	 **/
+	public void testSpliterators() throws Exception {
+		File raw = new File(tempFile, "raw.bin");
+		File text = new File(tempFile, "raw.txt");
+		FileTrainingCorpus binaryCorpus = new FileTrainingCorpus(raw, true);
+		FileTrainingCorpus textCorpus = new FileTrainingCorpus(text, false);
+		RAMTrainingCorpus ramCorpus = new RAMTrainingCorpus();
+		List<String> expected = new ArrayList<String>();
+		for (Document doc : randomDocuments(30000, 0)) {
+			binaryCorpus.addDocument(doc);
+			textCorpus.addDocument(doc);
+			ramCorpus.addDocument(doc);
+			expected.add(doc.getStringSerialization());
+		}
+		binaryCorpus.close();
+		textCorpus.close();
+		assertTrue(text.length() > 2 << 20);
+
+		TrainingCorpus[] corpora = new TrainingCorpus[] { binaryCorpus,
+				textCorpus, ramCorpus, MappedTrainingCorpus.open(raw) };
+		for (TrainingCorpus corpus : corpora) {
+			Spliterator<Document> rest = corpus.spliterator();
+			Spliterator<Document> prefix = rest.trySplit();
+			assertNotNull(prefix);
+			List<String> docs = new ArrayList<String>();
+			prefix.forEachRemaining(d -> docs.add(d.getStringSerialization()));
+			assertTrue(docs.size() > 0 && docs.size() < expected.size());
+			rest.forEachRemaining(d -> docs.add(d.getStringSerialization()));
+			assertEquals(expected, docs);
+
+			assertEquals(expected, corpus.parallelStream()
+					.map(Document::getStringSerialization)
+					.collect(Collectors.toList()));
+		}
+	}
+
+	/**
+	 * Documents added by several threads through an appender are all written,
+	 * in order for each thread, with a queue small enough to block them
+	 **/
+	public void testAppender() throws Exception {
+		for (boolean binary : new boolean[] { true, false }) {
+			final int numThreads = 4;
+			final List<List<Document>> docs = new ArrayList<List<Document>>();
+			for (int t = 0; t < numThreads; t++) {
+				List<Document> threadDocs = new ArrayList<Document>();
+				String[][] tokens = randomTokens(3000, 40, "t", 5000, t);
+				for (int d = 0; d < tokens.length; d++) {
+					// makes the documents unique
+					tokens[d][0] = "doc" + t + "_" + d;
+					threadDocs.add(learner.createDocument(tokens[d], "label"
+							+ (d % 3)));
+				}
+				docs.add(threadDocs);
+			}
+			File raw = new File(tempFile, "appended" + binary);
+			FileTrainingCorpus corpus = new FileTrainingCorpus(raw, binary);
+			Document first = docs.get(0).get(0);
+			corpus.addDocument(first);
+			final RawCorpusAppender appender = new RawCorpusAppender(corpus, 2);
+			final List<Exception> errors = new ArrayList<Exception>();
+			Thread[] threads = new Thread[numThreads];
+			for (int t = 0; t < numThreads; t++) {
+				final List<Document> threadDocs = docs.get(t);
+				threads[t] = new Thread() {
+					public void run() {
+						try {
+							for (Document doc : threadDocs)
+								appender.addDocument(doc);
+						} catch (Exception e) {
+							synchronized (errors) {
+								errors.add(e);
+							}
+						}
+					}
+				};
+				threads[t].start();
+			}
+			for (Thread thread : threads)
+				thread.join();
+			appender.close();
+			corpus.close();
+			assertTrue(errors.isEmpty());
+
+			corpus = new FileTrainingCorpus(raw);
+			assertEquals(1 + numThreads * 3000, corpus.getDocNum());
+			assertTrue(corpus.verify());
+			corpus.close();
+			Map<String, Integer> thread = new HashMap<String, Integer>();
+			for (int t = 0; t < numThreads; t++)
+				for (Document doc : docs.get(t))
+					thread.put(doc.getStringSerialization(), t);
+			List<List<Document>> written = new ArrayList<List<Document>>();
+			for (int t = 0; t < numThreads; t++)
+				written.add(new ArrayList<Document>());
+			Iterator<Document> iter = corpus.iterator();
+			assertEquals(first.getStringSerialization(), iter.next()
+					.getStringSerialization());
+			while (iter.hasNext()) {
+				Document doc = iter.next();
+				written.get(thread.get(doc.getStringSerialization())).add(doc);
+			}
+			for (int t = 0; t < numThreads; t++)
+				assertSameDocuments(docs.get(t), written.get(t).iterator());
+		}
+	}
+
+	/**
+	 * An interrupted writer fails the appender without blocking the threads
+	 * adding documents, which keep the queue full, nor close()
+	 **/
+	public void testAppenderInterrupted() throws Exception {
+		final List<Document> docs = randomDocuments(2000, 0);
+		File raw = new File(tempFile, "interrupted");
+		for (int run = 0; run < 20; run++) {
+			FileTrainingCorpus corpus = new FileTrainingCorpus(raw, true);
+			Set<Thread> before = Thread.getAllStackTraces().keySet();
+			final RawCorpusAppender appender = new RawCorpusAppender(corpus, 1);
+			Thread writer = null;
+			for (Thread thread : Thread.getAllStackTraces().keySet())
+				if (thread.getName().equals("RawCorpusAppender")
+						&& !before.contains(thread))
+					writer = thread;
+			final List<Exception> errors = new ArrayList<Exception>();
+			Thread[] producers = new Thread[4];
+			for (int p = 0; p < producers.length; p++) {
+				producers[p] = new Thread() {
+					public void run() {
+						try {
+							for (int i = 0; i < 20; i++)
+								for (Document doc : docs)
+									appender.addDocument(doc);
+						} catch (IOException e) {
+							synchronized (errors) {
+								errors.add(e);
+							}
+						}
+					}
+				};
+				producers[p].start();
+			}
+			while (raw.length() < 100000)
+				Thread.sleep(1);
+			writer.interrupt();
+			for (Thread producer : producers) {
+				producer.join(30000);
+				assertFalse(producer.isAlive());
+			}
+			assertEquals(producers.length, errors.size());
+			Thread closer = new Thread() {
+				public void run() {
+					try {
+						appender.close();
+					} catch (IOException e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			closer.start();
+			closer.join(30000);
+			assertFalse(closer.isAlive());
+			// the interruption is reported by close()
+			assertEquals(producers.length + 1, errors.size());
+			corpus.close();
+			raw.delete();
+		}
+	}
+
+	/**
+	 * The results computed by batches and the vectors written from them are
+	 * in the order of the corpus
+	 **/
+	public void testWriteVectors() throws Exception {
+		File raw = new File(tempFile, "vectors.raw");
+		FileTrainingCorpus corpus = new FileTrainingCorpus(raw, true);
+		List<Document> docs = randomDocuments(3000, 0);
+		for (Document doc : docs)
+			corpus.addDocument(doc);
+		corpus.close();
+		List<String> expected = new ArrayList<String>();
+		for (Document doc : docs)
+			expected.add(doc.getStringSerialization());
+		for (int batchSize : new int[] { 1, 100, 5000 }) {
+			List<String> batched = new ArrayList<String>();
+			corpus.forEachOrdered(Document::getStringSerialization,
+					batched::add, batchSize);
+			assertEquals(expected, batched);
+		}
+
+		File sequential = new File(tempFile, "vectors.seq");
+		File batched = new File(tempFile, "vectors.batch");
+		Utils.writeExamples(docs.toArray(new Document[docs.size()]), learner
+				.getLexicon(), false, sequential.getPath());
+		Utils.writeExamples(corpus, learner.getLexicon(), false, batched
+				.getPath());
+		assertTrue(java.util.Arrays.equals(java.nio.file.Files
+				.readAllBytes(sequential.toPath()), java.nio.file.Files
+				.readAllBytes(batched.toPath())));
+		assertEquals(3000, java.nio.file.Files.readAllLines(
+				batched.toPath()).size());
+	}
+
+	/**
+	 * Returns numDocs arrays of 1 to maxTokens terms made of a prefix and a
+	 * random number below numTerms, always the same for a given seed
+	 **/
+	static String[][] randomTokens(int numDocs, int maxTokens, String prefix,
+			int numTerms, long seed) {
+		Random random = new Random(seed);
+		String[][] tokens = new String[numDocs][];
+		for (int d = 0; d < numDocs; d++) {
+			tokens[d] = new String[1 + random.nextInt(maxTokens)];
+			for (int t = 0; t < tokens[d].length; t++)
+				tokens[d][t] = prefix + random.nextInt(numTerms);
+		}
+		return tokens;
+	}
+
+	/**
+	 * Creates numDocs documents of random terms with the learner, labelled in
+	 * turn with one of 3 labels
+	 **/
+	private List<Document> randomDocuments(int numDocs, long seed) {
+		String[][] tokens = randomTokens(numDocs, 40, "t", 5000, seed);
+		List<Document> docs = new ArrayList<Document>();
+		for (int d = 0; d < numDocs; d++)
+			docs.add(learner.createDocument(tokens[d], "label" + (d % 3)));
+		return docs;
+	}
+
+	private static void assertSameDocuments(List<Document> expected,
+			Iterator<Document> iter) {
+		for (Document doc : expected) {
+			assertTrue(iter.hasNext());
+			assertEquals(doc.getStringSerialization(), iter.next()
+					.getStringSerialization());
+		}
+		assertFalse(iter.hasNext());
+	}
+
+	/**
+	 * A few frequent terms among many rare ones : only the terms found in
+	 * enough documents get an ID and the candidates stay within their budget
+	 **/
+	public void testAdmission() throws Exception {
+		int maxCandidates = 500;
+		learner.setAdmission(3, maxCandidates);
+		String[][] frequent = randomTokens(2000, 10, "f", 50, 0);
+		String[][] rare = randomTokens(2000, 10, "r", 1000000, 1);
+		Map<String, Integer> docFreqs = new HashMap<String, Integer>();
+		int peak = 0;
+		for (int d = 0; d < 2000; d++) {
+			List<String> terms = new ArrayList<String>();
+			terms.addAll(Arrays.asList(frequent[d]));
+			terms.addAll(Arrays.asList(rare[d]));
+			String[] tokens = terms.toArray(new String[terms.size()]);
+			Set<String> distinct = new HashSet<String>(terms);
+			for (String token : distinct) {
+				Integer df = docFreqs.get(token);
+				docFreqs.put(token, df == null ? 1 : df + 1);
+			}
+			learner.createDocument(tokens, "label" + (d % 2));
+			peak = Math.max(peak, learner.getLexicon().getCandidateNum());
+		}
+		Lexicon lexicon = learner.getLexicon();
+		assertTrue(peak <= maxCandidates);
+		assertTrue(lexicon.getEvictedCandidates() > 0);
+		for (Map.Entry<Integer, String> term : lexicon.getInvertedIndex()
+				.entrySet()) {
+			int df = docFreqs.get(term.getValue());
+			assertTrue(df >= 3);
+			assertTrue(lexicon.getDocFreq(term.getKey()) <= df);
+		}
+		for (int f = 0; f < 50; f++) {
+			int index = lexicon.getIndex("f" + f);
+			assertTrue(index != -1);
+			assertTrue(lexicon.getDocFreq(index) >= docFreqs.get("f" + f) * 0.9);
+		}
+		assertTrue(lexicon.getAttributesNum() < 100);
+	}
+
+	/**
+	 * Creates the documents in several partitions with their own lexicon and
+	 * raw file, merges them and checks that the vectors are those of a
+	 * single lexicon
+	 **/
+	public void testMergePartitions() throws Exception {
+		final int numDocs = 300;
+		final int numPartitions = 3;
+		String[][] tokens = randomTokens(numDocs, 35, "w", 2000, 1);
+		String[] labels = new String[numDocs];
+		for (int d = 0; d < numDocs; d++)
+			labels[d] = "label" + (d % 4);
+		Learner sequential = newLearner("sequential");
+		Document[] expectedDocs = new Document[numDocs];
+		for (int d = 0; d < numDocs; d++)
+			expectedDocs[d] = TestConcurrentClassification.createDocument(
+					sequential, tokens[d], labels[d], d);
+
+		Lexicon[] partitions = new Lexicon[numPartitions];
+		File[] lexicons = new File[numPartitions];
+		File[] rawFiles = new File[numPartitions];
+		for (int p = 0; p < numPartitions; p++) {
+			Learner partition = newLearner("partition" + p);
+			FileTrainingCorpus corpus = partition.getFileTrainingCorpus();
+			for (int d = p * numDocs / numPartitions; d < (p + 1) * numDocs
+					/ numPartitions; d++)
+				corpus.addDocument(TestConcurrentClassification.createDocument(
+						partition, tokens[d], labels[d], d));
+			corpus.close();
+			partitions[p] = partition.getLexicon();
+			lexicons[p] = new File(tempFile, "lexicon" + p);
+			partitions[p].saveToBinaryFile(lexicons[p].getPath());
+			rawFiles[p] = new File(tempFile, "partition" + p + "/"
+					+ Parameters.rawName);
+		}
+		File mergedLexicon = new File(tempFile, "merged.lexicon");
+		File mergedRaw = new File(tempFile, "merged.raw");
+		CorpusUtils.mergePartitions(lexicons, rawFiles, mergedLexicon,
+				mergedRaw);
+
+		Lexicon expected = sequential.getLexicon();
+		Lexicon merged = new Lexicon(mergedLexicon.getPath());
+		assertTrue(Lexicon.isBinaryFile(mergedLexicon.getPath()));
+		assertTrue(merged.hasSameSettings(partitions[0]));
+		assertEquals(expected.getDocNum(), merged.getDocNum());
+		assertEquals(expected.getAttributesNum(), merged.getAttributesNum());
+		assertTrue(Arrays.equals(expected.getLabels(), merged.getLabels()));
+		assertTrue(Arrays.equals(expected.getFields(), merged.getFields()));
+		Map<Integer, String> expectedTerms = expected.getInvertedIndex();
+		Map<Integer, String> mergedTerms = merged.getInvertedIndex();
+		for (Map.Entry<Integer, String> term : expectedTerms.entrySet())
+			assertEquals(expected.getDocFreq(term.getKey()), merged
+					.getDocFreq(merged.getIndex(term.getValue())));
+
+		int d = 0;
+		FileTrainingCorpus corpus = new FileTrainingCorpus(mergedRaw);
+		corpus.close();
+		Iterator<Document> iterator = corpus.iterator();
+		while (iterator.hasNext()) {
+			Document doc = iterator.next();
+			assertEquals(expectedDocs[d].getLabel(), doc.getLabel());
+			assertEquals(byTerm(expectedDocs[d].getFeatureVector(expected),
+					expectedTerms), byTerm(doc.getFeatureVector(merged),
+					mergedTerms));
+			d++;
+		}
+		assertEquals(numDocs, d);
+
+		// text lexicons give a text lexicon
+		for (int p = 0; p < numPartitions; p++)
+			partitions[p].saveToFile(lexicons[p].getPath());
+		CorpusUtils.mergePartitions(lexicons, rawFiles, mergedLexicon,
+				mergedRaw);
+		assertFalse(Lexicon.isBinaryFile(mergedLexicon.getPath()));
+		assertEquals(expected.getAttributesNum(), new Lexicon(mergedLexicon
+				.getPath()).getAttributesNum());
+
+		// the partitions must have the same settings
+		partitions[1].setMethod(Parameters.WeightingMethod.BOOLEAN);
+		partitions[1].saveToFile(lexicons[1].getPath());
+		try {
+			CorpusUtils.mergePartitions(lexicons, rawFiles, mergedLexicon,
+					mergedRaw);
+			fail("Different weighting schemes");
+		} catch (IllegalArgumentException e) {
+		}
+
+		// a document whose label is not in its partition can't be remapped
+		Lexicon first = new Lexicon(lexicons[0].getPath());
+		LexiconMapping mapping = new Lexicon().merge(first)[0];
+		Document unknown = TestConcurrentClassification.createDocument(
+				sequential, tokens[0], "unknown", 0);
+		try {
+			mapping.remap(unknown);
+			fail("Unknown label");
+		} catch (IllegalArgumentException e) {
+		}
+	}
+
+	/**
+	 * Learner with TF-IDF weights without normalization, as the norms of
+	 * the merged documents would be summed in a different order
+	 **/
+	private Learner newLearner(String name) throws Exception {
+		Learner learner = TestConcurrentClassification.newLearner(tempFile,
+				name);
+		learner.setMethod(Parameters.WeightingMethod.TFIDF);
+		learner.setNormalization(false);
+		return learner;
+	}
+
+	private static Map<String, Double> byTerm(Vector vector,
+			Map<Integer, String> terms) {
+		Map<String, Double> values = new HashMap<String, Double>();
+		for (int i = 0; i < vector.getIndices().length; i++)
+			values.put(terms.get(vector.getIndices()[i]),
+					vector.getValues()[i]);
+		return values;
+	}
+
 }
@@ -7,6 +7,8 @@ import java.util.List;
 import java.util.Map;
 
 import com.digitalpebble.classification.Document;
+import com.digitalpebble.classification.Lexicon;
+import com.digitalpebble.classification.LexiconMapping;
 import com.digitalpebble.classification.Parameters;
 import com.digitalpebble.classification.Parameters.WeightingMethod;
 import com.digitalpebble.classification.RAMTrainingCorpus;
@@ -172,11 +174,202 @@ public class TestWeightingSchemes extends AbstractLearnerTest {
 		evaluateWeightingSchemes(Parameters.WeightingMethod.TFIDF);
 	}
 
+	/** The vectors have a L2 norm of 1 unless the normalization is disabled **/
+	public void testNormalization() {
+		learner.setMethod(Parameters.WeightingMethod.FREQUENCY);
+		List<Map> expectedset = references
+				.get(Parameters.WeightingMethod.FREQUENCY);
+		for (int d = 0; d < docs.length; d++) {
+			Document doc = learner.createDocument(docs[d]);
+			Map<Integer, String> invertedIndex = learner.getLexicon()
+					.getInvertedIndex();
+			Map<String, Double> expected = expectedset.get(d);
+			double norm = 0;
+			for (double value : expected.values())
+				norm += value * value;
+			norm = Math.sqrt(norm);
+			Vector vector = doc.getFeatureVector(learner.getLexicon());
+			double sum = 0;
+			for (int i = 0; i < vector.getIndices().length; i++) {
+				String term = invertedIndex.get(vector.getIndices()[i]);
+				assertEquals(expected.get(term) / norm, vector.getValues()[i],
+						1e-12);
+				sum += vector.getValues()[i] * vector.getValues()[i];
+			}
+			assertEquals(1, sum, 1e-12);
+		}
+	}
+
+	/**
+	 * Compacts the lexicon once the rare terms are pruned and checks that
+	 * the documents get the same values with the new attribute numbers
+	 **/
+	public void testCompactIndices() {
+		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
+		learner.setMethod(Parameters.WeightingMethod.FREQUENCY);
+		learner.setNormalization(false);
+		for (String[] content : docs)
+			corpus.add(learner.createDocument(content));
+		Lexicon lexicon = learner.getLexicon();
+		Map<Integer, String> before = lexicon.getInvertedIndex();
+		lexicon.pruneTermsDocFreq(2, Integer.MAX_VALUE);
+		int[] oldToNew = lexicon.compactIndices();
+		assertEquals(3, lexicon.getAttributesNum());
+		assertEquals(3, lexicon.maxAttributeID());
+		Map<Integer, String> after = lexicon.getInvertedIndex();
+		int last = 0;
+		for (Map.Entry<Integer, String> term : before.entrySet()) {
+			int newIndex = oldToNew[term.getKey()];
+			if (newIndex == -1) {
+				assertEquals(-1, lexicon.getIndex(term.getValue()));
+				continue;
+			}
+			// the order of the attributes is kept
+			assertTrue(newIndex > last);
+			last = newIndex;
+			assertEquals(term.getValue(), after.get(newIndex));
+		}
+
+		List<Map> expectedset = references
+				.get(Parameters.WeightingMethod.FREQUENCY);
+		for (int d = 0; d < docs.length; d++) {
+			Vector vector = corpus.get(d).getFeatureVector(lexicon, oldToNew);
+			Map<String, Double> expected = new HashMap<String, Double>(
+					expectedset.get(d));
+			expected.keySet().retainAll(after.values());
+			assertEquals(expected.size(), vector.getIndices().length);
+			for (int i = 0; i < vector.getIndices().length; i++)
+				assertEquals(expected.get(after.get(vector.getIndices()[i])),
+						vector.getValues()[i]);
+			// a Document which only implements the Map version
+			Vector converted = new LegacyDocument(corpus.get(d))
+					.getFeatureVector(lexicon, oldToNew);
+			assertTrue(java.util.Arrays.equals(vector.getIndices(), converted
+					.getIndices()));
+			assertTrue(java.util.Arrays.equals(vector.getValues(), converted
+					.getValues()));
+		}
+	}
+
+	/**
+	 * The doc frequencies of a concurrent lexicon are kept when it is
+	 * compacted, a frozen lexicon can't be compacted
+	 **/
+	public void testCompactConcurrent() {
+		Lexicon lexicon = learner.getLexicon();
+		lexicon.setConcurrent(true);
+		learner.createDocument(new String[] { "a", "e" });
+		learner.createDocument(new String[] { "b", "e", "b" });
+		learner.createDocument(new String[] { "e", "b" });
+		int oldE = lexicon.getIndex("e");
+		int[] oldToNew = lexicon.compactIndicesByDocFreq();
+		assertEquals(1, oldToNew[oldE]);
+		assertEquals(1, lexicon.getIndex("e"));
+		assertEquals(3, lexicon.getDocFreq(1));
+		assertEquals(2, lexicon.getDocFreq(lexicon.getIndex("b")));
+		assertEquals(1, lexicon.getDocFreq(lexicon.getIndex("a")));
+		lexicon.setConcurrent(true);
+		lexicon.compactIndices();
+		assertEquals(3, lexicon.getDocFreq(lexicon.getIndex("e")));
+		assertEquals(1, lexicon.getDocFreq(lexicon.getIndex("a")));
+
+		lexicon.freeze();
+		try {
+			lexicon.compactIndices();
+			fail("A frozen lexicon can't be compacted");
+		} catch (UnsupportedOperationException e) {
+		}
+	}
+
+	/** The deprecated compact() numbers the attributes alphabetically **/
+	@SuppressWarnings("deprecation")
+	public void testCompactAlphabetically() {
+		Lexicon lexicon = learner.getLexicon();
+		learner.createDocument(new String[] { "c", "a" });
+		learner.createDocument(new String[] { "d", "b" });
+		int oldC = lexicon.getIndex("c");
+		Map<Integer, Integer> equiv = lexicon.compact();
+		assertEquals(4, equiv.size());
+		assertEquals(Integer.valueOf(3), equiv.get(oldC));
+		String[] terms = new String[] { "a", "b", "c", "d" };
+		for (int t = 0; t < terms.length; t++)
+			assertEquals(t + 1, lexicon.getIndex(terms[t]));
+		assertEquals(4, lexicon.maxAttributeID());
+	}
+
+	/** implements Document as it was before the int[] mappings **/
+	@SuppressWarnings("deprecation")
+	private static class LegacyDocument implements Document {
+
+		private final Document doc;
+
+		LegacyDocument(Document doc) {
+			this.doc = doc;
+		}
+
+		public int getLabel() {
+			return doc.getLabel();
+		}
+
+		public Vector getFeatureVector(Lexicon lexicon) {
+			return doc.getFeatureVector(lexicon);
+		}
+
+		public Vector getFeatureVector(Lexicon lexicon, WeightingMethod method) {
+			return doc.getFeatureVector(lexicon, method);
+		}
+
+		public Vector getFeatureVector(Lexicon lexicon,
+				Map<Integer, Integer> equiv) {
+			return doc.getFeatureVector(lexicon, equiv);
+		}
+
+		public String getStringSerialization() {
+			return doc.getStringSerialization();
+		}
+	}
+
+	public void testCompactIndicesByDocFreq() {
+		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
+		learner.setMethod(Parameters.WeightingMethod.FREQUENCY);
+		// e is the most frequent term but the last one seen
+		corpus.add(learner.createDocument(new String[] { "a", "e" }));
+		corpus.add(learner.createDocument(new String[] { "b", "e", "b" }));
+		corpus.add(learner.createDocument(new String[] { "c", "e", "b" }));
+		Lexicon lexicon = learner.getLexicon();
+		Map<Integer, String> before = lexicon.getInvertedIndex();
+		int[] oldToNew = lexicon.compactIndicesByDocFreq();
+		Map<Integer, String> after = lexicon.getInvertedIndex();
+		assertEquals(4, lexicon.maxAttributeID());
+		assertEquals("e", after.get(1));
+		assertEquals("b", after.get(2));
+		for (int id = 2; id <= lexicon.maxAttributeID(); id++)
+			assertTrue(lexicon.getDocFreq(id) <= lexicon.getDocFreq(id - 1));
+		for (Map.Entry<Integer, String> term : before.entrySet())
+			assertEquals(term.getValue(), after.get(oldToNew[term.getKey()]));
+
+		// the documents are sorted on the new IDs
+		LexiconMapping mapping = LexiconMapping.forAttributes(oldToNew,
+				lexicon);
+		for (int d = 0; d < corpus.size(); d++) {
+			Document doc = corpus.get(d);
+			Vector vector = doc.getFeatureVector(lexicon, oldToNew);
+			Vector remapped = mapping.remap(doc).getFeatureVector(lexicon);
+			assertEquals(doc.getLabel(), mapping.remap(doc).getLabel());
+			assertTrue(java.util.Arrays.equals(vector.getIndices(), remapped
+					.getIndices()));
+			for (int i = 1; i < vector.getIndices().length; i++)
+				assertTrue(vector.getIndices()[i] > vector.getIndices()[i - 1]);
+		}
+	}
+
 	private void evaluateWeightingSchemes(WeightingMethod method) {
 
 		RAMTrainingCorpus corpus = new RAMTrainingCorpus();
 
 		learner.setMethod(method);
+		// the references are not normalized
+		learner.setNormalization(false);
 
 		for (String[] content : docs) {
 			Document doc = learner.createDocument(content);